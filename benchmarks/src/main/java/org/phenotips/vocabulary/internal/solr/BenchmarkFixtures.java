@@ -0,0 +1,157 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.SolrVocabularyResourceManager;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.function.Function;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates care pathways vocabularies outside of a component manager, and synthetic sources to load into them.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+final class BenchmarkFixtures
+{
+    /** The seed for generating sources, so that every run works on the same data. */
+    static final long SEED = 42;
+
+    /** The deepest level at which generated terms have children, similar to the bundled pathways. */
+    private static final int MAX_DEPTH = 6;
+
+    /** Words used for generating term names. */
+    private static final String[] WORDS = { "genetic", "test", "panel", "follow", "up", "karyotype", "array",
+        "sequencing", "counselling", "referral", "clinic", "imaging", "metabolic", "screening", "cardiology" };
+
+    private BenchmarkFixtures()
+    {
+        // Utility class
+    }
+
+    /**
+     * Creates a care pathways vocabulary that uses the given Solr client, without a term cache, and with the search
+     * results cache disabled so that every search is measured.
+     *
+     * @param client the connection to the index, may be {@code null} if the benchmark doesn't use the index
+     * @return a ready to use {@link CarePathwaysOntology}
+     */
+    @Nonnull
+    static CarePathwaysOntology newCarePathwaysOntology(@Nullable final SolrClient client)
+    {
+        final CarePathwaysOntology ontology = new CarePathwaysOntology();
+        final Cache<?> cache = stub(Cache.class, method -> null);
+        ReflectionUtils.setFieldValue(ontology, "logger", LoggerFactory.getLogger(CarePathwaysOntology.class));
+        ReflectionUtils.setFieldValue(ontology, "externalServicesAccess", stub(SolrVocabularyResourceManager.class,
+            method -> "getTermCache".equals(method) ? cache : method.endsWith("SolrConnection") ? client : null));
+        ReflectionUtils.setFieldValue(ontology, "configuration", stub(ConfigurationSource.class, method -> null));
+        // Without a search results cache, the engine performs every search.
+        ReflectionUtils.setFieldValue(ontology, "cacheManager", stub(CacheManager.class, method -> null));
+        return ontology;
+    }
+
+    /**
+     * Writes a care pathways source with the given number of terms to a temporary file. Every term is placed under a
+     * random earlier term, up to a bounded depth, and its row lists the whole path from its root.
+     *
+     * @param rows the number of terms to generate
+     * @return the generated file, which must be deleted by the caller
+     * @throws IOException if writing the file fails
+     */
+    @Nonnull
+    static File generateCarePathways(final int rows) throws IOException
+    {
+        final Random random = new Random(SEED);
+        final int[] parents = new int[rows + 1];
+        final int[] depths = new int[rows + 1];
+        final int[] branches = new int[rows + 1];
+        int branchCount = 0;
+        final File file = File.createTempFile("care-pathways-", ".tsv");
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            out.write("Test [CP:1]\nCare [CP:2]\n");
+            branches[branchCount++] = 1;
+            branches[branchCount++] = 2;
+            for (int id = 3; id <= rows; id++) {
+                final int parent = branches[random.nextInt(branchCount)];
+                parents[id] = parent;
+                depths[id] = depths[parent] + 1;
+                if (depths[id] < MAX_DEPTH) {
+                    branches[branchCount++] = id;
+                }
+                out.write(path(parent, parents));
+                out.write('\t');
+                out.write(node(id));
+                out.write('\n');
+            }
+        }
+        return file;
+    }
+
+    private static String path(final int id, final int[] parents)
+    {
+        if (id == 1) {
+            return "Test [CP:1]";
+        } else if (id == 2) {
+            return "Care [CP:2]";
+        }
+        return path(parents[id], parents) + '\t' + node(id);
+    }
+
+    private static String node(final int id)
+    {
+        // Names only depend on the identifier, so that every row naming a term agrees on its name.
+        final Random names = new Random(id);
+        return WORDS[names.nextInt(WORDS.length)] + ' ' + WORDS[names.nextInt(WORDS.length)] + ' ' + id + " [CP:" + id
+            + ']';
+    }
+
+    private static <T> T stub(@Nonnull final Class<T> type, @Nonnull final Function<String, Object> answers)
+    {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return type.getName();
+                    default:
+                        return answers.apply(method.getName());
+                }
+            }));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link CPNode#merge merging} the data found for a term in two source rows.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CPNodeBenchmark
+{
+    /** The number of ancestors of each merged node; half of them are shared by both nodes. */
+    @Param({ "2", "10", "100" })
+    public int ancestors;
+
+    private CPNode first;
+
+    private CPNode second;
+
+    /** Creates the nodes to merge. */
+    @Setup
+    public void setUp()
+    {
+        this.first = new CPNode("CP:1000", "Term");
+        this.second = new CPNode("CP:1000", "Term");
+        for (int i = 0; i < this.ancestors; i++) {
+            this.first.addAncestor("CP:" + i);
+            this.second.addAncestor("CP:" + (i + this.ancestors / 2));
+        }
+        this.first.addParent("CP:" + (this.ancestors - 1));
+        this.second.addParent("CP:" + (this.ancestors / 2 + this.ancestors - 1));
+    }
+
+    /**
+     * Merges the two nodes.
+     *
+     * @return the merged node
+     */
+    @Benchmark
+    public CPNode merge()
+    {
+        return CPNode.merge(this.first, this.second);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long loading a care pathways source of a given size takes, in full and for the parsing step alone.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LoadBenchmark
+{
+    /** The number of terms in the generated source. */
+    @Param({ "1000", "10000", "100000", "1000000" })
+    public int rows;
+
+    private File file;
+
+    private URL url;
+
+    private VocabularySource source;
+
+    private CarePathwaysOntology ontology;
+
+    /**
+     * Generates the source and creates the vocabulary.
+     *
+     * @throws IOException if the source cannot be written or read
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        this.file = BenchmarkFixtures.generateCarePathways(this.rows);
+        this.url = this.file.toURI().toURL();
+        this.source = VocabularySource.fetch(this.url, "benchmark");
+        this.ontology = BenchmarkFixtures.newCarePathwaysOntology(null);
+        if (this.ontology.load(this.url) == null) {
+            throw new IllegalStateException("The generated source cannot be loaded");
+        }
+    }
+
+    /**
+     * Deletes the generated source and its downloaded copy.
+     *
+     * @throws IOException if the source cannot be deleted
+     */
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        this.source.close();
+        Files.deleteIfExists(this.file.toPath());
+    }
+
+    /**
+     * Reads, parses and converts the whole source to Solr documents.
+     *
+     * @return the loaded documents
+     */
+    @Benchmark
+    public Collection<SolrInputDocument> load()
+    {
+        return this.ontology.load(this.url);
+    }
+
+    /**
+     * Parses the already read source in one chunk.
+     *
+     * @return the parsed nodes
+     * @throws IOException if the source cannot be read
+     */
+    @Benchmark
+    public Map<String, CPNode> parseSequentially() throws IOException
+    {
+        return this.ontology.parseNodes(this.source, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Parses the already read source in chunks of the size used when loading.
+     *
+     * @return the parsed nodes
+     * @throws IOException if the source cannot be read
+     */
+    @Benchmark
+    public Map<String, CPNode> parseInParallel() throws IOException
+    {
+        return this.ontology.parseNodes(this.source, 1 << 16);
+    }
+}
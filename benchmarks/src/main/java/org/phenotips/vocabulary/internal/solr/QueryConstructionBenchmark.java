@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the construction of the per-request part of care pathways Solr queries.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryConstructionBenchmark
+{
+    private VocabularySearchEngine engine;
+
+    /** Creates the vocabulary. */
+    @Setup
+    public void setUp()
+    {
+        this.engine = BenchmarkFixtures.newCarePathwaysOntology(null).getSearchEngine();
+    }
+
+    /**
+     * Builds a full text query, with a filter and several sort fields.
+     *
+     * @return the built query
+     */
+    @Benchmark
+    public SolrQuery textQuery()
+    {
+        return this.engine.addDynamicQueryParameters("genetic counselling (referral)", 10, "name asc, -depth",
+            "term_category:CP\\:2", false, new SolrQuery());
+    }
+
+    /**
+     * Builds a query for an identifier, which generates its own filter.
+     *
+     * @return the built query
+     */
+    @Benchmark
+    public SolrQuery idQuery()
+    {
+        return this.engine.addDynamicQueryParameters("CP:123", 1, null, null, true, new SolrQuery());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures care pathways searches end to end, against an embedded Solr core configured like the production one and
+ * holding the bundled vocabulary.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SearchBenchmark
+{
+    /** The name of the Solr core, which is also the location of its configuration in the vocabularies jar. */
+    private static final String CORE = "care-pathways";
+
+    /** The configuration files of the core. */
+    private static final String[] CONFIGURATION = { "solrconfig.xml", "solrcore.properties", "protwords.txt",
+        "managed-schema.xml" };
+
+    private Path solrHome;
+
+    private EmbeddedSolrServer client;
+
+    private CarePathwaysOntology ontology;
+
+    /**
+     * Creates the Solr core in a temporary directory and indexes the bundled vocabulary.
+     *
+     * @throws IOException if the core cannot be created
+     * @throws SolrServerException if indexing fails
+     */
+    @Setup
+    public void setUp() throws IOException, SolrServerException
+    {
+        this.solrHome = Files.createTempDirectory("care-pathways-solr");
+        Files.write(this.solrHome.resolve("solr.xml"), "<solr/>".getBytes(StandardCharsets.UTF_8));
+        final Path core = Files.createDirectories(this.solrHome.resolve(CORE).resolve("conf")).getParent();
+        Files.write(core.resolve("core.properties"), ("name=" + CORE + '\n').getBytes(StandardCharsets.UTF_8));
+        for (final String name : CONFIGURATION) {
+            try (InputStream in = SearchBenchmark.class.getResourceAsStream('/' + CORE + "/conf/" + name)) {
+                Files.copy(in, core.resolve("conf").resolve(name));
+            }
+        }
+        this.client = new EmbeddedSolrServer(this.solrHome, CORE);
+        this.ontology = BenchmarkFixtures.newCarePathwaysOntology(this.client);
+        this.client.add(this.ontology.load(new URL(this.ontology.getDefaultSourceLocation())));
+        this.client.commit();
+    }
+
+    /**
+     * Closes the core and deletes its directory.
+     *
+     * @throws IOException if the core cannot be closed or deleted
+     */
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        this.client.close();
+        try (Stream<Path> files = Files.walk(this.solrHome)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * Completes a typed prefix, which is answered from the in-memory hierarchy.
+     *
+     * @return the suggested terms
+     */
+    @Benchmark
+    public List<VocabularyTerm> suggest()
+    {
+        return this.ontology.search("gen", "care", 10, null, null);
+    }
+
+    /**
+     * Runs a full text search with a custom filter, which is always answered by Solr.
+     *
+     * @return the matching terms
+     */
+    @Benchmark
+    public List<VocabularyTerm> fullTextSearch()
+    {
+        return this.ontology.search("genetic counselling", "care", 10, null, "term_category:CP\\:2");
+    }
+
+    /**
+     * Looks up a term by its identifier, without a term cache.
+     *
+     * @return the term
+     */
+    @Benchmark
+    public VocabularyTerm getTerm()
+    {
+        return this.ontology.getTerm("CP:3");
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data;
+
+import org.xwiki.component.annotation.Role;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Suggests the free text "datum" values already entered for a care pathways term, without scanning the stored
+ * objects on every keystroke. The distinct values of each data class and parent term are kept in an index, loaded
+ * from the database the first time the data class is searched, and kept up to date as documents are saved or
+ * deleted.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Role
+public interface DatumSuggestionIndex
+{
+    /**
+     * Finds the datum values entered for a parent term that contain the input, case-insensitively. Standard values,
+     * which are care pathways term identifiers, are not suggested.
+     *
+     * @param dataClass the name of the class storing the data, {@code PhenoTips.PatientCarePreTestClass} or
+     *            {@code PhenoTips.PatientCarePostTestClass}; other classes have no suggestions
+     * @param parent the parent term of the data
+     * @param input the text typed so far, an empty input matches all the values
+     * @param limit the maximum number of suggestions to return
+     * @return the distinct matching values as they were first entered, the most used first; may be empty
+     */
+    @Nonnull
+    List<String> suggest(@Nonnull String dataClass, @Nonnull String parent, @Nullable String input, int limit);
+
+    /**
+     * Updates the index with the current data stored in a document.
+     *
+     * @param document the saved document; a deleted document, holding no objects, has its values removed
+     */
+    void update(@Nonnull XWikiDocument document);
+}
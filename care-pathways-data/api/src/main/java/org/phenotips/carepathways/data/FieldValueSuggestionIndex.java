@@ -0,0 +1,64 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data;
+
+import org.xwiki.component.annotation.Role;
+
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Suggests the values already entered in the free text {@code laboratory} and {@code location} fields of the care
+ * pathways data. The distinct values of each data class are loaded from the database once, then kept up to date as
+ * documents are saved or deleted, so that searching never queries the database.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Role
+public interface FieldValueSuggestionIndex
+{
+    /** The field holding the laboratory that performed a test. */
+    String LABORATORY = "laboratory";
+
+    /** The field holding the institution where care was provided. */
+    String LOCATION = "location";
+
+    /**
+     * Finds the values entered in a field that contain the input, case-insensitively.
+     *
+     * @param dataClass the name of the class storing the data, for example {@code PhenoTips.PatientCarePreTestClass}
+     * @param field the searched field, either {@link #LABORATORY} or {@link #LOCATION}
+     * @param input the text typed so far, an empty input matches all the values
+     * @param limit the maximum number of suggestions to return
+     * @return the distinct matching values as they were first entered, the most used first; empty for other fields
+     */
+    @Nonnull
+    List<String> suggest(@Nonnull String dataClass, @Nonnull String field, @Nullable String input, int limit);
+
+    /**
+     * Updates the index with the current data stored in a document.
+     *
+     * @param document the saved document; a deleted document, holding no objects, has its values removed
+     */
+    void update(@Nonnull XWikiDocument document);
+}
@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+/**
+ * Finds the variants entered for a patient by gene and cDNA, reading only the variant objects of the patient record
+ * instead of serializing the whole patient. The variants of recently searched patients are indexed in memory, and the
+ * index of a patient is discarded when its record is saved.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Role
+public interface PatientVariantIndex
+{
+    /**
+     * Finds a variant of a patient.
+     *
+     * @param patient the patient record
+     * @param gene the gene symbol of the variant
+     * @param cdna the cDNA notation of the variant
+     * @return the first matching variant, in the format of the {@code variants} section of the patient JSON, which
+     *         can't be modified; an empty map if the patient has no such variant, or {@code null} if the document
+     *         isn't a patient record
+     */
+    @Nullable
+    Map<String, Object> getVariant(@Nonnull DocumentReference patient, @Nonnull String gene, @Nonnull String cdna);
+
+    /**
+     * Finds several variants of a patient at once.
+     *
+     * @param patient the patient record
+     * @param variants the gene symbol and cDNA notation of each requested variant
+     * @return the first variant matching each request, in the same order, in the format of the {@code variants}
+     *         section of the patient JSON and unmodifiable, with an empty map for each request matching no variant;
+     *         or {@code null} if the document isn't a patient record
+     */
+    @Nullable
+    List<Map<String, Object>> getVariants(@Nonnull DocumentReference patient,
+        @Nonnull List<Pair<String, String>> variants);
+
+    /**
+     * Discards the indexed variants of a patient, after its record changed.
+     *
+     * @param patient the patient record
+     */
+    void invalidate(@Nonnull DocumentReference patient);
+}
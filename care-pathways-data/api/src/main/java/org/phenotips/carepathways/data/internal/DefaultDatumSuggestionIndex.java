@@ -0,0 +1,200 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.internal;
+
+import org.phenotips.carepathways.data.DatumSuggestionIndex;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Default implementation of {@link DatumSuggestionIndex}, keeping the distinct values of each data class in a
+ * {@link DistinctValueIndex}. A data class is loaded with a single query the first time it is searched; afterwards,
+ * only the documents being saved are read again. Only the {@link #DATA_CLASSES care pathways data classes} are
+ * indexed, so that requests naming other classes can't make the index grow without bounds.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Singleton
+public class DefaultDatumSuggestionIndex implements DatumSuggestionIndex
+{
+    /** The property holding the parent term of the data. */
+    private static final String PARENT = "parent";
+
+    /** The property holding the entered value. */
+    private static final String DATUM = "datum";
+
+    /** The classes storing care pathways data, which have the {@link #PARENT} and {@link #DATUM} properties. */
+    private static final Set<String> DATA_CLASSES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "PhenoTips.PatientCarePreTestClass", "PhenoTips.PatientCarePostTestClass")));
+
+    /** The prefix of standard values, which are term identifiers and not free text. */
+    private static final String STANDARD_MARKER = "CP:";
+
+    /** Loads the datum values of all the objects of a class. */
+    private static final String LOAD_QUERY = "select obj.name, parent_prop.value, datum_prop.value"
+        + " from BaseObject as obj, StringProperty as parent_prop, StringProperty as datum_prop"
+        + " where obj.className = :className"
+        + " and parent_prop.id.id = obj.id and parent_prop.id.name = '" + PARENT + '\''
+        + " and datum_prop.id.id = obj.id and datum_prop.id.name = '" + DATUM + '\'';
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private QueryManager queryManager;
+
+    /** The indexed values, scoped by data class and parent term, contributed by document and data class. */
+    private final DistinctValueIndex index = new DistinctValueIndex();
+
+    /** The classes being loaded or already loaded, whose changes must be tracked; guarded by {@link #monitor}. */
+    private final Set<String> trackedClasses = new HashSet<>();
+
+    /** The classes completely loaded, which can be searched without waiting. */
+    private final Set<String> loadedClasses = ConcurrentHashMap.newKeySet();
+
+    /** Orders loading classes and applying document changes, so that no change is lost while a class is loading. */
+    private final Object monitor = new Object();
+
+    @Override
+    @Nonnull
+    public List<String> suggest(@Nonnull final String dataClass, @Nonnull final String parent,
+        @Nullable final String input, final int limit)
+    {
+        if (!DATA_CLASSES.contains(dataClass) || !load(dataClass)) {
+            return Collections.emptyList();
+        }
+        return this.index.suggest(scope(dataClass, parent), input, limit);
+    }
+
+    @Override
+    public void update(@Nonnull final XWikiDocument document)
+    {
+        final Map<String, Map<String, List<String>>> valuesByClass = new HashMap<>();
+        for (final List<BaseObject> objects : document.getXObjects().values()) {
+            for (final BaseObject object : objects) {
+                if (object != null && DATA_CLASSES.contains(object.getClassName())) {
+                    final String dataClass = object.getClassName();
+                    add(valuesByClass, dataClass, dataClass, object.getStringValue(PARENT),
+                        object.getStringValue(DATUM));
+                }
+            }
+        }
+        final String name = document.getFullName();
+        synchronized (this.monitor) {
+            // Classes that aren't tracked yet will read this document from the database when they are first loaded.
+            for (final String dataClass : this.trackedClasses) {
+                final Map<String, List<String>> values = valuesByClass.get(dataClass);
+                this.index.replace(source(name, dataClass),
+                    values == null ? Collections.<String, List<String>>emptyMap() : values);
+            }
+        }
+    }
+
+    /**
+     * Loads all the values of a data class, unless already loaded.
+     *
+     * @param dataClass the name of the class storing the data
+     * @return {@code true} if the class is loaded, {@code false} if loading it failed
+     */
+    private boolean load(@Nonnull final String dataClass)
+    {
+        if (this.loadedClasses.contains(dataClass)) {
+            return true;
+        }
+        synchronized (this.monitor) {
+            if (this.loadedClasses.contains(dataClass)) {
+                return true;
+            }
+            this.trackedClasses.add(dataClass);
+            try {
+                final List<Object[]> rows = this.queryManager.createQuery(LOAD_QUERY, Query.HQL)
+                    .bindValue("className", dataClass).execute();
+                final Map<String, Map<String, List<String>>> valuesByDocument = new HashMap<>();
+                for (final Object[] row : rows) {
+                    add(valuesByDocument, (String) row[0], dataClass, (String) row[1], (String) row[2]);
+                }
+                valuesByDocument.forEach((name, values) -> this.index.replace(source(name, dataClass), values));
+                this.loadedClasses.add(dataClass);
+                this.logger.debug("Loaded [{}] documents with [{}] data", valuesByDocument.size(), dataClass);
+                return true;
+            } catch (final QueryException ex) {
+                this.trackedClasses.remove(dataClass);
+                this.logger.warn("Failed to load the [{}] data: {}", dataClass, ex.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds a datum value to its group and scope, unless it is a standard value.
+     *
+     * @param values the values collected so far, by group and scope
+     * @param group the document or data class the value belongs to
+     * @param dataClass the name of the class storing the value
+     * @param parent the parent term of the value
+     * @param datum the entered value
+     */
+    private void add(@Nonnull final Map<String, Map<String, List<String>>> values, @Nullable final String group,
+        @Nonnull final String dataClass, @Nullable final String parent, @Nullable final String datum)
+    {
+        if (group == null || StringUtils.isBlank(datum) || datum.startsWith(STANDARD_MARKER)) {
+            return;
+        }
+        final String scope = scope(dataClass, StringUtils.defaultString(parent));
+        values.computeIfAbsent(group, key -> new HashMap<>())
+            .computeIfAbsent(scope, key -> new ArrayList<>()).add(datum);
+    }
+
+    @Nonnull
+    private static String source(@Nonnull final String document, @Nonnull final String dataClass)
+    {
+        return document + '/' + dataClass;
+    }
+
+    @Nonnull
+    private static String scope(@Nonnull final String dataClass, @Nonnull final String parent)
+    {
+        return dataClass + '\n' + parent;
+    }
+}
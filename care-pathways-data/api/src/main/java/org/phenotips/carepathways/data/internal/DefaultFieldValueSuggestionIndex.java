@@ -0,0 +1,165 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.internal;
+
+import org.phenotips.carepathways.data.FieldValueSuggestionIndex;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Default implementation of {@link FieldValueSuggestionIndex}, keeping the distinct values of all the indexed fields
+ * in one {@link DistinctValueIndex}. All the values are loaded with a single query the first time a suggestion is
+ * requested; afterwards, only the documents being saved are read again.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Singleton
+public class DefaultFieldValueSuggestionIndex implements FieldValueSuggestionIndex
+{
+    /** The indexed fields. */
+    private static final List<String> FIELDS = Arrays.asList(LABORATORY, LOCATION);
+
+    /** Loads the values of the indexed fields of all the objects. */
+    private static final String LOAD_QUERY = "select obj.name, obj.className, prop.id.name, prop.value"
+        + " from BaseObject as obj, StringProperty as prop"
+        + " where prop.id.id = obj.id and prop.id.name in ('" + LABORATORY + "', '" + LOCATION + "')";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private QueryManager queryManager;
+
+    /** The indexed values, scoped by data class and field, contributed by document. */
+    private final DistinctValueIndex index = new DistinctValueIndex();
+
+    /** Whether all the values were loaded; only set while holding the {@link #monitor}. */
+    private volatile boolean loaded;
+
+    /** Orders loading the values and applying document changes, so that no change is lost while loading. */
+    private final Object monitor = new Object();
+
+    @Override
+    @Nonnull
+    public List<String> suggest(@Nonnull final String dataClass, @Nonnull final String field,
+        @Nullable final String input, final int limit)
+    {
+        if (!FIELDS.contains(field) || StringUtils.isBlank(dataClass) || !load()) {
+            return Collections.emptyList();
+        }
+        return this.index.suggest(scope(dataClass, field), input, limit);
+    }
+
+    @Override
+    public void update(@Nonnull final XWikiDocument document)
+    {
+        final Map<String, List<String>> values = new HashMap<>();
+        for (final List<BaseObject> objects : document.getXObjects().values()) {
+            for (final BaseObject object : objects) {
+                if (object != null) {
+                    for (final String field : FIELDS) {
+                        add(values, object.getClassName(), field, object.getStringValue(field));
+                    }
+                }
+            }
+        }
+        synchronized (this.monitor) {
+            // Until the values are loaded, this document will be read from the database along with all the others
+            if (this.loaded) {
+                this.index.replace(document.getFullName(), values);
+            }
+        }
+    }
+
+    /**
+     * Loads all the values of the indexed fields, unless already loaded.
+     *
+     * @return {@code true} if the values are loaded, {@code false} if loading them failed
+     */
+    private boolean load()
+    {
+        if (this.loaded) {
+            return true;
+        }
+        synchronized (this.monitor) {
+            if (this.loaded) {
+                return true;
+            }
+            try {
+                final List<Object[]> rows = this.queryManager.createQuery(LOAD_QUERY, Query.HQL).execute();
+                final Map<String, Map<String, List<String>>> valuesByDocument = new HashMap<>();
+                for (final Object[] row : rows) {
+                    add(valuesByDocument.computeIfAbsent((String) row[0], key -> new HashMap<>()), (String) row[1],
+                        (String) row[2], (String) row[3]);
+                }
+                valuesByDocument.forEach(this.index::replace);
+                this.loaded = true;
+                this.logger.debug("Loaded the {} values of [{}] documents", FIELDS, valuesByDocument.size());
+                return true;
+            } catch (final QueryException ex) {
+                this.logger.warn("Failed to load the {} values: {}", FIELDS, ex.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Adds a field value to its scope.
+     *
+     * @param values the values collected so far, by scope
+     * @param dataClass the name of the class storing the value
+     * @param field the field holding the value
+     * @param value the entered value
+     */
+    private void add(@Nonnull final Map<String, List<String>> values, @Nullable final String dataClass,
+        @Nonnull final String field, @Nullable final String value)
+    {
+        if (dataClass != null && StringUtils.isNotBlank(value)) {
+            values.computeIfAbsent(scope(dataClass, field), key -> new ArrayList<>()).add(value);
+        }
+    }
+
+    @Nonnull
+    private static String scope(@Nonnull final String dataClass, @Nonnull final String field)
+    {
+        return dataClass + '\n' + field;
+    }
+}
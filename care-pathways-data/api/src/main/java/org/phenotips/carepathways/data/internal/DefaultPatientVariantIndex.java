@@ -0,0 +1,248 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.internal;
+
+import org.phenotips.carepathways.data.PatientVariantIndex;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+
+/**
+ * Default implementation of {@link PatientVariantIndex}, keeping the variants of the most recently searched patients
+ * indexed by gene and cDNA.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Singleton
+public class DefaultPatientVariantIndex implements PatientVariantIndex
+{
+    /** The maximum number of patients whose variants are kept in memory. */
+    private static final int MAX_PATIENTS = 1000;
+
+    /** The space holding the classes. */
+    private static final String CODE_SPACE = "PhenoTips";
+
+    /** The class marking patient records. */
+    private static final EntityReference PATIENT_CLASS =
+        new EntityReference("PatientClass", EntityType.DOCUMENT, new EntityReference(CODE_SPACE, EntityType.SPACE));
+
+    /** The class storing the variants. */
+    private static final EntityReference VARIANT_CLASS = new EntityReference("GeneVariantClass", EntityType.DOCUMENT,
+        new EntityReference(CODE_SPACE, EntityType.SPACE));
+
+    /** The variant property holding the gene symbol, which is named {@link #JSON_GENE_KEY} in the patient JSON. */
+    private static final String GENE_KEY = "genesymbol";
+
+    /** The name of the gene symbol in the patient JSON. */
+    private static final String JSON_GENE_KEY = "gene";
+
+    /** The variant property holding the cDNA notation. */
+    private static final String CDNA_KEY = "cdna";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** The indexed variants of each patient, least recently used first. Guarded by {@code this}. */
+    private final LinkedHashMap<DocumentReference, Map<String, Map<String, Object>>> patients =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Incremented on every {@link #invalidate}, so that variants read before a change are never indexed after it.
+     * Guarded by {@code this}.
+     */
+    private long generation;
+
+    @Override
+    @Nullable
+    public Map<String, Object> getVariant(@Nonnull final DocumentReference patient, @Nonnull final String gene,
+        @Nonnull final String cdna)
+    {
+        final Map<String, Map<String, Object>> variants = getIndex(patient);
+        return variants == null ? null : find(variants, gene, cdna);
+    }
+
+    @Override
+    @Nullable
+    public List<Map<String, Object>> getVariants(@Nonnull final DocumentReference patient,
+        @Nonnull final List<Pair<String, String>> variants)
+    {
+        final Map<String, Map<String, Object>> index = getIndex(patient);
+        if (index == null) {
+            return null;
+        }
+        final List<Map<String, Object>> result = new ArrayList<>(variants.size());
+        for (final Pair<String, String> variant : variants) {
+            result.add(find(index, variant.getLeft(), variant.getRight()));
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void invalidate(@Nonnull final DocumentReference patient)
+    {
+        this.patients.remove(patient);
+        ++this.generation;
+    }
+
+    /**
+     * Returns the indexed variants of a patient, reading them if they aren't indexed yet.
+     *
+     * @param patient the patient record
+     * @return the variants by gene and cDNA, or {@code null} if the document isn't a patient record
+     */
+    @Nullable
+    private Map<String, Map<String, Object>> getIndex(@Nonnull final DocumentReference patient)
+    {
+        Map<String, Map<String, Object>> variants;
+        final long loadGeneration;
+        synchronized (this) {
+            variants = this.patients.get(patient);
+            loadGeneration = this.generation;
+        }
+        if (variants == null) {
+            variants = load(patient);
+            if (variants == null) {
+                return null;
+            }
+            synchronized (this) {
+                if (loadGeneration == this.generation) {
+                    this.patients.put(patient, variants);
+                    if (this.patients.size() > MAX_PATIENTS) {
+                        this.patients.remove(this.patients.keySet().iterator().next());
+                    }
+                }
+            }
+        }
+        return variants;
+    }
+
+    /**
+     * Reads the variants of a patient.
+     *
+     * @param patient the patient record
+     * @return the variants by gene and cDNA, or {@code null} if the document isn't a patient record
+     */
+    @Nullable
+    private Map<String, Map<String, Object>> load(@Nonnull final DocumentReference patient)
+    {
+        final XWikiContext context = this.xcontextProvider.get();
+        final XWikiDocument document;
+        try {
+            document = context.getWiki().getDocument(patient, context);
+        } catch (final XWikiException ex) {
+            this.logger.warn("Failed to load the variants of patient [{}]: {}", patient, ex.getMessage());
+            return null;
+        }
+        if (document.isNew() || document.getXObject(PATIENT_CLASS) == null) {
+            return null;
+        }
+        final List<BaseObject> objects = document.getXObjects(VARIANT_CLASS);
+        final Map<String, Map<String, Object>> variants = new HashMap<>();
+        if (objects != null) {
+            for (final BaseObject object : objects) {
+                final Map<String, Object> variant = object == null ? null : toJSON(object);
+                if (variant != null) {
+                    variants.putIfAbsent(key((String) variant.get(JSON_GENE_KEY), (String) variant.get(CDNA_KEY)),
+                        variant);
+                }
+            }
+        }
+        return Collections.unmodifiableMap(variants);
+    }
+
+    /**
+     * Converts a variant object to the format of the {@code variants} section of the patient JSON: all non-blank
+     * properties, with list properties as arrays and all other values as strings. The result is shared by all the
+     * callers, so it can't be modified.
+     *
+     * @param object the variant object
+     * @return the unmodifiable variant data, or {@code null} if the variant has no cDNA notation
+     */
+    @Nullable
+    private Map<String, Object> toJSON(@Nonnull final BaseObject object)
+    {
+        if (StringUtils.isBlank(object.getStringValue(CDNA_KEY))) {
+            return null;
+        }
+        final Map<String, Object> result = new LinkedHashMap<>();
+        for (final String name : object.getPropertyList()) {
+            final BaseProperty<?> property = (BaseProperty<?>) object.getField(name);
+            final Object value = property == null ? null : property.getValue();
+            final String key = GENE_KEY.equals(name) ? JSON_GENE_KEY : name;
+            if (value instanceof Collection) {
+                final List<String> values = new ArrayList<>();
+                for (final Object item : (Collection<?>) value) {
+                    if (item != null && StringUtils.isNotBlank(item.toString())) {
+                        values.add(item.toString());
+                    }
+                }
+                if (!values.isEmpty()) {
+                    result.put(key, Collections.unmodifiableList(values));
+                }
+            } else if (value != null && StringUtils.isNotBlank(value.toString())) {
+                result.put(key, value.toString());
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    @Nonnull
+    private static Map<String, Object> find(@Nonnull final Map<String, Map<String, Object>> variants,
+        @Nullable final String gene, @Nullable final String cdna)
+    {
+        final Map<String, Object> variant = variants.get(key(gene, cdna));
+        return variant == null ? Collections.emptyMap() : variant;
+    }
+
+    @Nonnull
+    private static String key(@Nullable final String gene, @Nullable final String cdna)
+    {
+        return StringUtils.defaultString(gene) + '\n' + StringUtils.defaultString(cdna);
+    }
+}
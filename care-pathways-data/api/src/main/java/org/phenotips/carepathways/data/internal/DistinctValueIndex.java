@@ -0,0 +1,318 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An in-memory index of the distinct values entered in free text fields, answering case-insensitive substring searches
+ * without scanning every value. Values are grouped in scopes, such as the data class and parent term they were
+ * entered for, and are contributed by sources, such as the objects of one class in one document; replacing the values
+ * of a source is idempotent, so the index can be fed both from the database and from document events.
+ * <p>
+ * Each distinct value is indexed by all its substrings of up to {@value #GRAM} characters. Inputs of up to that many
+ * characters are answered by a single lookup; longer inputs only check the values containing their rarest n-gram.
+ * Values are compared case-insensitively, and shown as they were first entered. Results are ranked by the number of
+ * times each value was entered, then alphabetically. An empty input reads the best values directly from the ranking.
+ * When more than {@value #MAX_CANDIDATES} values contain the rarest n-gram of the input, the ranking is walked best
+ * first instead, until enough matches are found, so that results are always the best ranked matches.
+ * </p>
+ * <p>
+ * The index is thread-safe: searches run concurrently, while updates are exclusive.
+ * </p>
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class DistinctValueIndex
+{
+    /** The length of the longest indexed substrings. */
+    static final int GRAM = 3;
+
+    /** The number of candidate values above which a search walks the ranking instead of checking each candidate. */
+    static final int MAX_CANDIDATES = 10000;
+
+    /** Ranks the most used values first, then alphabetically. */
+    private static final Comparator<Value> RANKING =
+        Comparator.comparingInt((Value value) -> value.count).reversed().thenComparing(value -> value.folded);
+
+    /** Guards all the data of the index. */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** The values contributed by each source, by scope. */
+    private final Map<String, Map<String, List<String>>> sources = new HashMap<>();
+
+    /** The indexed values, by scope. */
+    private final Map<String, Scope> scopes = new HashMap<>();
+
+    /**
+     * Replaces all the values contributed by a source.
+     *
+     * @param source identifies the contributor of the values, for example a document and a data class
+     * @param valuesByScope the values now contributed by the source, by scope; blank values are ignored, and repeated
+     *            values count as many times as they appear
+     */
+    public void replace(@Nonnull final String source, @Nonnull final Map<String, ? extends Collection<String>>
+        valuesByScope)
+    {
+        final Map<String, List<String>> contributed = new HashMap<>();
+        valuesByScope.forEach((scope, values) -> {
+            final List<String> kept = new ArrayList<>();
+            for (final String value : values) {
+                if (value != null && !value.trim().isEmpty()) {
+                    kept.add(value);
+                }
+            }
+            if (!kept.isEmpty()) {
+                contributed.put(scope, kept);
+            }
+        });
+        this.lock.writeLock().lock();
+        try {
+            final Map<String, List<String>> previous = this.sources.remove(source);
+            if (previous != null) {
+                previous.forEach((scope, values) -> {
+                    final Scope indexed = this.scopes.get(scope);
+                    values.forEach(indexed::remove);
+                    if (indexed.isEmpty()) {
+                        this.scopes.remove(scope);
+                    }
+                });
+            }
+            if (!contributed.isEmpty()) {
+                this.sources.put(source, contributed);
+                contributed.forEach((scope, values) -> values.forEach(
+                    this.scopes.computeIfAbsent(scope, key -> new Scope())::add));
+            }
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the distinct values of a scope containing the input, case-insensitively.
+     *
+     * @param scope the searched scope
+     * @param input the text to look for, an empty or {@code null} input matches all the values
+     * @param limit the maximum number of values to return
+     * @return the matching values as they were first entered, the most used first
+     */
+    @Nonnull
+    public List<String> suggest(@Nonnull final String scope, @Nullable final String input, final int limit)
+    {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        this.lock.readLock().lock();
+        try {
+            final Scope indexed = this.scopes.get(scope);
+            return indexed == null ? Collections.emptyList() : indexed.suggest(fold(input), limit);
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of distinct values of a scope.
+     *
+     * @param scope the scope
+     * @return the number of distinct values, {@code 0} if nothing was entered in the scope
+     */
+    public int size(@Nonnull final String scope)
+    {
+        this.lock.readLock().lock();
+        try {
+            final Scope indexed = this.scopes.get(scope);
+            return indexed == null ? 0 : indexed.values.size();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    @Nonnull
+    private static String fold(@Nullable final String value)
+    {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * The distinct values of one scope, and their n-grams.
+     */
+    private static final class Scope
+    {
+        /** The distinct values, by case-folded value. */
+        private final Map<String, Value> values = new HashMap<>();
+
+        /** The case-folded values containing each n-gram. */
+        private final Map<String, Set<String>> grams = new HashMap<>();
+
+        /** The distinct values, the best ranked first; a value is taken out while its count changes. */
+        private final Set<Value> ranked = new TreeSet<>(RANKING);
+
+        void add(@Nonnull final String value)
+        {
+            final String folded = fold(value);
+            Value indexed = this.values.get(folded);
+            if (indexed == null) {
+                indexed = new Value(value, folded);
+                this.values.put(folded, indexed);
+                for (final String gram : grams(folded)) {
+                    this.grams.computeIfAbsent(gram, key -> new HashSet<>()).add(folded);
+                }
+            } else {
+                this.ranked.remove(indexed);
+            }
+            indexed.count++;
+            this.ranked.add(indexed);
+        }
+
+        void remove(@Nonnull final String value)
+        {
+            final String folded = fold(value);
+            final Value indexed = this.values.get(folded);
+            if (indexed == null) {
+                return;
+            }
+            this.ranked.remove(indexed);
+            if (--indexed.count > 0) {
+                this.ranked.add(indexed);
+                return;
+            }
+            this.values.remove(folded);
+            for (final String gram : grams(folded)) {
+                final Set<String> containing = this.grams.get(gram);
+                containing.remove(folded);
+                if (containing.isEmpty()) {
+                    this.grams.remove(gram);
+                }
+            }
+        }
+
+        boolean isEmpty()
+        {
+            return this.values.isEmpty();
+        }
+
+        @Nonnull
+        List<String> suggest(@Nonnull final String input, final int limit)
+        {
+            final List<String> result = new ArrayList<>();
+            final Collection<String> candidates = input.isEmpty() ? null : candidates(input);
+            if (candidates == null || candidates.size() > MAX_CANDIDATES) {
+                // Common inputs match many values, so the best ones are found early in the ranking.
+                for (final Value value : this.ranked) {
+                    if (result.size() >= limit) {
+                        break;
+                    }
+                    if (value.folded.contains(input)) {
+                        result.add(value.display);
+                    }
+                }
+                return result;
+            }
+            // Keep only the best results, in a heap whose head is the worst of them.
+            final PriorityQueue<Value> best = new PriorityQueue<>(limit + 1, RANKING.reversed());
+            for (final String candidate : candidates) {
+                if (input.length() > GRAM && !candidate.contains(input)) {
+                    continue;
+                }
+                best.add(this.values.get(candidate));
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+            final List<Value> found = new ArrayList<>(best);
+            found.sort(RANKING);
+            found.forEach(value -> result.add(value.display));
+            return result;
+        }
+
+        /**
+         * Returns the values that may contain a non-empty input: those containing it for short inputs, or those
+         * containing its rarest n-gram for longer inputs.
+         */
+        @Nonnull
+        private Collection<String> candidates(@Nonnull final String input)
+        {
+            if (input.length() <= GRAM) {
+                final Set<String> containing = this.grams.get(input);
+                return containing == null ? Collections.emptySet() : containing;
+            }
+            Collection<String> rarest = null;
+            for (int i = 0; i + GRAM <= input.length(); i++) {
+                final Set<String> containing = this.grams.get(input.substring(i, i + GRAM));
+                if (containing == null) {
+                    return Collections.emptySet();
+                }
+                if (rarest == null || containing.size() < rarest.size()) {
+                    rarest = containing;
+                }
+            }
+            return rarest;
+        }
+
+        @Nonnull
+        private static Set<String> grams(@Nonnull final String folded)
+        {
+            final Set<String> result = new HashSet<>();
+            for (int start = 0; start < folded.length(); start++) {
+                for (int end = start + 1; end <= Math.min(folded.length(), start + GRAM); end++) {
+                    result.add(folded.substring(start, end));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A distinct value, with the number of times it was entered.
+     */
+    private static final class Value
+    {
+        /** The value as it was first entered. */
+        private final String display;
+
+        /** The case-folded value. */
+        private final String folded;
+
+        /** The number of times the value is currently entered. */
+        private int count;
+
+        Value(@Nonnull final String display, @Nonnull final String folded)
+        {
+            this.display = display;
+            this.folded = folded;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.internal;
+
+import org.phenotips.carepathways.data.PatientVariantIndex;
+
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Discards the indexed variants of a patient when its record is updated or deleted.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Named("care-pathways-patient-variants")
+@Singleton
+public class PatientVariantIndexInvalidator extends AbstractEventListener
+{
+    @Inject
+    private PatientVariantIndex index;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public PatientVariantIndexInvalidator()
+    {
+        super("care-pathways-patient-variants", new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(final Event event, final Object source, final Object data)
+    {
+        this.index.invalidate(((XWikiDocument) source).getDocumentReference());
+    }
+}
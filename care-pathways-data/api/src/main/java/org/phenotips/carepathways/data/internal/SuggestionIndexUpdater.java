@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.internal;
+
+import org.phenotips.carepathways.data.DatumSuggestionIndex;
+import org.phenotips.carepathways.data.FieldValueSuggestionIndex;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Keeps the {@link DatumSuggestionIndex} and the {@link FieldValueSuggestionIndex} up to date as documents are created,
+ * updated and deleted.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Named("care-pathways-suggestions")
+@Singleton
+public class SuggestionIndexUpdater extends AbstractEventListener
+{
+    @Inject
+    private DatumSuggestionIndex datumIndex;
+
+    @Inject
+    private FieldValueSuggestionIndex fieldValueIndex;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public SuggestionIndexUpdater()
+    {
+        super("care-pathways-suggestions", new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(final Event event, final Object source, final Object data)
+    {
+        // The source of a deletion event is the new, empty, version of the document, so its values are removed
+        final XWikiDocument document = (XWikiDocument) source;
+        this.datumIndex.update(document);
+        this.fieldValueIndex.update(document);
+    }
+}
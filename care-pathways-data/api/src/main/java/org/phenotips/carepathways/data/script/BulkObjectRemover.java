@@ -0,0 +1,213 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.script;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.xpn.xwiki.api.Document;
+import com.xpn.xwiki.api.Object;
+import com.xpn.xwiki.api.Property;
+
+/**
+ * Removes care pathways objects from a document in bulk, with their dependent objects: the variants of removed genes,
+ * and the data associated with removed variants. The objects of each class are indexed by the values of a property
+ * the first time they are looked up by it, so cascading deletes read each class once instead of once per removed
+ * parent. The document is not saved.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+final class BulkObjectRemover
+{
+    /** The gene property, holding the gene identifier in both gene and variant objects. */
+    private static final String GENE = "gene";
+
+    /** The property of associated data objects holding the number of their variant object. */
+    private static final String VARIANT = "variant";
+
+    /** The property holding the family member the data is about. */
+    private static final String SUBJECT = "subject";
+
+    /** The property holding the status of a gene or a variant. */
+    private static final String STATUS = "status";
+
+    /** The document to remove objects from. */
+    private final Document document;
+
+    /** The objects of a class by the value of a property, by class and property. */
+    private final Map<String, Map<String, List<Object>>> indexes = new HashMap<>();
+
+    /** The class and number of the objects removed so far. */
+    private final Set<String> removed = new HashSet<>();
+
+    /**
+     * Simple constructor.
+     *
+     * @param document the document to remove objects from
+     */
+    BulkObjectRemover(@Nonnull final Document document)
+    {
+        this.document = document;
+    }
+
+    /**
+     * Removes the genes of a class, with their variants and the data associated with these variants.
+     *
+     * @param subject only remove the genes and variants of this family member, all of them if blank
+     * @param geneStatus only remove the genes with this status, all of them if blank
+     * @param geneClass the class of the gene objects
+     * @param variantStatus only remove the variants with this status, all of them if blank
+     * @param variantClass the class of the variant objects
+     * @param associatedDataClass the class of the data associated with variants, none if blank
+     */
+    void clearGenes(@Nullable final String subject, @Nullable final String geneStatus, @Nonnull final String geneClass,
+        @Nullable final String variantStatus, @Nonnull final String variantClass,
+        @Nullable final String associatedDataClass)
+    {
+        final List<Object> genes =
+            StringUtils.isEmpty(geneStatus) ? find(geneClass) : find(geneClass, STATUS, geneStatus);
+        for (final Object gene : genes) {
+            if (matches(gene, SUBJECT, subject)) {
+                removeGene(gene, subject, variantStatus, variantClass, associatedDataClass);
+            }
+        }
+    }
+
+    /**
+     * Removes a gene, with its variants and the data associated with these variants.
+     *
+     * @param gene the gene object
+     * @param subject only remove the variants of this family member, all of them if blank
+     * @param variantStatus only remove the variants with this status, all of them if blank
+     * @param variantClass the class of the variant objects
+     * @param associatedDataClass the class of the data associated with variants, none if blank
+     */
+    void removeGene(@Nonnull final Object gene, @Nullable final String subject, @Nullable final String variantStatus,
+        @Nonnull final String variantClass, @Nullable final String associatedDataClass)
+    {
+        final List<Object> variants = find(variantClass, GENE, value(gene, GENE));
+        remove(gene);
+        for (final Object variant : variants) {
+            if (matches(variant, SUBJECT, subject) && matches(variant, STATUS, variantStatus)) {
+                if (StringUtils.isNotEmpty(associatedDataClass)) {
+                    remove(find(associatedDataClass, VARIANT, String.valueOf(variant.getNumber())));
+                }
+                remove(variant);
+            }
+        }
+    }
+
+    /**
+     * Removes the objects of a class whose property has one of the given values.
+     *
+     * @param className the class of the removed objects
+     * @param property the checked property
+     * @param values the values of the removed objects
+     */
+    void clear(@Nonnull final String className, @Nonnull final String property,
+        @Nonnull final Collection<String> values)
+    {
+        for (final String value : values) {
+            remove(find(className, property, value));
+        }
+    }
+
+    /**
+     * Removes objects, unless already removed.
+     *
+     * @param objects the objects to remove, {@code null} items are ignored
+     */
+    void remove(@Nonnull final Collection<Object> objects)
+    {
+        for (final Object object : objects) {
+            if (object != null) {
+                remove(object);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of objects removed so far.
+     *
+     * @return the number of removed objects
+     */
+    int getRemovedCount()
+    {
+        return this.removed.size();
+    }
+
+    private void remove(@Nonnull final Object object)
+    {
+        if (this.removed.add(object.getxWikiClass().getName() + '_' + object.getNumber())) {
+            this.document.removeObject(object);
+        }
+    }
+
+    @Nonnull
+    private List<Object> find(@Nonnull final String className)
+    {
+        final List<Object> objects = this.document.getObjects(className);
+        return objects == null ? Collections.emptyList() : objects;
+    }
+
+    @Nonnull
+    private List<Object> find(@Nonnull final String className, @Nonnull final String property,
+        @Nonnull final String value)
+    {
+        final Map<String, List<Object>> index = this.indexes.computeIfAbsent(className + '\n' + property, key -> {
+            final Map<String, List<Object>> result = new HashMap<>();
+            for (final Object object : find(className)) {
+                if (object != null) {
+                    result.computeIfAbsent(value(object, property), v -> new ArrayList<>()).add(object);
+                }
+            }
+            return result;
+        });
+        final List<Object> objects = index.get(value);
+        return objects == null ? Collections.emptyList() : objects;
+    }
+
+    private static boolean matches(@Nonnull final Object object, @Nonnull final String property,
+        @Nullable final String expected)
+    {
+        return StringUtils.isEmpty(expected) || expected.equals(value(object, property));
+    }
+
+    /**
+     * Returns the value of a property as a string, like {@code "$!{object.getProperty(property).value}"} would.
+     */
+    @Nonnull
+    private static String value(@Nonnull final Object object, @Nonnull final String property)
+    {
+        final Property field = object.getProperty(property);
+        final java.lang.Object value = field == null ? null : field.getValue();
+        return value == null ? "" : value.toString();
+    }
+}
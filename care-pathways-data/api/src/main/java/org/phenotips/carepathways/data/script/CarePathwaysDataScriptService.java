@@ -0,0 +1,294 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.script;
+
+import org.phenotips.carepathways.data.DatumSuggestionIndex;
+import org.phenotips.carepathways.data.FieldValueSuggestionIndex;
+import org.phenotips.carepathways.data.PatientVariantIndex;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import com.xpn.xwiki.api.Document;
+
+/**
+ * Gives scripts fast access to the care pathways data entered for patients.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+@Component
+@Named("carePathwaysData")
+@Singleton
+public class CarePathwaysDataScriptService implements ScriptService
+{
+    /** The number of suggestions returned when no limit is requested. */
+    private static final int DEFAULT_LIMIT = 20;
+
+    /** The key of each suggestion, as expected by the suggest widgets. */
+    private static final String NAME = "name";
+
+    /** The key of the gene symbol of a requested variant. */
+    private static final String GENE = "gene";
+
+    /** The key of the cDNA notation of a requested variant. */
+    private static final String CDNA = "cdna";
+
+    /** The space holding the patient records. */
+    private static final EntityReference PATIENTS_SPACE = new EntityReference("data", EntityType.SPACE);
+
+    @Inject
+    private DatumSuggestionIndex datumIndex;
+
+    @Inject
+    private FieldValueSuggestionIndex fieldValueIndex;
+
+    @Inject
+    private PatientVariantIndex variantIndex;
+
+    @Inject
+    @Named("current")
+    private DocumentReferenceResolver<EntityReference> resolver;
+
+    @Inject
+    private ContextualAuthorizationManager access;
+
+    /**
+     * Suggests the free text values already entered for a care pathways term.
+     *
+     * @param dataClass the name of the class storing the data, for example {@code PhenoTips.PatientCarePreTestClass}
+     * @param parent the parent term of the data
+     * @param input the text typed so far
+     * @return up to 20 distinct matching values, the most used first, each as a {@code name: value} map
+     * @see #suggestDatum(String, String, String, int)
+     */
+    public List<Map<String, String>> suggestDatum(String dataClass, String parent, String input)
+    {
+        return suggestDatum(dataClass, parent, input, DEFAULT_LIMIT);
+    }
+
+    /**
+     * Suggests the free text values already entered for a care pathways term.
+     *
+     * @param dataClass the name of the class storing the data, for example {@code PhenoTips.PatientCarePreTestClass}
+     * @param parent the parent term of the data
+     * @param input the text typed so far
+     * @param limit the maximum number of suggestions to return
+     * @return the distinct matching values, the most used first, each as a {@code name: value} map; may be empty
+     */
+    public List<Map<String, String>> suggestDatum(String dataClass, String parent, String input, int limit)
+    {
+        if (dataClass == null || parent == null) {
+            return Collections.emptyList();
+        }
+        return toSuggestions(this.datumIndex.suggest(dataClass, parent, input, limit));
+    }
+
+    /**
+     * Suggests the values already entered in the {@code laboratory} or {@code location} field of a data class.
+     *
+     * @param dataClass the name of the class storing the data, for example {@code PhenoTips.PatientCarePreTestClass}
+     * @param field the searched field, either {@code laboratory} or {@code location}
+     * @param input the text typed so far
+     * @return up to 20 distinct matching values, the most used first, each as a {@code name: value} map
+     * @see #suggestFieldValue(String, String, String, int)
+     */
+    public List<Map<String, String>> suggestFieldValue(String dataClass, String field, String input)
+    {
+        return suggestFieldValue(dataClass, field, input, DEFAULT_LIMIT);
+    }
+
+    /**
+     * Suggests the values already entered in the {@code laboratory} or {@code location} field of a data class.
+     *
+     * @param dataClass the name of the class storing the data, for example {@code PhenoTips.PatientCarePreTestClass}
+     * @param field the searched field, either {@code laboratory} or {@code location}
+     * @param input the text typed so far
+     * @param limit the maximum number of suggestions to return
+     * @return the distinct matching values, the most used first, each as a {@code name: value} map; empty for other
+     *         fields
+     */
+    public List<Map<String, String>> suggestFieldValue(String dataClass, String field, String input, int limit)
+    {
+        if (dataClass == null || field == null) {
+            return Collections.emptyList();
+        }
+        return toSuggestions(this.fieldValueIndex.suggest(dataClass, field, input, limit));
+    }
+
+    /**
+     * Finds a variant entered for a patient, without loading the rest of the patient data.
+     *
+     * @param patientId the identifier of the patient record, for example {@code P0000001}
+     * @param gene the gene symbol of the variant
+     * @param cdna the cDNA notation of the variant
+     * @return the first matching variant, in the format of the {@code variants} section of the patient JSON; an empty
+     *         map if the patient has no such variant, or {@code null} if the patient doesn't exist or can't be viewed
+     *         by the current user
+     */
+    public Map<String, Object> getPatientVariant(String patientId, String gene, String cdna)
+    {
+        if (StringUtils.isAnyBlank(patientId, gene, cdna)) {
+            return null;
+        }
+        final DocumentReference patient = getPatient(patientId);
+        return patient == null ? null : this.variantIndex.getVariant(patient, gene, cdna);
+    }
+
+    /**
+     * Finds several variants entered for a patient at once, without loading the rest of the patient data.
+     *
+     * @param patientId the identifier of the patient record, for example {@code P0000001}
+     * @param variants the requested variants, each as a map holding its {@code gene} symbol and {@code cdna} notation
+     * @return the first variant matching each request, in the same order, in the format of the {@code variants}
+     *         section of the patient JSON, with an empty map for each request matching no variant; or {@code null} if
+     *         the patient doesn't exist or can't be viewed by the current user
+     */
+    public List<Map<String, Object>> getPatientVariants(String patientId, List<Map<String, String>> variants)
+    {
+        if (StringUtils.isBlank(patientId) || variants == null) {
+            return null;
+        }
+        final DocumentReference patient = getPatient(patientId);
+        if (patient == null) {
+            return null;
+        }
+        final List<Pair<String, String>> requested = new ArrayList<>(variants.size());
+        for (final Map<String, String> variant : variants) {
+            requested.add(Pair.of(variant.get(GENE), variant.get(CDNA)));
+        }
+        return this.variantIndex.getVariants(patient, requested);
+    }
+
+    private DocumentReference getPatient(String patientId)
+    {
+        final DocumentReference patient =
+            this.resolver.resolve(new EntityReference(patientId, EntityType.DOCUMENT, PATIENTS_SPACE));
+        return this.access.hasAccess(Right.VIEW, patient) ? patient : null;
+    }
+
+    /**
+     * Removes the genes of a patient record, with their variants and the data associated with these variants, reading
+     * each class once. The document isn't saved.
+     *
+     * @param document the patient record
+     * @param subject only remove the genes and variants of this family member, all of them if blank
+     * @param geneStatus only remove the genes with this status, all of them if blank
+     * @param geneClass the class of the gene objects
+     * @param variantStatus only remove the variants with this status, all of them if blank
+     * @param variantClass the class of the variant objects
+     * @param associatedDataClass the class of the data associated with variants, none if blank
+     * @return the number of removed objects
+     */
+    public int clearGenes(Document document, String subject, String geneStatus, String geneClass,
+        String variantStatus, String variantClass, String associatedDataClass)
+    {
+        if (document == null || StringUtils.isAnyBlank(geneClass, variantClass)) {
+            return 0;
+        }
+        final BulkObjectRemover remover = new BulkObjectRemover(document);
+        remover.clearGenes(subject, geneStatus, geneClass, variantStatus, variantClass, associatedDataClass);
+        return remover.getRemovedCount();
+    }
+
+    /**
+     * Removes a gene from a patient record, with its variants and the data associated with these variants. The
+     * document isn't saved.
+     *
+     * @param document the patient record
+     * @param gene the gene object
+     * @param subject only remove the variants of this family member, all of them if blank
+     * @param variantStatus only remove the variants with this status, all of them if blank
+     * @param variantClass the class of the variant objects
+     * @param associatedDataClass the class of the data associated with variants, none if blank
+     * @return the number of removed objects
+     */
+    public int removeGene(Document document, com.xpn.xwiki.api.Object gene, String subject, String variantStatus,
+        String variantClass, String associatedDataClass)
+    {
+        if (document == null || gene == null || StringUtils.isBlank(variantClass)) {
+            return 0;
+        }
+        final BulkObjectRemover remover = new BulkObjectRemover(document);
+        remover.removeGene(gene, subject, variantStatus, variantClass, associatedDataClass);
+        return remover.getRemovedCount();
+    }
+
+    /**
+     * Removes the objects of a class whose property has one of the given values, reading the class once. The document
+     * isn't saved.
+     *
+     * @param document the patient record
+     * @param className the class of the removed objects
+     * @param property the checked property, for example {@code question}
+     * @param values the values of the removed objects
+     * @return the number of removed objects
+     */
+    public int clearObjects(Document document, String className, String property, Collection<String> values)
+    {
+        if (document == null || StringUtils.isAnyBlank(className, property) || values == null) {
+            return 0;
+        }
+        final BulkObjectRemover remover = new BulkObjectRemover(document);
+        remover.clear(className, property, values);
+        return remover.getRemovedCount();
+    }
+
+    /**
+     * Removes objects from a document. The document isn't saved.
+     *
+     * @param document the document holding the objects
+     * @param objects the objects to remove
+     * @return the number of removed objects
+     */
+    public int removeObjects(Document document, Collection<com.xpn.xwiki.api.Object> objects)
+    {
+        if (document == null || objects == null) {
+            return 0;
+        }
+        final BulkObjectRemover remover = new BulkObjectRemover(document);
+        remover.remove(objects);
+        return remover.getRemovedCount();
+    }
+
+    private List<Map<String, String>> toSuggestions(List<String> values)
+    {
+        final List<Map<String, String>> result = new ArrayList<>(values.size());
+        values.forEach(value -> result.add(Collections.singletonMap(NAME, value)));
+        return result;
+    }
+}
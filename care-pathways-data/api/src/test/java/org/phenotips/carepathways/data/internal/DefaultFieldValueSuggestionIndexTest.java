@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.internal;
+
+import org.phenotips.carepathways.data.FieldValueSuggestionIndex;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link DefaultFieldValueSuggestionIndex} class.
+ */
+public class DefaultFieldValueSuggestionIndexTest
+{
+    private static final String TEST_CLASS = "PhenoTips.PatientCarePreTestClass";
+
+    private QueryManager queryManager;
+
+    private FieldValueSuggestionIndex index;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.queryManager = mock(QueryManager.class);
+        final Query query = mock(Query.class);
+        when(this.queryManager.createQuery(anyString(), eq(Query.HQL))).thenReturn(query);
+        final List<Object[]> rows = Arrays.asList(
+            new Object[] { "data.P0000001", TEST_CLASS, FieldValueSuggestionIndex.LABORATORY, "GeneDx" },
+            new Object[] { "data.P0000002", TEST_CLASS, FieldValueSuggestionIndex.LABORATORY, "Invitae" },
+            new Object[] { "data.P0000003", TEST_CLASS, FieldValueSuggestionIndex.LABORATORY, "invitae" },
+            new Object[] { "data.P0000003", TEST_CLASS, FieldValueSuggestionIndex.LOCATION, "SickKids" });
+        when(query.<Object[]>execute()).thenReturn(rows);
+        this.index = new DefaultFieldValueSuggestionIndex();
+        ReflectionUtils.setFieldValue(this.index, "logger", mock(Logger.class));
+        ReflectionUtils.setFieldValue(this.index, "queryManager", this.queryManager);
+    }
+
+    @Test
+    public void valuesAreRankedByUseAndLoadedOnce() throws Exception
+    {
+        Assert.assertEquals(Arrays.asList("Invitae", "GeneDx"),
+            this.index.suggest(TEST_CLASS, FieldValueSuggestionIndex.LABORATORY, "", 20));
+        Assert.assertEquals(Collections.singletonList("SickKids"),
+            this.index.suggest(TEST_CLASS, FieldValueSuggestionIndex.LOCATION, "kid", 20));
+        verify(this.queryManager, times(1)).createQuery(anyString(), anyString());
+    }
+
+    @Test
+    public void otherFieldsAreNotSuggested()
+    {
+        Assert.assertEquals(Collections.emptyList(), this.index.suggest(TEST_CLASS, "datum", "", 20));
+    }
+
+    @Test
+    public void savedDocumentsReplaceTheirValues()
+    {
+        this.index.suggest(TEST_CLASS, FieldValueSuggestionIndex.LABORATORY, "", 20);
+        final BaseObject object = mock(BaseObject.class);
+        when(object.getClassName()).thenReturn(TEST_CLASS);
+        when(object.getStringValue(FieldValueSuggestionIndex.LABORATORY)).thenReturn("Blueprint Genetics");
+        final XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getFullName()).thenReturn("data.P0000001");
+        when(document.getXObjects()).thenReturn(
+            Collections.singletonMap(mock(DocumentReference.class), Collections.singletonList(object)));
+
+        this.index.update(document);
+
+        Assert.assertEquals(Arrays.asList("Invitae", "Blueprint Genetics"),
+            this.index.suggest(TEST_CLASS, FieldValueSuggestionIndex.LABORATORY, "", 20));
+    }
+}
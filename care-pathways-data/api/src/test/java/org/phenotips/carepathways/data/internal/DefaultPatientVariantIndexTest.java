@@ -0,0 +1,171 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.internal;
+
+import org.phenotips.carepathways.data.PatientVariantIndex;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.BaseProperty;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link DefaultPatientVariantIndex} class.
+ */
+public class DefaultPatientVariantIndexTest
+{
+    private final DocumentReference patient = mock(DocumentReference.class);
+
+    private XWiki xwiki;
+
+    private XWikiContext context;
+
+    private PatientVariantIndex index;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        this.context = mock(XWikiContext.class);
+        this.xwiki = mock(XWiki.class);
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+        final XWikiDocument document = mock(XWikiDocument.class);
+        when(this.xwiki.getDocument(this.patient, this.context)).thenReturn(document);
+        when(document.getXObject(any(EntityReference.class))).thenReturn(mock(BaseObject.class));
+        when(document.getXObjects(any(EntityReference.class))).thenReturn(Arrays.asList(
+            variant("BRCA1", "c.68_69delAG", "pathogenic", Arrays.asList("rare", "predicted")),
+            null,
+            variant("BRCA1", "c.68_69delAG", "benign", Collections.emptyList()),
+            variant("BRCA2", "", "benign", Collections.emptyList())));
+
+        this.index = new DefaultPatientVariantIndex();
+        ReflectionUtils.setFieldValue(this.index, "logger", mock(Logger.class));
+        final Provider<XWikiContext> provider = () -> this.context;
+        ReflectionUtils.setFieldValue(this.index, "xcontextProvider", provider);
+    }
+
+    @Test
+    public void variantsAreFoundByGeneAndCdnaInThePatientJsonFormat()
+    {
+        final Map<String, Object> variant = this.index.getVariant(this.patient, "BRCA1", "c.68_69delAG");
+        Assert.assertEquals("BRCA1", variant.get("gene"));
+        Assert.assertFalse(variant.containsKey("genesymbol"));
+        Assert.assertEquals("pathogenic", variant.get("interpretation"));
+        Assert.assertEquals(Arrays.asList("rare", "predicted"), variant.get("evidence"));
+        Assert.assertEquals(Collections.emptyMap(), this.index.getVariant(this.patient, "BRCA2", ""));
+        Assert.assertEquals(Collections.emptyMap(), this.index.getVariant(this.patient, "BRCA1", "c.5266dupC"));
+    }
+
+    @Test
+    public void indexedVariantsCannotBeModified()
+    {
+        final Map<String, Object> variant = this.index.getVariant(this.patient, "BRCA1", "c.68_69delAG");
+        try {
+            variant.put("interpretation", "benign");
+            Assert.fail("Indexed variants should be unmodifiable");
+        } catch (final UnsupportedOperationException ex) {
+            // Expected
+        }
+        try {
+            ((List<?>) variant.get("evidence")).clear();
+            Assert.fail("Indexed variant values should be unmodifiable");
+        } catch (final UnsupportedOperationException ex) {
+            // Expected
+        }
+        Assert.assertEquals("pathogenic",
+            this.index.getVariant(this.patient, "BRCA1", "c.68_69delAG").get("interpretation"));
+    }
+
+    @Test
+    public void batchesOfVariantsAreResolvedInOrderWithOneRead() throws Exception
+    {
+        final List<Map<String, Object>> variants = this.index.getVariants(this.patient,
+            Arrays.asList(Pair.of("BRCA2", "c.5946delT"), Pair.of("BRCA1", "c.68_69delAG")));
+        Assert.assertEquals(2, variants.size());
+        Assert.assertEquals(Collections.emptyMap(), variants.get(0));
+        Assert.assertEquals("pathogenic", variants.get(1).get("interpretation"));
+        verify(this.xwiki, times(1)).getDocument(this.patient, this.context);
+    }
+
+    @Test
+    public void variantsAreReadOnceUntilThePatientChanges() throws Exception
+    {
+        this.index.getVariant(this.patient, "BRCA1", "c.68_69delAG");
+        this.index.getVariant(this.patient, "BRCA1", "c.5266dupC");
+        verify(this.xwiki, times(1)).getDocument(this.patient, this.context);
+
+        this.index.invalidate(this.patient);
+        this.index.getVariant(this.patient, "BRCA1", "c.68_69delAG");
+        verify(this.xwiki, times(2)).getDocument(this.patient, this.context);
+    }
+
+    @Test
+    public void documentsThatAreNotPatientsHaveNoVariants() throws Exception
+    {
+        final DocumentReference other = mock(DocumentReference.class);
+        final XWikiDocument document = mock(XWikiDocument.class);
+        when(this.xwiki.getDocument(other, this.context)).thenReturn(document);
+        Assert.assertNull(this.index.getVariant(other, "BRCA1", "c.68_69delAG"));
+        Assert.assertNull(this.index.getVariants(other, Collections.singletonList(Pair.of("BRCA1", "c.68_69delAG"))));
+    }
+
+    private BaseObject variant(String gene, String cdna, String interpretation, Object evidence)
+    {
+        final BaseObject result = mock(BaseObject.class);
+        when(result.getStringValue("cdna")).thenReturn(cdna);
+        when(result.getPropertyList())
+            .thenReturn(new LinkedHashSet<>(Arrays.asList("genesymbol", "cdna", "interpretation", "evidence")));
+        setProperty(result, "genesymbol", gene);
+        setProperty(result, "cdna", cdna);
+        setProperty(result, "interpretation", interpretation);
+        setProperty(result, "evidence", evidence);
+        return result;
+    }
+
+    private void setProperty(BaseObject object, String name, Object value)
+    {
+        final BaseProperty<?> property = mock(BaseProperty.class);
+        when(property.getValue()).thenReturn(value);
+        when(object.getField(name)).thenReturn(property);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link DistinctValueIndex} class.
+ */
+public class DistinctValueIndexTest
+{
+    private static final String SCOPE = "PhenoTips.PatientCarePreTestClass\nCP:1";
+
+    private DistinctValueIndex index;
+
+    @Before
+    public void setUp()
+    {
+        this.index = new DistinctValueIndex();
+        final Map<String, List<String>> values = new HashMap<>();
+        values.put(SCOPE, Arrays.asList("Karyotype", "karyotype", "Microarray", "Exome sequencing", " "));
+        values.put("other", Collections.singletonList("Genome sequencing"));
+        this.index.replace("data.P0000001/PhenoTips.PatientCarePreTestClass", values);
+        this.index.replace("data.P0000002/PhenoTips.PatientCarePreTestClass",
+            Collections.singletonMap(SCOPE, Collections.singletonList("Exome Sequencing")));
+    }
+
+    @Test
+    public void valuesAreDistinctCaseInsensitivelyAndRankedByUse()
+    {
+        Assert.assertEquals(Arrays.asList("Exome sequencing", "Karyotype", "Microarray"),
+            this.index.suggest(SCOPE, "", 20));
+        Assert.assertEquals(3, this.index.size(SCOPE));
+    }
+
+    @Test
+    public void shortAndLongInputsMatchAnywhereInTheValue()
+    {
+        Assert.assertEquals(Arrays.asList("Exome sequencing", "Karyotype"), this.index.suggest(SCOPE, "E", 20));
+        Assert.assertEquals(Collections.singletonList("Karyotype"), this.index.suggest(SCOPE, "ARYO", 20));
+        Assert.assertEquals(Collections.singletonList("Exome sequencing"),
+            this.index.suggest(SCOPE, "me seq", 20));
+        Assert.assertEquals(Collections.emptyList(), this.index.suggest(SCOPE, "array test", 20));
+    }
+
+    @Test
+    public void resultsAreLimited()
+    {
+        Assert.assertEquals(Collections.singletonList("Exome sequencing"), this.index.suggest(SCOPE, "", 1));
+        Assert.assertEquals(Collections.emptyList(), this.index.suggest(SCOPE, "", 0));
+    }
+
+    @Test
+    public void largeScopesReturnTheBestRankedMatches()
+    {
+        final List<String> values = new ArrayList<>();
+        for (int i = 0; i < DistinctValueIndex.MAX_CANDIDATES + 10; i++) {
+            values.add("Panel " + i);
+        }
+        values.add("Panel 42");
+        values.add("panel 42");
+        this.index.replace("data.P0000003/PhenoTips.PatientCarePreTestClass", Collections.singletonMap(SCOPE, values));
+
+        Assert.assertEquals(Arrays.asList("Panel 42", "Exome sequencing"), this.index.suggest(SCOPE, "", 2));
+        Assert.assertEquals(Arrays.asList("Panel 42", "Panel 0"), this.index.suggest(SCOPE, "pan", 2));
+        Assert.assertEquals(Arrays.asList("Panel 42", "Panel 0"), this.index.suggest(SCOPE, "PANEL", 2));
+        Assert.assertEquals(Arrays.asList("Panel 42", "Panel 4"), this.index.suggest(SCOPE, "panel 4", 2));
+    }
+
+    @Test
+    public void scopesAreSeparate()
+    {
+        Assert.assertEquals(Collections.singletonList("Genome sequencing"), this.index.suggest("other", "seq", 20));
+        Assert.assertEquals(Collections.emptyList(), this.index.suggest("missing", "", 20));
+    }
+
+    @Test
+    public void replacingASourceRemovesItsPreviousValues()
+    {
+        this.index.replace("data.P0000001/PhenoTips.PatientCarePreTestClass",
+            Collections.singletonMap(SCOPE, Collections.singletonList("Microarray")));
+        Assert.assertEquals(Arrays.asList("Exome sequencing", "Microarray"), this.index.suggest(SCOPE, "", 20));
+        Assert.assertEquals(Collections.emptyList(), this.index.suggest("other", "", 20));
+
+        this.index.replace("data.P0000002/PhenoTips.PatientCarePreTestClass", Collections.emptyMap());
+        Assert.assertEquals(Collections.singletonList("Microarray"), this.index.suggest(SCOPE, "", 20));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.carepathways.data.script;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.xpn.xwiki.api.Class;
+import com.xpn.xwiki.api.Document;
+import com.xpn.xwiki.api.Object;
+import com.xpn.xwiki.api.Property;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link BulkObjectRemover} class.
+ */
+public class BulkObjectRemoverTest
+{
+    private static final String GENE_CLASS = "PhenoTips.CPGeneClass";
+
+    private static final String VARIANT_CLASS = "PhenoTips.CPGeneVariantClass";
+
+    private static final String DATA_CLASS = "PhenoTips.PatientCarePostTestClass";
+
+    private static final String PROBAND = "proband";
+
+    private static final String MOTHER = "mother";
+
+    private static final String PATHOGENIC = "pathogenic";
+
+    private Document document;
+
+    private Object brca1;
+
+    private Object tp53;
+
+    private Object brca1ProbandVariant;
+
+    private Object brca1MotherVariant;
+
+    private Object tp53Variant;
+
+    private Object brca1ProbandData;
+
+    private Object tp53Data;
+
+    private Object brca1MotherData;
+
+    private BulkObjectRemover remover;
+
+    @Before
+    public void setUp()
+    {
+        this.brca1 = object(GENE_CLASS, 0, "gene", "BRCA1", "status", "candidate", "subject", PROBAND);
+        this.tp53 = object(GENE_CLASS, 1, "gene", "TP53", "status", "solved", "subject", MOTHER);
+        this.brca1ProbandVariant = object(VARIANT_CLASS, 0, "gene", "BRCA1", "status", PATHOGENIC, "subject", PROBAND);
+        this.brca1MotherVariant = object(VARIANT_CLASS, 1, "gene", "BRCA1", "status", "benign", "subject", MOTHER);
+        this.tp53Variant = object(VARIANT_CLASS, 2, "gene", "TP53", "status", PATHOGENIC, "subject", MOTHER);
+        this.brca1ProbandData = object(DATA_CLASS, 0, "variant", "0", "question", "CP:10");
+        this.tp53Data = object(DATA_CLASS, 1, "variant", "2", "question", "CP:11");
+        this.brca1MotherData = object(DATA_CLASS, 2, "variant", "1", "question", "CP:10");
+
+        this.document = mock(Document.class);
+        when(this.document.getObjects(GENE_CLASS)).thenReturn(new Vector<>(Arrays.asList(this.brca1, this.tp53)));
+        when(this.document.getObjects(VARIANT_CLASS)).thenReturn(
+            new Vector<>(Arrays.asList(this.brca1ProbandVariant, this.brca1MotherVariant, this.tp53Variant)));
+        when(this.document.getObjects(DATA_CLASS)).thenReturn(
+            new Vector<>(Arrays.asList(this.brca1ProbandData, null, this.tp53Data, this.brca1MotherData)));
+        this.remover = new BulkObjectRemover(this.document);
+    }
+
+    @Test
+    public void clearGenesWithoutStatusOrSubjectRemovesAllGenesAndTheirData()
+    {
+        this.remover.clearGenes(null, null, GENE_CLASS, null, VARIANT_CLASS, DATA_CLASS);
+
+        Assert.assertEquals(8, this.remover.getRemovedCount());
+        for (final Object removed : Arrays.asList(this.brca1, this.tp53, this.brca1ProbandVariant,
+            this.brca1MotherVariant, this.tp53Variant, this.brca1ProbandData, this.tp53Data, this.brca1MotherData)) {
+            verify(this.document).removeObject(removed);
+        }
+    }
+
+    @Test
+    public void clearGenesWithStatusAndSubjectOnlyRemovesMatchingGenesAndVariants()
+    {
+        this.remover.clearGenes(PROBAND, "candidate", GENE_CLASS, null, VARIANT_CLASS, "");
+
+        Assert.assertEquals(2, this.remover.getRemovedCount());
+        verify(this.document).removeObject(this.brca1);
+        verify(this.document).removeObject(this.brca1ProbandVariant);
+        verify(this.document, never()).removeObject(this.tp53);
+        verify(this.document, never()).removeObject(this.brca1MotherVariant);
+        verify(this.document, never()).removeObject(this.brca1ProbandData);
+    }
+
+    @Test
+    public void clearGenesWithUnknownStatusRemovesNothing()
+    {
+        this.remover.clearGenes(null, "rejected", GENE_CLASS, null, VARIANT_CLASS, DATA_CLASS);
+
+        Assert.assertEquals(0, this.remover.getRemovedCount());
+        verify(this.document, never()).removeObject(any(Object.class));
+    }
+
+    @Test
+    public void removeGeneRemovesItsVariantsAndTheirAssociatedData()
+    {
+        this.remover.removeGene(this.tp53, null, PATHOGENIC, VARIANT_CLASS, DATA_CLASS);
+
+        Assert.assertEquals(3, this.remover.getRemovedCount());
+        verify(this.document).removeObject(this.tp53);
+        verify(this.document).removeObject(this.tp53Variant);
+        verify(this.document).removeObject(this.tp53Data);
+        verify(this.document, never()).removeObject(this.brca1ProbandData);
+        verify(this.document, never()).removeObject(this.brca1MotherVariant);
+    }
+
+    @Test
+    public void clearByQuestionRemovesEachMatchingObjectOnce()
+    {
+        this.remover.clear(DATA_CLASS, "question", Arrays.asList("CP:10", "CP:10", "CP:12"));
+
+        Assert.assertEquals(2, this.remover.getRemovedCount());
+        verify(this.document, times(1)).removeObject(this.brca1ProbandData);
+        verify(this.document, times(1)).removeObject(this.brca1MotherData);
+        verify(this.document, never()).removeObject(this.tp53Data);
+        verify(this.document, times(1)).getObjects(DATA_CLASS);
+    }
+
+    private static Object object(final String className, final int number, final String... properties)
+    {
+        final Object object = mock(Object.class);
+        final Class xclass = mock(Class.class);
+        when(xclass.getName()).thenReturn(className);
+        when(object.getxWikiClass()).thenReturn(xclass);
+        when(object.getNumber()).thenReturn(number);
+        for (int i = 0; i + 1 < properties.length; i += 2) {
+            final Property property = mock(Property.class);
+            when(property.getValue()).thenReturn(properties[i + 1]);
+            when(object.getProperty(properties[i])).thenReturn(property);
+        }
+        return object;
+    }
+}
@@ -19,7 +19,7 @@ package org.phenotips.vocabulary.internal.solr;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -58,8 +58,28 @@ class CPNode
     {
         this.id = id;
         this.name = name;
-        this.isA = new HashSet<>();
-        this.termCategory = new HashSet<>();
+        this.isA = new LinkedHashSet<>();
+        this.termCategory = new LinkedHashSet<>();
+    }
+
+    /**
+     * Merges the data collected for the same term from different source rows, without modifying either node. The
+     * identifiers are kept in the order they were found, {@code first}'s before {@code second}'s, so merging the
+     * partial nodes of consecutive rows in any grouping yields the same result as merging them one row at a time.
+     *
+     * @param first the data found first; its name is kept
+     * @param second the data found later, for a node with the same identifier as {@code first}
+     * @return a new {@link CPNode} with the parents and ancestors of both nodes
+     */
+    @Nonnull
+    static CPNode merge(@Nonnull final CPNode first, @Nonnull final CPNode second)
+    {
+        final CPNode result = new CPNode(first.id, first.name);
+        result.isA.addAll(first.isA);
+        result.isA.addAll(second.isA);
+        result.termCategory.addAll(first.termCategory);
+        result.termCategory.addAll(second.termCategory);
+        return result;
     }
 
     /**
@@ -150,8 +170,8 @@ class CPNode
     void setParents(@Nullable final Set<String> parents)
     {
         this.isA = CollectionUtils.isEmpty(parents)
-                ? new HashSet<>()
-                : parents.stream().filter(StringUtils::isNotBlank).collect(Collectors.toSet());
+                ? new LinkedHashSet<>()
+                : parents.stream().filter(StringUtils::isNotBlank).collect(Collectors.toCollection(LinkedHashSet::new));
     }
 
     /**
@@ -174,7 +194,8 @@ class CPNode
     void setAncestors(@Nullable final Set<String> ancestors)
     {
         this.termCategory = CollectionUtils.isEmpty(ancestors)
-                ? new HashSet<>()
-                : ancestors.stream().filter(StringUtils::isNotBlank).collect(Collectors.toSet());
+                ? new LinkedHashSet<>()
+                : ancestors.stream().filter(StringUtils::isNotBlank)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
     }
 }
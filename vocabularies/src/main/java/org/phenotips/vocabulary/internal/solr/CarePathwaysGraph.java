@@ -0,0 +1,721 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An immutable, in-memory view of the care pathways hierarchy, built from the {@link CPNode nodes} parsed from the
+ * vocabulary source. Allows answering term, parent, child and ancestor lookups without querying the Solr index.
+ * <p>
+ * Terms are numbered in name order, and the hierarchy is stored as arrays of these ordinals, so that lists sorted by
+ * name are simply sorted arrays. Identifiers are converted to ordinals by a binary search over the sorted identifiers,
+ * so the graph itself keeps no per-term collections or boxed values. The transitive closure of the hierarchy is kept as
+ * one bitset of descendants per term with children, so that checking if a term is under another term is a single bit
+ * test.
+ * </p>
+ * <p>
+ * The {@link VocabularyTerm terms} returned by lookups are created once, since the prefix index needs all of them.
+ * They share the canonical identifier strings held by the graph, and see the children of each term as a view over the
+ * ordinal arrays.
+ * </p>
+ */
+final class CarePathwaysGraph
+{
+    /** A graph without any terms, used when no data is available. */
+    static final CarePathwaysGraph EMPTY = new CarePathwaysGraph(Collections.emptyMap(),
+        (id, name, termParents, termAncestors, termChildren, depth) -> null);
+
+    /** Shared by all the terms without parents, children or ancestors. */
+    private static final int[] NONE = new int[0];
+
+    /** Orders nodes by name, mirroring the {@code nameSort asc} ordering used in Solr queries. */
+    private static final Comparator<CPNode> NAME_ORDER =
+        Comparator.comparing(CPNode::getName).thenComparing(CPNode::getId);
+
+    /** The identifiers of all the terms, in natural order, for binary searches. */
+    private final String[] sortedIds;
+
+    /** The ordinal of the term at the same position in {@link #sortedIds}. */
+    private final int[] sortedOrdinals;
+
+    /** The identifier of each term, by ordinal; the canonical instance of each identifier string. */
+    private final String[] ids;
+
+    /** The vocabulary terms, by ordinal. */
+    private final VocabularyTerm[] terms;
+
+    /** The parents of each term, as sorted ordinals, i.e. ordered by name. */
+    private final int[][] parents;
+
+    /** The children of each term, as sorted ordinals, i.e. ordered by name. */
+    private final int[][] children;
+
+    /** The ancestors of each term, as ordinals ordered from the root towards the term. */
+    private final int[][] ancestors;
+
+    /** The number of descendants of each term. */
+    private final int[] descendantCounts;
+
+    /** The ordinals of all the descendants of each term, {@code null} for leaves. */
+    private final BitSet[] descendants;
+
+    /** The depth of each term, {@code 0} for the roots of the hierarchy. */
+    private final int[] depths;
+
+    /** The prefix index over the term names, for typeahead suggestions. */
+    private final TermPrefixTrie prefixIndex;
+
+    /** The version of the vocabulary data, may be {@code null} if unknown. */
+    private final String version;
+
+    /** The serialized graph, built the first time it is requested. */
+    private volatile CarePathwaysSnapshot snapshot;
+
+    /** The listed descendants of the terms searched as categories, built the first time each one is requested. */
+    private final Map<String, String> descendantIds = new ConcurrentHashMap<>();
+
+    /**
+     * Builds the graph from the provided {@code nodes}, without version information.
+     *
+     * @param nodes the parsed vocabulary nodes, indexed by their identifier
+     * @param termFactory creates the {@link VocabularyTerm} to be returned by lookups for each node
+     * @see #CarePathwaysGraph(Map, TermFactory, String)
+     */
+    CarePathwaysGraph(@Nonnull final Map<String, CPNode> nodes, @Nonnull final TermFactory termFactory)
+    {
+        this(nodes, termFactory, null);
+    }
+
+    /**
+     * Builds the graph from the provided {@code nodes}. The nodes are not retained, so later changes to them will not
+     * be reflected in the graph.
+     *
+     * @param nodes the parsed vocabulary nodes, indexed by their identifier
+     * @param termFactory creates the {@link VocabularyTerm} to be returned by lookups for each node
+     * @param version the version of the vocabulary data, as stored in the index
+     */
+    CarePathwaysGraph(@Nonnull final Map<String, CPNode> nodes, @Nonnull final TermFactory termFactory,
+        @Nullable final String version)
+    {
+        this.version = version;
+        final CPNode[] sorted = nodes.values().toArray(new CPNode[0]);
+        Arrays.sort(sorted, NAME_ORDER);
+        final int size = sorted.length;
+        this.ids = new String[size];
+        for (int i = 0; i < size; i++) {
+            this.ids[i] = sorted[i].getId();
+        }
+        this.sortedOrdinals = IntStream.range(0, size).boxed()
+            .sorted(Comparator.comparing(i -> this.ids[i]))
+            .mapToInt(Integer::intValue)
+            .toArray();
+        this.sortedIds = new String[size];
+        for (int i = 0; i < size; i++) {
+            this.sortedIds[i] = this.ids[this.sortedOrdinals[i]];
+        }
+
+        this.parents = new int[size][];
+        this.ancestors = new int[size][];
+        final int[] childCounts = new int[size];
+        for (int i = 0; i < size; i++) {
+            this.parents[i] = toOrdinals(sorted[i].getParents());
+            this.ancestors[i] = toOrdinals(sorted[i].getAncestors());
+            for (final int parent : this.parents[i]) {
+                childCounts[parent]++;
+            }
+        }
+        // Terms are visited in name order, so each list of children ends up sorted by name.
+        this.children = new int[size][];
+        for (int i = 0; i < size; i++) {
+            this.children[i] = childCounts[i] == 0 ? NONE : new int[childCounts[i]];
+            childCounts[i] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            for (final int parent : this.parents[i]) {
+                this.children[parent][childCounts[parent]++] = i;
+            }
+        }
+
+        // Parents have fewer ancestors than their children, so their depth is always known by the time it is needed.
+        final int[] depthOrder = IntStream.range(0, size).boxed()
+            .sorted(Comparator.<Integer>comparingInt(i -> this.ancestors[i].length).thenComparingInt(i -> i))
+            .mapToInt(Integer::intValue)
+            .toArray();
+        this.depths = new int[size];
+        final int[] ranks = new int[size];
+        for (int rank = 0; rank < size; rank++) {
+            final int term = depthOrder[rank];
+            ranks[term] = rank;
+            int depth = 0;
+            for (final int parent : this.parents[term]) {
+                depth = Math.max(depth, this.depths[parent] + 1);
+            }
+            this.depths[term] = depth;
+        }
+
+        this.descendantCounts = new int[size];
+        this.descendants = new BitSet[size];
+        for (int i = 0; i < size; i++) {
+            this.ancestors[i] = sortByRank(this.ancestors[i], ranks, depthOrder);
+            for (final int ancestor : this.ancestors[i]) {
+                this.descendantCounts[ancestor]++;
+                if (this.descendants[ancestor] == null) {
+                    this.descendants[ancestor] = new BitSet(size);
+                }
+                this.descendants[ancestor].set(i);
+            }
+        }
+
+        this.terms = new VocabularyTerm[size];
+        for (int i = 0; i < size; i++) {
+            this.terms[i] = termFactory.create(this.ids[i], sorted[i].getName(), intern(sorted[i].getParents()),
+                intern(sorted[i].getAncestors()), new OrdinalList<>(this.children[i], this.ids), this.depths[i]);
+        }
+        this.prefixIndex = new TermPrefixTrie(Arrays.asList(this.terms));
+    }
+
+    /**
+     * Returns true iff the graph holds no terms.
+     *
+     * @return true iff the graph is empty
+     */
+    boolean isEmpty()
+    {
+        return this.terms.length == 0;
+    }
+
+    /**
+     * Returns the number of terms in the graph.
+     *
+     * @return the number of terms
+     */
+    int size()
+    {
+        return this.terms.length;
+    }
+
+    /**
+     * Returns the term with the given identifier.
+     *
+     * @param id the term identifier
+     * @return the {@link VocabularyTerm}, or {@code null} if no such term exists
+     */
+    @Nullable
+    VocabularyTerm getTerm(@Nullable final String id)
+    {
+        final int ordinal = ordinal(id);
+        return ordinal < 0 ? null : this.terms[ordinal];
+    }
+
+    /**
+     * Returns the direct parents of the term with the given identifier, ordered by name.
+     *
+     * @param id the term identifier
+     * @return an unmodifiable list of parent terms, empty if the term is a root or does not exist
+     */
+    @Nonnull
+    List<VocabularyTerm> getParents(@Nullable final String id)
+    {
+        return terms(this.parents, id);
+    }
+
+    /**
+     * Returns the direct children of the term with the given identifier, ordered by name.
+     *
+     * @param id the term identifier
+     * @return an unmodifiable list of child terms, empty if the term is a leaf or does not exist
+     */
+    @Nonnull
+    List<VocabularyTerm> getChildren(@Nullable final String id)
+    {
+        return terms(this.children, id);
+    }
+
+    /**
+     * Returns all the ancestors of the term with the given identifier, ordered from the root towards the term.
+     *
+     * @param id the term identifier
+     * @return an unmodifiable list of ancestor terms, empty if the term is a root or does not exist
+     */
+    @Nonnull
+    List<VocabularyTerm> getAncestors(@Nullable final String id)
+    {
+        return terms(this.ancestors, id);
+    }
+
+    /**
+     * Checks if a term is a descendant of another term.
+     *
+     * @param id the identifier of the potential descendant
+     * @param ancestorId the identifier of the potential ancestor
+     * @return true iff {@code ancestorId} is one of the ancestors of {@code id}
+     */
+    boolean hasAncestor(@Nullable final String id, @Nullable final String ancestorId)
+    {
+        final BitSet branch = branch(ancestorId);
+        final int ordinal = ordinal(id);
+        return branch != null && ordinal >= 0 && branch.get(ordinal);
+    }
+
+    /**
+     * Finds the deepest term that is an ancestor of, or the same as, both given terms. Terms may have several parents,
+     * so the candidates are the common ancestors found through the precomputed closure, and the deepest one wins, with
+     * ties broken by name.
+     *
+     * @param id the identifier of the first term
+     * @param otherId the identifier of the second term
+     * @return the lowest common ancestor, or {@code null} if either term does not exist or they share no ancestor
+     */
+    @Nullable
+    VocabularyTerm getLowestCommonAncestor(@Nullable final String id, @Nullable final String otherId)
+    {
+        final int result = lowestCommonAncestor(ordinal(id), ordinal(otherId));
+        return result < 0 ? null : this.terms[result];
+    }
+
+    /**
+     * Returns a path from a root of the hierarchy down to the term with the given identifier, following at each step
+     * the deepest parent, so that the path is as long as the {@link #getDepth(String) depth} of the term.
+     *
+     * @param id the term identifier
+     * @return an unmodifiable list of terms, starting with a root and ending with the term itself, or an empty list if
+     *         the term does not exist
+     */
+    @Nonnull
+    List<VocabularyTerm> getRootPath(@Nullable final String id)
+    {
+        final int ordinal = ordinal(id);
+        if (ordinal < 0) {
+            return Collections.emptyList();
+        }
+        final int[] path = new int[this.depths[ordinal] + 1];
+        int term = ordinal;
+        for (int i = path.length - 1; i >= 0; i--) {
+            path[i] = term;
+            int next = -1;
+            for (final int parent : this.parents[term]) {
+                if (next < 0 || this.depths[parent] > this.depths[next]) {
+                    next = parent;
+                }
+            }
+            term = next;
+        }
+        return terms(path);
+    }
+
+    /**
+     * Returns a path between two terms going through their {@link #getLowestCommonAncestor lowest common ancestor}.
+     *
+     * @param fromId the identifier of the term the path starts from
+     * @param toId the identifier of the term the path leads to
+     * @return an unmodifiable list of terms, from {@code fromId} up to the common ancestor and down to {@code toId},
+     *         or an empty list if either term does not exist or they share no ancestor
+     */
+    @Nonnull
+    List<VocabularyTerm> getPath(@Nullable final String fromId, @Nullable final String toId)
+    {
+        final int from = ordinal(fromId);
+        final int to = ordinal(toId);
+        final int top = lowestCommonAncestor(from, to);
+        if (top < 0) {
+            return Collections.emptyList();
+        }
+        final int[] up = pathUp(from, top);
+        final int[] down = pathUp(to, top);
+        if (up == null || down == null) {
+            return Collections.emptyList();
+        }
+        final int[] path = Arrays.copyOf(up, up.length + down.length - 1);
+        for (int i = 0; i < down.length - 1; i++) {
+            path[up.length + i] = down[down.length - 2 - i];
+        }
+        return terms(path);
+    }
+
+    /**
+     * Returns a test for membership in the branch of the hierarchy under a term, i.e. a test equivalent to
+     * {@link #hasAncestor(String, String)} for a fixed ancestor, for filtering many candidates.
+     *
+     * @param ancestorId the identifier of the term at the top of the branch
+     * @return a predicate accepting the identifiers of the descendants of {@code ancestorId}, and nothing else
+     */
+    @Nonnull
+    Predicate<String> descendantsOf(@Nullable final String ancestorId)
+    {
+        final BitSet branch = branch(ancestorId);
+        if (branch == null) {
+            return id -> false;
+        }
+        return id -> {
+            final int ordinal = ordinal(id);
+            return ordinal >= 0 && branch.get(ordinal);
+        };
+    }
+
+    /**
+     * Lists the descendants of a term, for restricting Solr searches to the branch of the hierarchy under it, for
+     * example with a {@code {!terms f=id}} filter query.
+     *
+     * @param ancestorId the identifier of the term at the top of the branch
+     * @return the comma separated identifiers of the descendants of {@code ancestorId}, in name order, or an empty
+     *         string if the term is a leaf or does not exist
+     */
+    @Nonnull
+    String getDescendantIds(@Nullable final String ancestorId)
+    {
+        final BitSet branch = branch(ancestorId);
+        if (branch == null) {
+            return "";
+        }
+        return this.descendantIds.computeIfAbsent(ancestorId, id -> branch.stream()
+            .mapToObj(ordinal -> this.ids[ordinal])
+            .collect(Collectors.joining(",")));
+    }
+
+    /**
+     * Returns the prefix index over the names of the terms in this graph.
+     *
+     * @return the {@link TermPrefixTrie} for this graph
+     */
+    @Nonnull
+    TermPrefixTrie getPrefixIndex()
+    {
+        return this.prefixIndex;
+    }
+
+    /**
+     * Returns the version of the vocabulary data.
+     *
+     * @return the version stored in the index, or {@code null} if unknown
+     */
+    @Nullable
+    String getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Returns the compact serialization of this graph, built once and then reused for every request.
+     *
+     * @return the {@link CarePathwaysSnapshot} of this graph
+     */
+    @Nonnull
+    CarePathwaysSnapshot getSnapshot()
+    {
+        CarePathwaysSnapshot result = this.snapshot;
+        if (result == null) {
+            // Building the snapshot twice under contention is harmless, the results are identical.
+            result = new CarePathwaysSnapshot(this.version, Arrays.asList(this.terms), this::getParents);
+            this.snapshot = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of terms that have the term with the given identifier as an ancestor.
+     *
+     * @param id the term identifier
+     * @return the number of descendants, {@code 0} if the term is a leaf or does not exist
+     */
+    int countDescendants(@Nullable final String id)
+    {
+        final int ordinal = ordinal(id);
+        return ordinal < 0 ? 0 : this.descendantCounts[ordinal];
+    }
+
+    /**
+     * Returns the depth of the term with the given identifier, i.e. the length of the longest path from a root.
+     *
+     * @param id the term identifier
+     * @return the depth of the term, {@code 0} for roots, or {@code -1} if the term does not exist
+     */
+    int getDepth(@Nullable final String id)
+    {
+        final int ordinal = ordinal(id);
+        return ordinal < 0 ? -1 : this.depths[ordinal];
+    }
+
+    /**
+     * Collects the branch of the hierarchy starting at the term with the given identifier.
+     *
+     * @param rootId the identifier of the term at the top of the branch
+     * @return the {@link CarePathwaysSubtree}, with no children if the term is a leaf or does not exist
+     */
+    @Nonnull
+    CarePathwaysSubtree getSubtree(@Nonnull final String rootId)
+    {
+        final Map<String, List<VocabularyTerm>> subtreeChildren = new LinkedHashMap<>();
+        final Map<String, Integer> counts = new HashMap<>();
+        final int root = ordinal(rootId);
+        if (root < 0) {
+            subtreeChildren.put(rootId, Collections.emptyList());
+            counts.put(rootId, 0);
+            return new CarePathwaysSubtree(rootId, subtreeChildren, counts);
+        }
+        // Terms with several parents may be reached more than once.
+        final BitSet visited = new BitSet(this.terms.length);
+        final Deque<Integer> toVisit = new ArrayDeque<>();
+        toVisit.add(root);
+        visited.set(root);
+        while (!toVisit.isEmpty()) {
+            final int term = toVisit.poll();
+            subtreeChildren.put(this.ids[term], terms(this.children[term]));
+            counts.put(this.ids[term], this.descendantCounts[term]);
+            for (final int child : this.children[term]) {
+                if (!visited.get(child)) {
+                    visited.set(child);
+                    toVisit.add(child);
+                }
+            }
+        }
+        return new CarePathwaysSubtree(rootId, subtreeChildren, counts);
+    }
+
+    /**
+     * Returns the ordinal of the term with the given identifier.
+     *
+     * @param id the term identifier
+     * @return the ordinal of the term, or {@code -1} if no such term exists
+     */
+    private int ordinal(@Nullable final String id)
+    {
+        if (id == null) {
+            return -1;
+        }
+        final int position = Arrays.binarySearch(this.sortedIds, id);
+        return position < 0 ? -1 : this.sortedOrdinals[position];
+    }
+
+    /**
+     * Finds the deepest common ancestor of two terms, a term counting as its own ancestor.
+     *
+     * @param first the ordinal of the first term, may be negative
+     * @param second the ordinal of the second term, may be negative
+     * @return the ordinal of the lowest common ancestor, or {@code -1} if there is none
+     */
+    private int lowestCommonAncestor(final int first, final int second)
+    {
+        if (first < 0 || second < 0) {
+            return -1;
+        }
+        if (isSameOrAncestor(first, second)) {
+            return first;
+        }
+        int result = -1;
+        for (final int ancestor : this.ancestors[first]) {
+            if (isSameOrAncestor(ancestor, second) && (result < 0 || this.depths[ancestor] > this.depths[result]
+                || this.depths[ancestor] == this.depths[result] && ancestor < result)) {
+                result = ancestor;
+            }
+        }
+        return result;
+    }
+
+    private boolean isSameOrAncestor(final int ancestor, final int term)
+    {
+        return ancestor == term || this.descendants[ancestor] != null && this.descendants[ancestor].get(term);
+    }
+
+    /**
+     * Walks up from a term to one of its ancestors, following at each step the first parent, by name, that is still in
+     * the branch of the ancestor.
+     *
+     * @param term the ordinal of the term to start from
+     * @param ancestor the ordinal of the term to stop at, the same as or an ancestor of {@code term}
+     * @return the ordinals on the path, starting with {@code term} and ending with {@code ancestor}, or {@code null} if
+     *         {@code ancestor} cannot be reached through the parent links
+     */
+    @Nullable
+    private int[] pathUp(final int term, final int ancestor)
+    {
+        final int[] result = new int[this.depths[term] - this.depths[ancestor] + 1];
+        int size = 0;
+        int current = term;
+        result[size++] = current;
+        while (current != ancestor) {
+            int next = -1;
+            for (final int parent : this.parents[current]) {
+                if (isSameOrAncestor(ancestor, parent)) {
+                    next = parent;
+                    break;
+                }
+            }
+            // The ancestors listed in the source may disagree with its parent links.
+            if (next < 0 || size == result.length) {
+                return null;
+            }
+            current = next;
+            result[size++] = current;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Returns the descendants of the term with the given identifier.
+     *
+     * @param id the term identifier
+     * @return the ordinals of the descendants, or {@code null} if the term is a leaf or does not exist
+     */
+    @Nullable
+    private BitSet branch(@Nullable final String id)
+    {
+        final int ordinal = ordinal(id);
+        return ordinal < 0 ? null : this.descendants[ordinal];
+    }
+
+    @Nonnull
+    private List<VocabularyTerm> terms(@Nonnull final int[][] index, @Nullable final String id)
+    {
+        final int ordinal = ordinal(id);
+        return ordinal < 0 ? Collections.emptyList() : terms(index[ordinal]);
+    }
+
+    @Nonnull
+    private List<VocabularyTerm> terms(@Nonnull final int[] termOrdinals)
+    {
+        return termOrdinals.length == 0 ? Collections.emptyList() : new OrdinalList<>(termOrdinals, this.terms);
+    }
+
+    /**
+     * Converts identifiers to the ordinals of the known terms, ignoring identifiers missing from the graph.
+     *
+     * @param termIds the identifiers to convert
+     * @return the sorted ordinals of the known terms
+     */
+    @Nonnull
+    private int[] toOrdinals(@Nonnull final Collection<String> termIds)
+    {
+        final int[] result = termIds.stream().mapToInt(this::ordinal).filter(ordinal -> ordinal >= 0).sorted()
+            .toArray();
+        return result.length == 0 ? NONE : result;
+    }
+
+    /**
+     * Reorders ordinals from the root towards the leaves, i.e. by number of ancestors, then by name.
+     *
+     * @param termOrdinals the ordinals to reorder
+     * @param ranks the position of each term in {@code depthOrder}
+     * @param depthOrder all the ordinals, ordered by number of ancestors, then by name
+     * @return the reordered ordinals
+     */
+    @Nonnull
+    private static int[] sortByRank(@Nonnull final int[] termOrdinals, @Nonnull final int[] ranks,
+        @Nonnull final int[] depthOrder)
+    {
+        if (termOrdinals.length < 2) {
+            return termOrdinals;
+        }
+        return Arrays.stream(termOrdinals).map(ordinal -> ranks[ordinal]).sorted().map(rank -> depthOrder[rank])
+            .toArray();
+    }
+
+    /**
+     * Replaces the identifiers of known terms with their canonical instance, so that the terms built for the graph
+     * don't keep their own copy of each identifier.
+     *
+     * @param termIds the identifiers to replace, in their original order
+     * @return a fixed-size list with the canonical identifiers, in the same order
+     */
+    @Nonnull
+    private List<String> intern(@Nonnull final Collection<String> termIds)
+    {
+        if (termIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(termIds.stream().map(id -> {
+            final int ordinal = ordinal(id);
+            return ordinal < 0 ? id : this.ids[ordinal];
+        }).toArray(String[]::new));
+    }
+
+    /**
+     * An unmodifiable view of the elements of an array, selected by their ordinals.
+     *
+     * @param <T> the type of the elements
+     */
+    private static final class OrdinalList<T> extends AbstractList<T> implements RandomAccess
+    {
+        /** The ordinals of the elements in the list. */
+        private final int[] ordinals;
+
+        /** All the elements, by ordinal. */
+        private final T[] elements;
+
+        OrdinalList(@Nonnull final int[] ordinals, @Nonnull final T[] elements)
+        {
+            this.ordinals = ordinals;
+            this.elements = elements;
+        }
+
+        @Override
+        public T get(final int index)
+        {
+            return this.elements[this.ordinals[index]];
+        }
+
+        @Override
+        public int size()
+        {
+            return this.ordinals.length;
+        }
+    }
+
+    /**
+     * Creates the {@link VocabularyTerm} returned by lookups for a node, once its position in the graph is known. The
+     * lists are not copied by the graph, and must not be modified.
+     */
+    @FunctionalInterface
+    interface TermFactory
+    {
+        /**
+         * Creates the term with the given data.
+         *
+         * @param id the canonical identifier of the term
+         * @param name the name of the term
+         * @param parents the identifiers of the direct parents of the term, as listed in the source
+         * @param ancestors the identifiers of all the ancestors of the term, as listed in the source
+         * @param children the identifiers of the direct children of the term, ordered by name
+         * @param depth the depth of the term in the hierarchy, {@code 0} for roots
+         * @return the {@link VocabularyTerm} for the term
+         */
+        VocabularyTerm create(@Nonnull String id, @Nonnull String name, @Nonnull List<String> parents,
+            @Nonnull List<String> ancestors, @Nonnull List<String> children, int depth);
+    }
+}
@@ -19,30 +19,36 @@ package org.phenotips.vocabulary.internal.solr;
 
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import org.xwiki.cache.CacheManager;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
@@ -51,13 +57,12 @@ import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.SolrQuery.ORDER;
-import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.solr.common.params.DisMaxParams;
-import org.apache.solr.common.params.SpellingParams;
-import org.joda.time.DateTime;
-import org.joda.time.format.ISODateTimeFormat;
 
 /**
  * Provides access to the Care Pathways care and tests vocabulary. The vocabulary prefix is {@code CP}.
@@ -85,6 +90,12 @@ public class CarePathwaysOntology extends AbstractCSVSolrVocabulary
     /** A colon. */
     private static final String COLON = ":";
 
+    /** The root of the test-related terms. */
+    private static final String TEST_ROOT = STANDARD_PREFIX + COLON + "1";
+
+    /** The root of the care-related terms. */
+    private static final String CARE_ROOT = STANDARD_PREFIX + COLON + "2";
+
     /** The filter for obtaining only the test-related terms. */
     private static final String DEFAULT_TEST_FILTER = TERM_CATEGORY + COLON + STANDARD_PREFIX + "\\:1";
 
@@ -100,6 +111,21 @@ public class CarePathwaysOntology extends AbstractCSVSolrVocabulary
     /** The label for the field storing parents for term. */
     private static final String IS_A = "is_a";
 
+    /** The label for the field storing the children of a term, sorted by name. */
+    private static final String CHILDREN = "children";
+
+    /** The label for the field storing the depth of a term in the hierarchy. */
+    private static final String DEPTH = "depth";
+
+    /** The label for the field marking terms without children. */
+    private static final String LEAF = "leaf";
+
+    /** The label for the field storing the vocabulary version. */
+    private static final String VERSION = "version";
+
+    /** The identifier of the document holding the vocabulary version. */
+    private static final String HEADER_INFO = "HEADER_INFO";
+
     /** The open character. */
     private static final String OPEN = "[";
 
@@ -109,8 +135,60 @@ public class CarePathwaysOntology extends AbstractCSVSolrVocabulary
     /** The list of supported categories for this vocabulary. */
     private static final Collection<String> SUPPORTED_CATEGORIES = Arrays.asList(TEST_CATEGORY, CARE_CATEGORY);
 
-    /** For determining if a query is a an id. */
-    private static final Pattern ID_PATTERN = Pattern.compile("^CP:[0-9]+$", Pattern.CASE_INSENSITIVE);
+    /** Matches filters restricting results to the descendants of one term, which can be resolved in memory. */
+    private static final Pattern CATEGORY_FILTER_PATTERN =
+        Pattern.compile("^\\s*" + TERM_CATEGORY + ":(?:\"CP:([0-9]+)\"|CP\\\\:([0-9]+))\\s*$");
+
+    /** Restricts searches to the listed identifiers, taken from the in-memory hierarchy. */
+    private static final String ID_FILTER_PREFIX = "{!terms f=" + ID + "}";
+
+    /**
+     * Identifies the layout of the indexed documents, and is part of the indexed version. It must be changed whenever
+     * the indexed fields change, so that existing indexes are rebuilt even if the source data is the same.
+     */
+    private static final String INDEX_FORMAT = "4";
+
+    /** How long to wait, in milliseconds, before reading the hierarchy from the index again after a failure. */
+    private static final long GRAPH_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    /** The minimum size, in bytes, of the source chunks parsed in parallel; smaller sources are parsed in one go. */
+    private static final int PARSE_CHUNK_SIZE = 1 << 16;
+
+    /** What distinguishes the searches of this vocabulary, for the shared {@link VocabularySearchEngine}. */
+    private static final VocabularySearchEngine.Settings SEARCH_SETTINGS = new VocabularySearchEngine.Settings(
+        SUPPORTED_CATEGORIES,
+        Pattern.compile("^CP:[0-9]+$", Pattern.CASE_INSENSITIVE),
+        INDEX_FORMAT,
+        new SearchProfile(SearchProfile.FULL, "name^20 nameSpell^36 text^3 textSpell^5",
+            "name^10 nameSpell^18 nameStub^5 text^1 textSpell^2 textStub^0.5", Integer.MAX_VALUE, true),
+        // Autocompletion only searches the names, returns a short list, and doesn't pay for a spellchecked retry.
+        new SearchProfile(SearchProfile.TYPEAHEAD, "name^20 nameSpell^36", "name^10 nameSpell^18 nameStub^5", 20,
+            false),
+        new SearchProfile(SearchProfile.ID, null, null, Integer.MAX_VALUE, false));
+
+    /** Provides the configuration of the search cache and of the number of documents sent to the index at once. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Creates the search results cache. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** Searches and reindexes this vocabulary, created when first needed. */
+    private final AtomicReference<VocabularySearchEngine> searchEngine = new AtomicReference<>();
+
+    /**
+     * The in-memory hierarchy, built on reindex or lazily from the index; {@code null} until first needed. An empty
+     * index is remembered as an empty graph until the next reindex.
+     */
+    private final AtomicReference<CarePathwaysGraph> graph = new AtomicReference<>();
+
+    /** The hierarchy built by the last {@link #load(URL)}, published only once the reindex succeeds. */
+    private volatile CarePathwaysGraph loadedGraph;
+
+    /** The time before which the hierarchy is not read from the index again, after failing to read it. */
+    private volatile long graphRetryTime;
 
     @Override
     public String getIdentifier()
@@ -158,38 +236,44 @@ public class CarePathwaysOntology extends AbstractCSVSolrVocabulary
         return StringUtils.EMPTY;
     }
 
-    @Nonnull
-    private InputStream getInputStream(@Nonnull final URL url) throws IOException
+    /**
+     * {@inheritDoc} Configured with the {@code phenotips.vocabularies.care-pathways.solrDocsPerBatch} property in
+     * {@code xwiki.properties}, which bounds the memory used while updating the index.
+     */
+    @Override
+    protected int getSolrDocsPerBatch()
     {
-        return url.openConnection().getInputStream();
+        return getSearchEngine().getDocsPerBatch();
     }
 
     @Override
-    protected int getSolrDocsPerBatch()
+    public synchronized int reindex(final String sourceUrl)
     {
-        return 500000;
+        try {
+            return getSearchEngine().reindex(sourceUrl, this::parse, () -> {
+                if (this.loadedGraph != null) {
+                    this.graph.set(this.loadedGraph);
+                }
+            });
+        } finally {
+            this.loadedGraph = null;
+            // If nothing was published, an index found empty or unreadable before is read again when next needed.
+            this.graph.compareAndSet(CarePathwaysGraph.EMPTY, null);
+            this.graphRetryTime = 0;
+        }
     }
 
+    /**
+     * {@inheritDoc} Reindexing doesn't use this method, the documents are streamed to the index as they are parsed
+     * instead of being collected first.
+     */
     @Override
     protected Collection<SolrInputDocument> load(@Nonnull final URL url)
     {
         // Try to read from the input file.
-        try (BufferedReader in = new BufferedReader(
-            new InputStreamReader(getInputStream(url), StandardCharsets.UTF_8))) {
-            final CSVFormat parser = CSVFormat.TDF;
-            final CSVParser parsed = parser.parse(in);
-            // Collect the parent and ancestor information for all nodes.
-            final Map<String, CPNode> nodes = StreamSupport.stream(parsed.spliterator(), false)
-                .map(this::getPathData)
-                .filter(Objects::nonNull)
-                .collect(Collectors.toMap(CPNode::getId, Function.identity(), this::mergeNodes));
-            // Transfer the data to solr documents
-            Collection<SolrInputDocument> result = nodes.values().stream()
-                .map(this::buildSolrDoc)
-                .collect(Collectors.toList());
-            // Add a "version" term with the version set to the current datetime
-            result.add(new SolrInputDocument("id", "HEADER_INFO", "version",
-                ISODateTimeFormat.dateTime().withZoneUTC().print(DateTime.now())));
+        try (VocabularySource source = getSearchEngine().getSource(url)) {
+            final Collection<SolrInputDocument> result = new ArrayList<>();
+            parse(source, result::add);
             return result;
         } catch (final Exception ex) {
             this.logger.warn("Failed to read/parse the Care Pathways source: {}", ex.getMessage());
@@ -197,6 +281,147 @@ public class CarePathwaysOntology extends AbstractCSVSolrVocabulary
         }
     }
 
+    /**
+     * Parses the source, passing the {@link VocabularyDelta#stamp stamped} documents to {@code consumer} as they are
+     * built. Only the hierarchy is kept in memory, since each term document needs the complete list of its children.
+     *
+     * @param source the source to parse
+     * @param consumer receives the documents to index
+     * @throws SolrServerException if {@code consumer} fails to send documents to the index
+     * @throws IOException if reading the source or communicating with the index fails
+     * @throws IllegalArgumentException if the source is malformed, in which case nothing is passed to {@code consumer}
+     */
+    private void parse(@Nonnull final VocabularySource source, @Nonnull final SolrDocumentConsumer consumer)
+        throws SolrServerException, IOException
+    {
+        // Collect the parent and ancestor information for all nodes.
+        final Map<String, CPNode> nodes = parseNodes(source, PARSE_CHUNK_SIZE);
+        // The version is derived from the content, so that reindexing the same data can be skipped.
+        final String version = source.getVersion();
+        // Keep the hierarchy in memory, to be published once the data is indexed.
+        final CarePathwaysGraph hierarchy = buildGraph(nodes, version);
+        this.loadedGraph = hierarchy;
+        // Transfer the data to solr documents, one at a time
+        for (final CPNode node : nodes.values()) {
+            consumer.accept(VocabularyDelta.stamp(buildSolrDoc(node, hierarchy)));
+        }
+        // Add a "version" term with the version set to the digest of the source
+        consumer.accept(VocabularyDelta.stamp(new SolrInputDocument(ID, HEADER_INFO, VERSION, version)));
+    }
+
+    @Override
+    public VocabularyTerm getTerm(@Nullable final String id)
+    {
+        if (StringUtils.isBlank(id)) {
+            return null;
+        }
+        final CarePathwaysGraph hierarchy = getGraph();
+        // Once the hierarchy is loaded it holds every term, otherwise fall back to querying the index.
+        return hierarchy.isEmpty() ? super.getTerm(id) : hierarchy.getTerm(id);
+    }
+
+    /**
+     * Returns the direct children of the term with the given identifier, sorted by name.
+     *
+     * @param id the identifier of the parent term
+     * @return an unmodifiable list of child terms, empty if the term has no children or does not exist
+     */
+    @Nonnull
+    public List<VocabularyTerm> getChildren(@Nullable final String id)
+    {
+        return getGraph().getChildren(id);
+    }
+
+    /**
+     * Returns the direct parents of the term with the given identifier, sorted by name.
+     *
+     * @param id the identifier of the child term
+     * @return an unmodifiable list of parent terms, empty if the term is a root or does not exist
+     */
+    @Nonnull
+    public List<VocabularyTerm> getParents(@Nullable final String id)
+    {
+        return getGraph().getParents(id);
+    }
+
+    /**
+     * Returns all the ancestors of the term with the given identifier, starting from the root of the hierarchy.
+     *
+     * @param id the identifier of the descendant term
+     * @return an unmodifiable list of ancestor terms, empty if the term is a root or does not exist
+     */
+    @Nonnull
+    public List<VocabularyTerm> getAncestors(@Nullable final String id)
+    {
+        return getGraph().getAncestors(id);
+    }
+
+    /**
+     * Returns the deepest term that is the same as, or an ancestor of, both given terms, i.e. the nearest pathway
+     * category they share.
+     *
+     * @param id the identifier of the first term
+     * @param otherId the identifier of the second term
+     * @return the lowest common ancestor, or {@code null} if either term does not exist or they share no ancestor
+     */
+    @Nullable
+    public VocabularyTerm getLowestCommonAncestor(@Nullable final String id, @Nullable final String otherId)
+    {
+        return getGraph().getLowestCommonAncestor(id, otherId);
+    }
+
+    /**
+     * Returns the path between two terms, going up from the first term to their
+     * {@link #getLowestCommonAncestor(String, String) lowest common ancestor} and down to the second term.
+     *
+     * @param fromId the identifier of the term the path starts from
+     * @param toId the identifier of the term the path leads to
+     * @return an unmodifiable list of terms, including both ends, empty if either term does not exist or they share no
+     *         ancestor
+     */
+    @Nonnull
+    public List<VocabularyTerm> getPath(@Nullable final String fromId, @Nullable final String toId)
+    {
+        return getGraph().getPath(fromId, toId);
+    }
+
+    /**
+     * Returns a path from the root of the hierarchy down to the given term, through its deepest parents.
+     *
+     * @param id the identifier of the term
+     * @return an unmodifiable list of terms, starting from a root and ending with the term itself, empty if the term
+     *         does not exist
+     */
+    @Nonnull
+    public List<VocabularyTerm> getRootPath(@Nullable final String id)
+    {
+        return getGraph().getRootPath(id);
+    }
+
+    /**
+     * Returns the depth of the given term in the hierarchy, i.e. the length of the longest path from the root.
+     *
+     * @param id the identifier of the term
+     * @return the depth of the term, {@code 0} for roots, or {@code -1} if the term does not exist
+     */
+    public int getDepth(@Nullable final String id)
+    {
+        return getGraph().getDepth(id);
+    }
+
+    /**
+     * Returns the whole branch of the hierarchy under the given term in one call, with the children of every term
+     * sorted by name. This replaces recursively searching for the children of each displayed term.
+     *
+     * @param rootId the identifier of the term at the top of the branch
+     * @return the {@link CarePathwaysSubtree} rooted at {@code rootId}, with no children if the term does not exist
+     */
+    @Nonnull
+    public CarePathwaysSubtree getSubtree(@Nonnull final String rootId)
+    {
+        return getGraph().getSubtree(rootId);
+    }
+
     @Override
     public List<VocabularyTerm> search(
         @Nullable String input,
@@ -216,114 +441,215 @@ public class CarePathwaysOntology extends AbstractCSVSolrVocabulary
         @Nullable final String sort,
         @Nullable final String customFilter)
     {
-        if (StringUtils.isBlank(input)) {
-            return Collections.emptyList();
-        }
-        // If the wrong category was provided for the vocabulary, want to provide an appropriate log message.
-        if (!getSupportedCategories().contains(category)) {
-            this.logger.warn("The provided category [{}] is not supported by the Care Pathways vocabulary.", category);
+        return search(input, category, maxResults, sort, customFilter, SearchProfile.FULL);
+    }
+
+    /**
+     * Searches the vocabulary with the given {@link SearchProfile search profile}, for example the cheaper
+     * {@link SearchProfile#TYPEAHEAD typeahead} profile for autocompletion.
+     *
+     * @param input the searched text
+     * @param category the searched category
+     * @param maxResults the maximum number of results, further capped by the profile
+     * @param sort the sorting order, may be blank
+     * @param customFilter the custom filter, may be blank
+     * @param profile the name of the search profile, {@link SearchProfile#FULL} if blank or unknown
+     * @return a list of {@link VocabularyTerm results} matching {@code input}
+     */
+    @Nonnull
+    public List<VocabularyTerm> search(
+        @Nullable final String input,
+        @Nonnull final String category,
+        final int maxResults,
+        @Nullable final String sort,
+        @Nullable final String customFilter,
+        @Nullable final String profile)
+    {
+        final VocabularySearchEngine engine = getSearchEngine();
+        if (!engine.accepts(input, category)) {
             return Collections.emptyList();
         }
-        final boolean isId = isId(input);
-        // If a custom filter is provided, use that.
-        final String filter = StringUtils.defaultIfBlank(customFilter, generateDefaultFilter(category, isId));
-        return search(input, maxResults, sort, filter, isId);
+        final SearchProfile searchProfile = engine.getProfile(profile);
+        final int rows = searchProfile.limit(maxResults);
+        return engine.search(getGraph().getVersion(), input, category, rows, sort, customFilter, searchProfile,
+            () -> performSearch(input, category, rows, sort, customFilter, searchProfile));
+    }
+
+    /**
+     * Returns the current version of a search profile, including the changes from the configuration and from
+     * {@link #setSearchProfile(SearchProfile)}.
+     *
+     * @param name the profile name, for example {@link SearchProfile#TYPEAHEAD}
+     * @return the {@link SearchProfile}, the {@link SearchProfile#FULL full} one if {@code name} is unknown
+     */
+    @Nonnull
+    public SearchProfile getSearchProfile(@Nullable final String name)
+    {
+        return getSearchEngine().getProfile(name);
     }
 
     /**
-     * Add query parameters and perform search.
+     * Replaces a search profile until the next restart, for tuning searches without changing the configuration.
      *
-     * @param input the submitted input
+     * @param profile the new version of the profile, usually derived from {@link #getSearchProfile(String)}
+     * @throws IllegalArgumentException if the vocabulary has no profile with the same name
+     */
+    public void setSearchProfile(@Nonnull final SearchProfile profile)
+    {
+        getSearchEngine().setProfile(profile);
+    }
+
+    /**
+     * Performs a search whose results are not cached, with valid arguments.
+     *
+     * @param input the searched text, not blank
+     * @param category the searched category, one of the {@link #getSupportedCategories() supported categories}
      * @param maxResults the maximum number of results to return
-     * @param sort the sorting order
-     * @param filter filters to apply to query
-     * @param isId true iff {@code input} is an ID
-     * @return a list of {@link VocabularyTerm results} matching {@code input}
+     * @param sort the sorting order, may be blank
+     * @param customFilter the custom filter, may be blank
+     * @param profile the search profile
+     * @return a list of {@link VocabularyTerm results} matching {@code input}, or {@code null} if the search failed
      */
-    private List<VocabularyTerm> search(
+    @Nullable
+    private List<VocabularyTerm> performSearch(
         @Nonnull final String input,
+        @Nonnull final String category,
         final int maxResults,
         @Nullable final String sort,
-        @Nullable final String filter,
-        final boolean isId)
-    {
-        final SolrQuery query = new SolrQuery();
-        // Add field query parameters if input is not an ID, then add global parameters.
-        addGlobalQueryParameters(!isId ? addFieldQueryParameters(query) : query);
-        // Add dynamic query parameters, and search.
-        return search(addDynamicQueryParameters(input, maxResults, sort, filter, isId, query)).stream()
-            .map(doc -> new SolrVocabularyTerm(doc, this))
-            .collect(Collectors.toList());
+        @Nullable final String customFilter,
+        @Nonnull final SearchProfile profile)
+    {
+        // Identifiers, or lists of identifiers, are looked up directly, without query parsing and spellchecking.
+        final VocabularySearchEngine engine = getSearchEngine();
+        final List<String> ids = engine.parseIds(input);
+        if (!ids.isEmpty() && StringUtils.isBlank(customFilter)) {
+            final List<String> requested =
+                TermResolution.distinctIds(ids.subList(0, Math.min(ids.size(), Math.max(0, maxResults))));
+            final Map<String, VocabularyTerm> found = findTerms(requested);
+            return found == null ? null : new TermResolution(requested, found).getTerms();
+        }
+        final boolean isId = engine.isId(input);
+        final String root = getFilterRoot(category, customFilter);
+        final CarePathwaysGraph hierarchy = getGraph();
+        // Category filters are resolved against the in-memory hierarchy, Solr only gets the matching identifiers.
+        if (!isId && root != null && !hierarchy.isEmpty()) {
+            final String descendants = hierarchy.getDescendantIds(root);
+            // No term can be in a category whose root is not in the vocabulary, or has no descendants.
+            if (descendants.isEmpty()) {
+                return Collections.emptyList();
+            }
+            final Predicate<String> inCategory = hierarchy.descendantsOf(root);
+            // Typeahead queries are answered from the in-memory prefix index, and only go to Solr if it has no match.
+            if (TermPrefixTrie.supportsSort(sort)) {
+                final List<VocabularyTerm> suggestions = hierarchy.getPrefixIndex()
+                    .complete(input, term -> inCategory.test(term.getId()), maxResults, sort);
+                if (!suggestions.isEmpty()) {
+                    return suggestions;
+                }
+            }
+            return engine.search(input, maxResults, sort, ID_FILTER_PREFIX + descendants, false, profile);
+        }
+        // If a custom filter is provided, use that.
+        final String filter = StringUtils.defaultIfBlank(customFilter, generateDefaultFilter(category, isId));
+        return engine.search(input, maxResults, sort, filter, isId, profile);
     }
 
     /**
-     * Add the global parameters to the {@code query}.
+     * Finds the terms with the given identifiers, from the in-memory hierarchy if it is loaded, otherwise with a single
+     * real-time get from the index.
      *
-     * @param query the {@link SolrQuery} being formed
-     * @return the updated {@link SolrQuery}
+     * @param ids the identifiers of the terms to find
+     * @return the existing terms, by identifier, or {@code null} if the index could not be queried
      */
-    private SolrQuery addGlobalQueryParameters(final SolrQuery query)
+    @Nullable
+    private Map<String, VocabularyTerm> findTerms(@Nonnull final List<String> ids)
+    {
+        final CarePathwaysGraph hierarchy = getGraph();
+        if (!hierarchy.isEmpty()) {
+            final Map<String, VocabularyTerm> result = new HashMap<>();
+            for (final String id : ids) {
+                final VocabularyTerm term = hierarchy.getTerm(id);
+                if (term != null) {
+                    result.put(id, term);
+                }
+            }
+            return result;
+        }
+        return getSearchEngine().fetchTerms(ids);
+    }
+
+    @Override
+    public Set<VocabularyTerm> getTerms(@Nullable final Collection<String> ids)
     {
-        query.set("spellcheck", Boolean.toString(true));
-        query.set(SpellingParams.SPELLCHECK_COLLATE, Boolean.toString(true));
-        query.set(SpellingParams.SPELLCHECK_COUNT, "100");
-        query.set(SpellingParams.SPELLCHECK_MAX_COLLATION_TRIES, "3");
-        query.set("lowercaseOperators", Boolean.toString(false));
-        query.set("defType", "edismax");
-        return query;
+        return new LinkedHashSet<>(resolveTerms(ids).getTerms());
     }
 
     /**
-     * Add the field parameters to the {@code query}.
+     * Resolves many term identifiers at once, from the in-memory hierarchy or with a single request to the index,
+     * instead of one lookup per identifier.
      *
-     * @param query the {@link SolrQuery} being formed
-     * @return the updated {@link SolrQuery}
+     * @param ids the identifiers to resolve; blank and repeated identifiers are ignored
+     * @return the {@link TermResolution} holding the found terms in the requested order, and the missing identifiers
      */
-    private SolrQuery addFieldQueryParameters(final SolrQuery query)
+    @Nonnull
+    public TermResolution resolveTerms(@Nullable final Collection<String> ids)
     {
-        query.set(DisMaxParams.PF, "name^20 nameSpell^36 text^3 textSpell^5");
-        query.set(DisMaxParams.QF, "name^10 nameSpell^18 nameStub^5 text^1 textSpell^2 textStub^0.5");
-        return query;
+        final List<String> requested = TermResolution.distinctIds(ids);
+        final Map<String, VocabularyTerm> found = findTerms(requested);
+        return new TermResolution(requested, found == null ? Collections.emptyMap() : found);
     }
 
     /**
-     * Add the dynamic parameters to the {@code query}.
+     * Returns the usage counters of the search engine, for monitoring.
      *
-     * @param originalQuery the original query string submitted
-     * @param rows the number of results to return
-     * @param sort the sorting order
-     * @param customFq filters to apply to query
-     * @param isId true iff {@code originalQuery} is an ID, false otherwise
-     * @param query the {@link SolrQuery} being formed
-     * @return the updated {@link SolrQuery}
+     * @return the number of {@code hits} and {@code misses} of the search results cache since startup, and the number
+     *         of {@code queries} sent to the index, of which {@code spellcheckQueries} were run again with
+     *         spellchecking
      */
     @Nonnull
-    private SolrQuery addDynamicQueryParameters(
-        @Nonnull final String originalQuery,
-        @Nonnull final Integer rows,
-        @Nullable final String sort,
-        @Nullable final String customFq,
-        final boolean isId,
-        @Nonnull final SolrQuery query)
-    {
-        final String queryString = originalQuery.trim();
-        final String escapedQuery = ClientUtils.escapeQueryChars(queryString);
-        if (isId) {
-            query.setFilterQueries(StringUtils.defaultIfBlank(customFq,
-                new MessageFormat("id:{0}").format(new String[] { escapedQuery })));
-        } else if (StringUtils.isNotBlank(customFq)) {
-            query.setFilterQueries(customFq);
+    public Map<String, Long> getSearchCacheStatistics()
+    {
+        return getSearchEngine().getStatistics();
+    }
+
+    /**
+     * Returns the engine searching and reindexing this vocabulary, creating it if needed. It is only created once the
+     * dependencies of this component are injected.
+     *
+     * @return the {@link VocabularySearchEngine} of this vocabulary
+     */
+    @Nonnull
+    VocabularySearchEngine getSearchEngine()
+    {
+        final VocabularySearchEngine current = this.searchEngine.get();
+        if (current != null) {
+            return current;
         }
-        query.setQuery(escapedQuery);
-        query.set(SpellingParams.SPELLCHECK_Q, queryString);
-        query.setRows(rows);
-        if (StringUtils.isNotBlank(sort)) {
-            for (final String sortItem : sort.split("\\s*,\\s*")) {
-                query.addSort(StringUtils.substringBefore(sortItem, " "),
-                    sortItem.endsWith(" desc") || sortItem.startsWith("-") ? ORDER.desc : ORDER.asc);
-            }
+        final VocabularySearchEngine created = new VocabularySearchEngine(this, SEARCH_SETTINGS,
+            this.externalServicesAccess, this.configuration, this.cacheManager, this.logger, this::search);
+        return this.searchEngine.compareAndSet(null, created) ? created : this.searchEngine.get();
+    }
+
+    /**
+     * Finds the term whose descendants are the only results accepted by a search, if the filter can be resolved against
+     * the in-memory hierarchy: either no {@code customFilter}, in which case the root of the {@code category} is used,
+     * or a filter on the ancestors of the terms of the form {@code term_category:CP\:1}.
+     *
+     * @param category the term category to search
+     * @param customFilter the custom filter for the search, may be blank
+     * @return the identifier of the term heading the searched branch, or {@code null} if the filter must be sent as is
+     */
+    @Nullable
+    private String getFilterRoot(@Nonnull final String category, @Nullable final String customFilter)
+    {
+        if (StringUtils.isBlank(customFilter)) {
+            return TEST_CATEGORY.equals(category) ? TEST_ROOT : CARE_ROOT;
+        }
+        final Matcher matcher = CATEGORY_FILTER_PATTERN.matcher(customFilter);
+        if (!matcher.matches()) {
+            return null;
         }
-        return query;
+        return STANDARD_PREFIX + COLON + StringUtils.defaultString(matcher.group(1), matcher.group(2));
     }
 
     /**
@@ -341,17 +667,6 @@ public class CarePathwaysOntology extends AbstractCSVSolrVocabulary
             : TEST_CATEGORY.equals(category) ? DEFAULT_TEST_FILTER : DEFAULT_CARE_FILTER;
     }
 
-    /**
-     * Returns true iff {@code input} is an identifier.
-     *
-     * @param input the query string
-     * @return true iff the {@code input} is an identifier
-     */
-    private boolean isId(@Nonnull final String input)
-    {
-        return ID_PATTERN.matcher(input).matches();
-    }
-
     /**
      * Get the value associated with the current term being processed from the provided {@code row}.
      *
@@ -449,34 +764,279 @@ public class CarePathwaysOntology extends AbstractCSVSolrVocabulary
     }
 
     /**
-     * Merges the data from {@code n1} and {@code n2}, where the two nodes are assumed to contain data for the same
-     * vocabulary term. No check is performed to ensure that the two nodes refer to the same term.
+     * Collects the parent and ancestor information for all the nodes in the source. Chunks of whole lines are parsed in
+     * parallel, then the partial nodes found for the same term are {@link CPNode#merge merged} in source order, so the
+     * result is the same as parsing the whole source sequentially, whatever the chunk size. Terms that only appear as
+     * ancestors of other terms, without a row of their own, are added after the others, as described by the rows they
+     * appear in.
+     *
+     * @param source the source to parse
+     * @param chunkSize the minimum size, in bytes, of the chunks parsed in parallel
+     * @return the nodes, by identifier, in the order they first appear in the source
+     * @throws IOException if the source cannot be read
+     * @throws IllegalArgumentException if the source is malformed; the first malformed row in the source is reported
+     */
+    @Nonnull
+    Map<String, CPNode> parseNodes(@Nonnull final VocabularySource source, final int chunkSize) throws IOException
+    {
+        final List<ParsedChunk> chunks = source.split(chunkSize).parallelStream()
+            .map(this::parseChunk)
+            .collect(Collectors.toList());
+        final Map<String, CPNode> nodes = new LinkedHashMap<>();
+        final Map<String, CPNode> ancestors = new LinkedHashMap<>();
+        for (final ParsedChunk chunk : chunks) {
+            if (chunk.error != null) {
+                throw chunk.error;
+            }
+            chunk.nodes.forEach((id, node) -> nodes.merge(id, node, CPNode::merge));
+            chunk.ancestors.forEach((id, node) -> ancestors.merge(id, node, CPNode::merge));
+        }
+        ancestors.forEach(nodes::putIfAbsent);
+        return nodes;
+    }
+
+    /**
+     * Parses one chunk of whole source lines. Errors are returned rather than thrown, so that they are reported from
+     * the calling thread, and in source order.
+     *
+     * @param chunk a stream over the lines to parse
+     * @return the {@link ParsedChunk} holding the nodes found in {@code chunk}, or the first error
+     */
+    @Nonnull
+    private ParsedChunk parseChunk(@Nonnull final InputStream chunk)
+    {
+        final Map<String, CPNode> nodes = new LinkedHashMap<>();
+        final Map<String, CPNode> ancestors = new LinkedHashMap<>();
+        try (CSVParser parsed = CSVFormat.TDF.parse(new InputStreamReader(chunk, StandardCharsets.UTF_8))) {
+            for (final CSVRecord row : parsed) {
+                final CPNode node = getPathData(row);
+                if (node != null) {
+                    nodes.merge(node.getId(), node, CPNode::merge);
+                    addAncestorNodes(row, ancestors);
+                }
+            }
+            return new ParsedChunk(nodes, ancestors, null);
+        } catch (final IllegalArgumentException ex) {
+            return new ParsedChunk(nodes, ancestors, ex);
+        } catch (final IOException | IllegalStateException ex) {
+            return new ParsedChunk(nodes, ancestors, new IllegalArgumentException(ex.getMessage(), ex));
+        }
+    }
+
+    /**
+     * Collects the ancestors named in {@code row}, each with the parent and ancestors preceding it in the row, as if
+     * the row leading to it was in the source. Terms that only appear as ancestors are thus still part of the
+     * hierarchy.
+     *
+     * @param row the {@link CSVRecord} being processed, already {@link #getPathData validated}
+     * @param ancestors the ancestor nodes collected so far, by identifier
+     */
+    private void addAncestorNodes(@Nonnull final CSVRecord row, @Nonnull final Map<String, CPNode> ancestors)
+    {
+        for (int i = 0; i < row.size() - 1; i++) {
+            final String value = row.get(i);
+            final CPNode node = new CPNode(getNodeId(value), getNodeName(value));
+            ancestors.merge(node.getId(), i > 0 ? setParentAndAncestors(node, row, i - 1) : node, CPNode::merge);
+        }
+    }
+
+    /**
+     * Returns the whole vocabulary in a compact, versioned form, for clients that filter terms locally. The snapshot is
+     * serialized once per indexed version, and identified by an entity tag so that unchanged data can be revalidated
+     * instead of downloaded again.
+     *
+     * @return the current {@link CarePathwaysSnapshot}, empty if the vocabulary is not indexed
+     */
+    @Nonnull
+    public CarePathwaysSnapshot getSnapshot()
+    {
+        return getGraph().getSnapshot();
+    }
+
+    /**
+     * Returns the in-memory hierarchy, loading it from the index if no reindex happened since startup. An empty index
+     * gives an empty graph, kept until the next reindex. If the index cannot be read, an empty graph is returned, and
+     * the index is only read again after {@link #GRAPH_RETRY_DELAY}, so that lookups don't all query it in turn.
+     *
+     * @return the current {@link CarePathwaysGraph}
+     */
+    @Nonnull
+    private CarePathwaysGraph getGraph()
+    {
+        final CarePathwaysGraph current = this.graph.get();
+        if (current != null) {
+            return current;
+        }
+        if (System.currentTimeMillis() < this.graphRetryTime) {
+            return CarePathwaysGraph.EMPTY;
+        }
+        final CarePathwaysGraph loaded = loadGraphFromIndex();
+        if (loaded == null) {
+            this.graphRetryTime = System.currentTimeMillis() + GRAPH_RETRY_DELAY;
+            return CarePathwaysGraph.EMPTY;
+        }
+        // A concurrent reindex may have already published a more recent hierarchy.
+        return this.graph.compareAndSet(null, loaded) ? loaded : this.graph.get();
+    }
+
+    /**
+     * Rebuilds the hierarchy from the terms already stored in the index, with a single query.
+     *
+     * @return the {@link CarePathwaysGraph} for the indexed terms, empty if the index is empty, or {@code null} if the
+     *         index cannot be read
+     */
+    @Nullable
+    private CarePathwaysGraph loadGraphFromIndex()
+    {
+        final SolrQuery query = new SolrQuery("*:*");
+        query.setFields(ID, NAME, IS_A, TERM_CATEGORY, VERSION);
+        query.setRows(Integer.MAX_VALUE);
+        try {
+            final QueryResponse response = this.externalServicesAccess.getSolrConnection(this).query(query);
+            final SolrDocumentList docs = response == null ? null : response.getResults();
+            if (docs == null) {
+                return null;
+            }
+            final Map<String, CPNode> nodes = new HashMap<>(docs.size());
+            String version = null;
+            for (int i = 0; i < docs.size(); i++) {
+                final SolrDocument doc = docs.get(i);
+                // The version document has no name.
+                if (doc.getFieldValue(NAME) != null) {
+                    final CPNode node = toNode(doc);
+                    nodes.put(node.getId(), node);
+                } else if (HEADER_INFO.equals(doc.getFieldValue(ID))) {
+                    version = (String) doc.getFieldValue(VERSION);
+                }
+            }
+            return buildGraph(nodes, version);
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.warn("Failed to load the Care Pathways hierarchy from the index: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Builds the in-memory hierarchy for the provided {@code nodes}.
+     *
+     * @param nodes the care pathways vocabulary terms, indexed by their identifier
+     * @param version the version of the vocabulary data, may be {@code null}
+     * @return the {@link CarePathwaysGraph} for {@code nodes}
+     */
+    @Nonnull
+    private CarePathwaysGraph buildGraph(@Nonnull final Map<String, CPNode> nodes, @Nullable final String version)
+    {
+        return nodes.isEmpty()
+            ? CarePathwaysGraph.EMPTY
+            : new CarePathwaysGraph(nodes, (id, name, parents, ancestors, children, depth) -> new SolrVocabularyTerm(
+                buildTermDoc(id, name, parents, ancestors, children, depth), this), version);
+    }
+
+    /**
+     * Reads a {@link CPNode} back from an indexed {@link SolrDocument}.
+     *
+     * @param doc the stored care pathways term
+     * @return the {@link CPNode} with the data from {@code doc}
+     */
+    @Nonnull
+    private CPNode toNode(@Nonnull final SolrDocument doc)
+    {
+        final CPNode node = new CPNode(String.valueOf(doc.getFieldValue(ID)), String.valueOf(doc.getFieldValue(NAME)));
+        node.addParents(toStrings(doc.getFieldValues(IS_A)));
+        node.addAncestors(toStrings(doc.getFieldValues(TERM_CATEGORY)));
+        return node;
+    }
+
+    @Nonnull
+    private Collection<String> toStrings(@Nullable final Collection<Object> values)
+    {
+        return values == null
+            ? Collections.emptyList()
+            : values.stream().map(String::valueOf).collect(Collectors.toList());
+    }
+
+    /**
+     * Builds a {@link SolrDocument} with the same stored fields that {@link #buildSolrDoc(CPNode, CarePathwaysGraph)}
+     * indexes for the term, so that terms served from memory look exactly like terms retrieved from Solr.
      *
-     * @param n1 a {@link CPNode} containing data for term with ID: {@link CPNode#getId()}, which is equal to {@code n1}
-     * @param n2 a {@link CPNode} containing data for term with ID: {@link CPNode#getId()}, which is equal to {@code n2}
-     * @return a {@link CPNode} with merged data from {@code n1} and {@code n2}
+     * @param id the identifier of the term
+     * @param name the name of the term
+     * @param parents the identifiers of the parents of the term
+     * @param ancestors the identifiers of the ancestors of the term
+     * @param children the identifiers of the children of the term, sorted by name
+     * @param depth the depth of the term in the hierarchy
+     * @return a {@link SolrDocument} with the provided data
      */
     @Nonnull
-    private CPNode mergeNodes(@Nonnull final CPNode n1, @Nonnull final CPNode n2)
+    private SolrDocument buildTermDoc(@Nonnull final String id, @Nonnull final String name,
+        @Nonnull final List<String> parents, @Nonnull final List<String> ancestors,
+        @Nonnull final List<String> children, final int depth)
     {
-        n1.addParents(n2.getParents());
-        n1.addAncestors(n2.getAncestors());
-        return n1;
+        final SolrDocument doc = new SolrDocument();
+        doc.setField(ID, id);
+        doc.setField(NAME, name);
+        // The lists are shared with the graph, which never changes them, so they are stored without copying.
+        if (!parents.isEmpty()) {
+            doc.setField(IS_A, parents);
+        }
+        if (!ancestors.isEmpty()) {
+            doc.setField(TERM_CATEGORY, ancestors);
+        }
+        if (!children.isEmpty()) {
+            doc.setField(CHILDREN, children);
+        }
+        doc.setField(DEPTH, depth);
+        doc.setField(LEAF, children.isEmpty());
+        return doc;
     }
 
     /**
-     * Builds a {@link SolrInputDocument} from the data stored in {@code node}.
+     * Builds a {@link SolrInputDocument} from the data stored in {@code node}. Besides the parents and ancestors, the
+     * document stores the children of the term sorted by name, its depth and whether it is a leaf, so that a level of
+     * the tree can be expanded by fetching documents by id, without a filtered and sorted search.
      *
      * @param node the {@link CPNode} containing date for a care pathways vocabulary term
+     * @param hierarchy the {@link CarePathwaysGraph} built from all the parsed terms
      * @return a {@link SolrInputDocument} with the data from {@code node}
      */
-    private SolrInputDocument buildSolrDoc(final CPNode node)
+    private SolrInputDocument buildSolrDoc(final CPNode node, final CarePathwaysGraph hierarchy)
     {
+        final List<String> children = hierarchy.getChildren(node.getId()).stream()
+            .map(VocabularyTerm::getId)
+            .collect(Collectors.toList());
         final SolrInputDocument doc = new SolrInputDocument();
         doc.addField(ID, node.getId());
         doc.addField(NAME, node.getName());
         doc.addField(IS_A, node.getParents());
         doc.addField(TERM_CATEGORY, node.getAncestors());
+        if (!children.isEmpty()) {
+            doc.addField(CHILDREN, children);
+        }
+        doc.addField(DEPTH, hierarchy.getDepth(node.getId()));
+        doc.addField(LEAF, children.isEmpty());
         return doc;
     }
+
+    /**
+     * The result of parsing one chunk of the source: the partial nodes it contains, or the error that stopped parsing.
+     */
+    private static final class ParsedChunk
+    {
+        /** The nodes found in the chunk, by identifier, in source order. */
+        private final Map<String, CPNode> nodes;
+
+        /** The terms named as ancestors in the chunk, by identifier, in source order. */
+        private final Map<String, CPNode> ancestors;
+
+        /** The first error found in the chunk, or {@code null} if the chunk was parsed successfully. */
+        private final IllegalArgumentException error;
+
+        ParsedChunk(@Nonnull final Map<String, CPNode> nodes, @Nonnull final Map<String, CPNode> ancestors,
+            @Nullable final IllegalArgumentException error)
+        {
+            this.nodes = nodes;
+            this.ancestors = ancestors;
+            this.error = error;
+        }
+    }
 }
@@ -19,26 +19,30 @@ package org.phenotips.vocabulary.internal.solr;
 
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import org.xwiki.cache.CacheManager;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
-import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
@@ -47,13 +51,12 @@ import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrQuery;
-import org.apache.solr.client.solrj.SolrQuery.ORDER;
-import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.solr.common.params.DisMaxParams;
-import org.apache.solr.common.params.SpellingParams;
-import org.joda.time.DateTime;
-import org.joda.time.format.ISODateTimeFormat;
 
 /**
  * Provides access to the Care Pathways questions vocabulary. The vocabulary prefix is {@code CPQ}.
@@ -81,13 +84,50 @@ public class CarePathwaysQuestionOntology extends AbstractCSVSolrVocabulary
     /** The label for the field storing the question group. */
     private static final String TERM_GROUP = "term_group";
 
-    /** For determining if a query is a an id. */
-    private static final Pattern ID_PATTERN = Pattern.compile("^CPQ:[0-9]+$", Pattern.CASE_INSENSITIVE);
+    /**
+     * Identifies the layout of the indexed documents, and is part of the indexed version. It must be changed whenever
+     * the indexed fields change, so that existing indexes are rebuilt even if the source data is the same.
+     */
+    private static final String INDEX_FORMAT = "2";
+
+    /** What distinguishes the searches of this vocabulary, for the shared {@link VocabularySearchEngine}. */
+    private static final VocabularySearchEngine.Settings SEARCH_SETTINGS = new VocabularySearchEngine.Settings(
+        Collections.singletonList(QUESTION_CATEGORY),
+        Pattern.compile("^CPQ:[0-9]+$", Pattern.CASE_INSENSITIVE),
+        INDEX_FORMAT,
+        new SearchProfile(SearchProfile.FULL, "name^20 nameSpell^36 text^3 textSpell^5",
+            "name^10 nameSpell^18 nameStub^5 text^1 textSpell^2 textStub^0.5", Integer.MAX_VALUE, true),
+        // Autocompletion only searches the names, returns a short list, and doesn't pay for a spellchecked retry.
+        new SearchProfile(SearchProfile.TYPEAHEAD, "name^20 nameSpell^36", "name^10 nameSpell^18 nameStub^5", 20,
+            false),
+        new SearchProfile(SearchProfile.ID, null, null, Integer.MAX_VALUE, false));
+
+    /** Provides the configuration of the search cache and of the number of documents sent to the index at once. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Creates the search results cache. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** Searches and reindexes this vocabulary, created when first needed. */
+    private final AtomicReference<VocabularySearchEngine> searchEngine = new AtomicReference<>();
+
+    /** The in-memory prefix index over question names, built on reindex or lazily from the index. */
+    private final AtomicReference<TermPrefixTrie> prefixIndex = new AtomicReference<>();
 
+    /** The prefix index built by the last {@link #load(URL)}, published only once the reindex succeeds. */
+    private TermPrefixTrie loadedPrefixIndex;
+
+    /**
+     * {@inheritDoc} Configured with the {@code phenotips.vocabularies.care-pathways-questions.solrDocsPerBatch}
+     * property in {@code xwiki.properties}, which bounds the memory used while updating the index.
+     */
     @Override
     protected int getSolrDocsPerBatch()
     {
-        return 500000;
+        return getSearchEngine().getDocsPerBatch();
     }
 
     @Override
@@ -136,21 +176,31 @@ public class CarePathwaysQuestionOntology extends AbstractCSVSolrVocabulary
         return StringUtils.EMPTY;
     }
 
+    @Override
+    public synchronized int reindex(final String sourceUrl)
+    {
+        try {
+            return getSearchEngine().reindex(sourceUrl, this::parse, () -> {
+                if (this.loadedPrefixIndex != null) {
+                    this.prefixIndex.set(this.loadedPrefixIndex);
+                }
+            });
+        } finally {
+            this.loadedPrefixIndex = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc} Reindexing doesn't use this method, the documents are streamed to the index as they are parsed
+     * instead of being collected first.
+     */
     @Override
     protected Collection<SolrInputDocument> load(final URL url)
     {
         // Try to read from the input file.
-        try (BufferedReader in = new BufferedReader(
-            new InputStreamReader(getInputStream(url), StandardCharsets.UTF_8))) {
-            final CSVFormat parser = CSVFormat.TDF;
-            final CSVParser parsed = parser.parse(in);
-            // Collect the solr documents.
-            Collection<SolrInputDocument> result = StreamSupport.stream(parsed.spliterator(), false)
-                .map(this::buildSolrDocForQuestion)
-                .collect(Collectors.toList());
-            // Add a "version" term with the version set to the current datetime
-            result.add(new SolrInputDocument("id", "HEADER_INFO", "version",
-                ISODateTimeFormat.dateTime().withZoneUTC().print(DateTime.now())));
+        try (VocabularySource source = getSearchEngine().getSource(url)) {
+            final Collection<SolrInputDocument> result = new ArrayList<>();
+            parse(source, result::add);
             return result;
         } catch (final Exception ex) {
             this.logger.warn("Failed to read/parse the Care Pathways question source: {}", ex.getMessage());
@@ -158,6 +208,38 @@ public class CarePathwaysQuestionOntology extends AbstractCSVSolrVocabulary
         }
     }
 
+    /**
+     * Parses the whole source, then passes each {@link VocabularyDelta#stamp stamped} question document to
+     * {@code consumer}. Only the questions kept for the in-memory prefix index are held while parsing.
+     *
+     * @param source the source to parse
+     * @param consumer receives the documents to index
+     * @throws SolrServerException if {@code consumer} fails to send documents to the index
+     * @throws IOException if reading the source or communicating with the index fails
+     * @throws IllegalArgumentException if a row is malformed, in which case nothing is passed to {@code consumer}
+     */
+    private void parse(@Nonnull final VocabularySource source, @Nonnull final SolrDocumentConsumer consumer)
+        throws SolrServerException, IOException
+    {
+        final List<SolrDocument> questions = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(source.open(), StandardCharsets.UTF_8))) {
+            final CSVFormat parser = CSVFormat.TDF;
+            final CSVParser parsed = parser.parse(in);
+            for (final CSVRecord row : parsed) {
+                // Index the question names in memory, to be published once the data is indexed.
+                questions.add(buildTermDoc(buildSolrDocForQuestion(row)));
+            }
+        }
+        // Every row is valid, the documents can be sent.
+        for (final SolrDocument question : questions) {
+            consumer.accept(VocabularyDelta.stamp(buildSolrDoc(question)));
+        }
+        this.loadedPrefixIndex = buildPrefixIndex(questions);
+        // Add a "version" term with the version set to the digest of the source
+        consumer.accept(VocabularyDelta.stamp(new SolrInputDocument(ID, VocabularySource.HEADER_INFO,
+            VocabularySource.VERSION, source.getVersion())));
+    }
+
     @Override
     public List<VocabularyTerm> search(
         @Nullable String input,
@@ -177,123 +259,252 @@ public class CarePathwaysQuestionOntology extends AbstractCSVSolrVocabulary
         @Nullable final String sort,
         @Nullable final String customFilter)
     {
-        if (StringUtils.isBlank(input)) {
-            return Collections.emptyList();
-        }
-        // If the wrong category was provided for the vocabulary, want to provide an appropriate log message.
-        if (!getSupportedCategories().contains(category)) {
-            this.logger.warn("The provided category [{}] is not supported by the Care Pathways questions vocabulary.",
-                category);
+        return search(input, category, maxResults, sort, customFilter, SearchProfile.FULL);
+    }
+
+    /**
+     * Searches the vocabulary with the given {@link SearchProfile search profile}, for example the cheaper
+     * {@link SearchProfile#TYPEAHEAD typeahead} profile for autocompletion.
+     *
+     * @param input the searched text
+     * @param category the searched category
+     * @param maxResults the maximum number of results, further capped by the profile
+     * @param sort the sorting order, may be blank
+     * @param customFilter the custom filter, may be blank
+     * @param profile the name of the search profile, {@link SearchProfile#FULL} if blank or unknown
+     * @return a list of {@link VocabularyTerm results} matching {@code input}
+     */
+    @Nonnull
+    public List<VocabularyTerm> search(
+        @Nullable final String input,
+        @Nonnull final String category,
+        final int maxResults,
+        @Nullable final String sort,
+        @Nullable final String customFilter,
+        @Nullable final String profile)
+    {
+        final VocabularySearchEngine engine = getSearchEngine();
+        if (!engine.accepts(input, category)) {
             return Collections.emptyList();
         }
-        return search(input, maxResults, sort, customFilter, isId(input));
+        final SearchProfile searchProfile = engine.getProfile(profile);
+        final int rows = searchProfile.limit(maxResults);
+        // The indexed version is not kept in memory, cached results are only discarded by reindexing.
+        return engine.search(null, input, category, rows, sort, customFilter, searchProfile,
+            () -> performSearch(input, category, rows, sort, customFilter, searchProfile));
     }
 
     /**
-     * Add query parameters and perform search.
+     * Returns the current version of a search profile, including the changes from the configuration and from
+     * {@link #setSearchProfile(SearchProfile)}.
      *
-     * @param input the submitted input
+     * @param name the profile name, for example {@link SearchProfile#TYPEAHEAD}
+     * @return the {@link SearchProfile}, the {@link SearchProfile#FULL full} one if {@code name} is unknown
+     */
+    @Nonnull
+    public SearchProfile getSearchProfile(@Nullable final String name)
+    {
+        return getSearchEngine().getProfile(name);
+    }
+
+    /**
+     * Replaces a search profile until the next restart, for tuning searches without changing the configuration.
+     *
+     * @param profile the new version of the profile, usually derived from {@link #getSearchProfile(String)}
+     * @throws IllegalArgumentException if the vocabulary has no profile with the same name
+     */
+    public void setSearchProfile(@Nonnull final SearchProfile profile)
+    {
+        getSearchEngine().setProfile(profile);
+    }
+
+    /**
+     * Performs a search whose results are not cached, with valid arguments.
+     *
+     * @param input the searched text, not blank
+     * @param category the searched category, one of the {@link #getSupportedCategories() supported categories}
      * @param maxResults the maximum number of results to return
-     * @param sort the sorting order
-     * @param filter filters to apply to query
-     * @param isId true iff {@code input} is an ID
-     * @return a list of {@link VocabularyTerm results} matching {@code input}
+     * @param sort the sorting order, may be blank
+     * @param customFilter the custom filter, may be blank
+     * @param profile the search profile
+     * @return a list of {@link VocabularyTerm results} matching {@code input}, or {@code null} if the search failed
      */
-    private List<VocabularyTerm> search(
+    @Nullable
+    private List<VocabularyTerm> performSearch(
         @Nonnull final String input,
+        @Nonnull final String category,
         final int maxResults,
         @Nullable final String sort,
-        @Nullable final String filter,
-        final boolean isId)
+        @Nullable final String customFilter,
+        @Nonnull final SearchProfile profile)
+    {
+        // Identifiers, or lists of identifiers, are looked up directly, without query parsing and spellchecking.
+        final VocabularySearchEngine engine = getSearchEngine();
+        final List<String> ids = engine.parseIds(input);
+        if (!ids.isEmpty() && StringUtils.isBlank(customFilter)) {
+            final List<String> requested =
+                TermResolution.distinctIds(ids.subList(0, Math.min(ids.size(), Math.max(0, maxResults))));
+            final Map<String, VocabularyTerm> found = engine.fetchTerms(requested);
+            return found == null ? null : new TermResolution(requested, found).getTerms();
+        }
+        final boolean isId = engine.isId(input);
+        // Typeahead queries are answered from the in-memory prefix index, and only go to Solr if it has no match.
+        if (!isId && StringUtils.isBlank(customFilter) && TermPrefixTrie.supportsSort(sort)) {
+            final List<VocabularyTerm> suggestions =
+                getPrefixIndex().complete(input, term -> true, maxResults, sort);
+            if (!suggestions.isEmpty()) {
+                return suggestions;
+            }
+        }
+        return engine.search(input, maxResults, sort, customFilter, isId, profile);
+    }
+
+    @Override
+    public Set<VocabularyTerm> getTerms(@Nullable final Collection<String> ids)
     {
-        final SolrQuery query = new SolrQuery();
-        // Add field query parameters if input is not an ID, then add global parameters.
-        addGlobalQueryParameters(!isId ? addFieldQueryParameters(query) : query);
-        // Add dynamic query parameters, and search.
-        return search(addDynamicQueryParameters(input, maxResults, sort, filter, isId, query)).stream()
-            .map(doc -> new SolrVocabularyTerm(doc, this))
-            .collect(Collectors.toList());
+        return new LinkedHashSet<>(resolveTerms(ids).getTerms());
     }
 
     /**
-     * Add the global parameters to the {@code query}.
+     * Resolves many term identifiers at once, with a single request to the index instead of one lookup per identifier.
      *
-     * @param query the {@link SolrQuery} being formed
-     * @return the updated {@link SolrQuery}
+     * @param ids the identifiers to resolve; blank and repeated identifiers are ignored
+     * @return the {@link TermResolution} holding the found terms in the requested order, and the missing identifiers
      */
-    private SolrQuery addGlobalQueryParameters(final SolrQuery query)
+    @Nonnull
+    public TermResolution resolveTerms(@Nullable final Collection<String> ids)
     {
-        query.set("spellcheck", Boolean.toString(true));
-        query.set(SpellingParams.SPELLCHECK_COLLATE, Boolean.toString(true));
-        query.set(SpellingParams.SPELLCHECK_COUNT, "100");
-        query.set(SpellingParams.SPELLCHECK_MAX_COLLATION_TRIES, "3");
-        query.set("lowercaseOperators", Boolean.toString(false));
-        query.set("defType", "edismax");
-        return query;
+        final List<String> requested = TermResolution.distinctIds(ids);
+        final Map<String, VocabularyTerm> found = getSearchEngine().fetchTerms(requested);
+        return new TermResolution(requested, found == null ? Collections.emptyMap() : found);
     }
 
     /**
-     * Add the field parameters to the {@code query}.
+     * Returns the usage counters of the search engine, for monitoring.
      *
-     * @param query the {@link SolrQuery} being formed
-     * @return the updated {@link SolrQuery}
+     * @return the number of {@code hits} and {@code misses} of the search results cache since startup, and the number
+     *         of {@code queries} sent to the index, of which {@code spellcheckQueries} were run again with
+     *         spellchecking
      */
-    private SolrQuery addFieldQueryParameters(final SolrQuery query)
+    @Nonnull
+    public Map<String, Long> getSearchCacheStatistics()
     {
-        query.set(DisMaxParams.PF, "name^20 nameSpell^36 text^3 textSpell^5");
-        query.set(DisMaxParams.QF, "name^10 nameSpell^18 nameStub^5 text^1 textSpell^2 textStub^0.5");
-        return query;
+        return getSearchEngine().getStatistics();
     }
 
     /**
-     * Add the dynamic parameters to the {@code query}.
+     * Returns the engine searching and reindexing this vocabulary, creating it if needed. It is only created once the
+     * dependencies of this component are injected.
      *
-     * @param originalQuery the original query string submitted
-     * @param rows the number of results to return
-     * @param sort the sorting order
-     * @param customFq filters to apply to query
-     * @param isId true iff {@code originalQuery} is an ID, false otherwise
-     * @param query the {@link SolrQuery} being formed
-     * @return the updated {@link SolrQuery}
+     * @return the {@link VocabularySearchEngine} of this vocabulary
      */
     @Nonnull
-    private SolrQuery addDynamicQueryParameters(
-        @Nonnull final String originalQuery,
-        @Nonnull final Integer rows,
-        @Nullable final String sort,
-        @Nullable final String customFq,
-        final boolean isId,
-        @Nonnull final SolrQuery query)
+    VocabularySearchEngine getSearchEngine()
     {
-        final String queryString = originalQuery.trim();
-        final String escapedQuery = ClientUtils.escapeQueryChars(queryString);
-        if (isId) {
-            query.setFilterQueries(StringUtils.defaultIfBlank(customFq,
-                new MessageFormat("id:{0}").format(new String[] { escapedQuery })));
-        } else if (StringUtils.isNotBlank(customFq)) {
-            query.setFilterQueries(customFq);
+        final VocabularySearchEngine current = this.searchEngine.get();
+        if (current != null) {
+            return current;
         }
-        query.setQuery(escapedQuery);
-        query.set(SpellingParams.SPELLCHECK_Q, queryString);
-        query.setRows(rows);
-        if (StringUtils.isNotBlank(sort)) {
-            for (final String sortItem : sort.split("\\s*,\\s*")) {
-                query.addSort(StringUtils.substringBefore(sortItem, " "),
-                    sortItem.endsWith(" desc") || sortItem.startsWith("-") ? ORDER.desc : ORDER.asc);
+        final VocabularySearchEngine created = new VocabularySearchEngine(this, SEARCH_SETTINGS,
+            this.externalServicesAccess, this.configuration, this.cacheManager, this.logger, this::search);
+        return this.searchEngine.compareAndSet(null, created) ? created : this.searchEngine.get();
+    }
+
+    /**
+     * Returns the in-memory prefix index, loading it from the index if no reindex happened since startup. An empty
+     * index is returned, and not retained, if the index cannot be read.
+     *
+     * @return the current {@link TermPrefixTrie}
+     */
+    @Nonnull
+    private TermPrefixTrie getPrefixIndex()
+    {
+        final TermPrefixTrie current = this.prefixIndex.get();
+        if (current != null) {
+            return current;
+        }
+        final TermPrefixTrie loaded = loadPrefixIndexFromIndex();
+        if (loaded.isEmpty()) {
+            return loaded;
+        }
+        // A concurrent reindex may have already published a more recent index.
+        return this.prefixIndex.compareAndSet(null, loaded) ? loaded : this.prefixIndex.get();
+    }
+
+    /**
+     * Rebuilds the prefix index from the questions already stored in the index, with a single query.
+     *
+     * @return the {@link TermPrefixTrie} for the indexed questions, empty if the index cannot be read
+     */
+    @Nonnull
+    private TermPrefixTrie loadPrefixIndexFromIndex()
+    {
+        final SolrQuery query = new SolrQuery("*:*");
+        query.setFields(ID, NAME, TERM_GROUP);
+        query.setRows(Integer.MAX_VALUE);
+        try {
+            final QueryResponse response = this.externalServicesAccess.getSolrConnection(this).query(query);
+            final SolrDocumentList docs = response == null ? null : response.getResults();
+            if (docs == null) {
+                return TermPrefixTrie.EMPTY;
             }
+            final List<SolrDocument> questions = new ArrayList<>(docs.size());
+            for (int i = 0; i < docs.size(); i++) {
+                // Skip the version document, which has no name.
+                if (docs.get(i).getFieldValue(NAME) != null) {
+                    questions.add(docs.get(i));
+                }
+            }
+            return buildPrefixIndex(questions);
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.warn("Failed to load the Care Pathways questions from the index: {}", ex.getMessage());
+            return TermPrefixTrie.EMPTY;
         }
-        return query;
     }
 
     /**
-     * Returns true iff {@code input} is an identifier.
+     * Builds the prefix index for the provided question documents.
+     *
+     * @param questions the stored data of each question
+     * @return the {@link TermPrefixTrie} for {@code questions}
+     */
+    @Nonnull
+    private TermPrefixTrie buildPrefixIndex(@Nonnull final List<SolrDocument> questions)
+    {
+        return questions.isEmpty()
+            ? TermPrefixTrie.EMPTY
+            : new TermPrefixTrie(questions.stream()
+                .map(doc -> new SolrVocabularyTerm(doc, this))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Builds a {@link SolrDocument} with the same fields as the indexed {@code input}, so that terms served from
+     * memory look exactly like terms retrieved from Solr.
      *
-     * @param input the query string
-     * @return true iff the {@code input} is an identifier
+     * @param input the {@link SolrInputDocument} built for a question
+     * @return a {@link SolrDocument} with the data from {@code input}
      */
-    private boolean isId(@Nonnull final String input)
+    @Nonnull
+    private SolrDocument buildTermDoc(@Nonnull final SolrInputDocument input)
     {
-        return ID_PATTERN.matcher(input).matches();
+        final SolrDocument doc = new SolrDocument();
+        input.getFieldNames().forEach(field -> doc.setField(field, input.getFieldValue(field)));
+        return doc;
+    }
+
+    /**
+     * Builds the {@link SolrInputDocument} to index for a question, from its stored fields.
+     *
+     * @param question the {@link SolrDocument} built for a question by {@link #buildTermDoc(SolrInputDocument)}
+     * @return a new {@link SolrInputDocument} with the data from {@code question}
+     */
+    @Nonnull
+    private SolrInputDocument buildSolrDoc(@Nonnull final SolrDocument question)
+    {
+        final SolrInputDocument doc = new SolrInputDocument();
+        question.getFieldNames().forEach(field -> doc.setField(field, question.getFieldValue(field)));
+        return doc;
     }
 
     /**
@@ -318,17 +529,4 @@ public class CarePathwaysQuestionOntology extends AbstractCSVSolrVocabulary
                 + questionRow);
         }
     }
-
-    /**
-     * Gets the {@link InputStream} from the provided {@code url}.
-     *
-     * @param url the {@link URL} containing the data
-     * @return the {@link InputStream}
-     * @throws IOException on failure
-     */
-    @Nonnull
-    private InputStream getInputStream(@Nonnull final URL url) throws IOException
-    {
-        return url.openConnection().getInputStream();
-    }
 }
@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A compact, versioned serialization of the whole care pathways vocabulary, meant to be downloaded once by the
+ * browser and revalidated with an {@code ETag}. Terms are listed in name order as three parallel JSON arrays:
+ * {@code id}, {@code name} and {@code parent}, where the parents of a term are given as positions in the {@code id}
+ * array. For example:
+ *
+ * <pre>
+ * {"version":"2018-04-11T15:29:42.000Z","id":["CP:1","CP:3"],"name":["Test","Cytogenetic"],"parent":[[],[0]]}
+ * </pre>
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class CarePathwaysSnapshot
+{
+    /** Orders terms by name, like the children lists of the hierarchy. */
+    private static final Comparator<VocabularyTerm> NAME_ORDER =
+        Comparator.comparing(VocabularyTerm::getName).thenComparing(VocabularyTerm::getId);
+
+    /** The wildcard {@code If-None-Match} value, matching any representation. */
+    private static final String ANY = "*";
+
+    /** The prefix of weak entity tags. */
+    private static final String WEAK_PREFIX = "W/";
+
+    /** Double quotes, delimiting entity tags. */
+    private static final char QUOTE = '"';
+
+    /** The vocabulary version, or the content hash if the index has no version information. */
+    private final String version;
+
+    /** The entity tag identifying this snapshot. */
+    private final String etag;
+
+    /** The serialized vocabulary. */
+    private final String json;
+
+    /**
+     * Serializes the provided terms.
+     *
+     * @param version the {@code HEADER_INFO} version of the indexed vocabulary, may be {@code null}
+     * @param terms all the vocabulary terms
+     * @param parents returns the parents of a term
+     */
+    CarePathwaysSnapshot(@Nullable final String version, @Nonnull final Collection<VocabularyTerm> terms,
+        @Nonnull final Function<String, List<VocabularyTerm>> parents)
+    {
+        final List<VocabularyTerm> sorted = terms.stream().sorted(NAME_ORDER).collect(Collectors.toList());
+        final Map<String, Integer> positions = new HashMap<>(sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            positions.put(sorted.get(i).getId(), i);
+        }
+        final JSONArray ids = new JSONArray();
+        final JSONArray names = new JSONArray();
+        final JSONArray parentPositions = new JSONArray();
+        for (final VocabularyTerm term : sorted) {
+            ids.put(term.getId());
+            names.put(StringUtils.defaultString(term.getName()));
+            parentPositions.put(new JSONArray(parents.apply(term.getId()).stream()
+                .map(parent -> positions.get(parent.getId()))
+                .filter(Objects::nonNull)
+                .sorted()
+                .collect(Collectors.toList())));
+        }
+        // JSONObject doesn't keep the key order, so the fixed layout is assembled from the serialized arrays
+        final String data = "\"id\":" + ids + ",\"name\":" + names + ",\"parent\":" + parentPositions;
+        this.version = StringUtils.defaultIfBlank(version, Integer.toHexString(data.hashCode()));
+        this.etag = QUOTE + this.version + QUOTE;
+        this.json = "{\"version\":" + JSONObject.quote(this.version) + "," + data + "}";
+    }
+
+    /**
+     * Returns the version of the vocabulary in this snapshot.
+     *
+     * @return the version stored in the index, or a hash of the content if the index has no version information
+     */
+    @Nonnull
+    public String getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Returns the entity tag to send in the {@code ETag} response header.
+     *
+     * @return the quoted version
+     */
+    @Nonnull
+    public String getETag()
+    {
+        return this.etag;
+    }
+
+    /**
+     * Returns the serialized vocabulary.
+     *
+     * @return the JSON representation of this snapshot
+     */
+    @Nonnull
+    public String getJSON()
+    {
+        return this.json;
+    }
+
+    /**
+     * Checks if the representation cached by the client is still current, in which case a {@code 304 Not Modified}
+     * response can be sent instead of the whole vocabulary.
+     *
+     * @param ifNoneMatch the value of the {@code If-None-Match} request header, may be {@code null}
+     * @return true iff one of the listed entity tags matches this snapshot
+     */
+    public boolean matches(@Nullable final String ifNoneMatch)
+    {
+        if (StringUtils.isBlank(ifNoneMatch)) {
+            return false;
+        }
+        for (final String tag : StringUtils.split(ifNoneMatch, ',')) {
+            final String trimmed = tag.trim();
+            if (ANY.equals(trimmed) || this.etag.equals(StringUtils.removeStart(trimmed, WEAK_PREFIX))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
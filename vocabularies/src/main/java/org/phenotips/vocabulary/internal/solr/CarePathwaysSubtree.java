@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A snapshot of a branch of the care pathways hierarchy, holding the sorted children of every term under a given root,
+ * so that a whole tree can be rendered after a single vocabulary call.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class CarePathwaysSubtree
+{
+    /** The identifier of the term at the top of this branch. */
+    private final String rootId;
+
+    /** The children of each term in the branch, sorted by name. */
+    private final Map<String, List<VocabularyTerm>> children;
+
+    /** The total number of descendants of each term in the branch. */
+    private final Map<String, Integer> descendantCounts;
+
+    /**
+     * Default constructor.
+     *
+     * @param rootId the identifier of the term at the top of this branch
+     * @param children the sorted children of each term in the branch, including leaves
+     * @param descendantCounts the number of descendants of each term in the branch
+     */
+    CarePathwaysSubtree(@Nonnull final String rootId, @Nonnull final Map<String, List<VocabularyTerm>> children,
+        @Nonnull final Map<String, Integer> descendantCounts)
+    {
+        this.rootId = rootId;
+        this.children = Collections.unmodifiableMap(children);
+        this.descendantCounts = Collections.unmodifiableMap(descendantCounts);
+    }
+
+    /**
+     * Returns the identifier of the term at the top of this branch.
+     *
+     * @return the root identifier
+     */
+    @Nonnull
+    public String getRootId()
+    {
+        return this.rootId;
+    }
+
+    /**
+     * Returns the identifiers of all the terms in this branch, including the root if it exists in the vocabulary.
+     *
+     * @return an unmodifiable set of term identifiers
+     */
+    @Nonnull
+    public Set<String> getTermIds()
+    {
+        return this.children.keySet();
+    }
+
+    /**
+     * Returns the direct children of a term in this branch, sorted by name.
+     *
+     * @param id the identifier of a term in this branch
+     * @return an unmodifiable list of child terms, empty if the term is a leaf or is not part of this branch
+     */
+    @Nonnull
+    public List<VocabularyTerm> getChildren(@Nullable final String id)
+    {
+        final List<VocabularyTerm> result = id == null ? null : this.children.get(id);
+        return result == null ? Collections.emptyList() : result;
+    }
+
+    /**
+     * Returns the number of terms that have the given term as an ancestor, at any depth.
+     *
+     * @param id the identifier of a term in this branch
+     * @return the number of descendants, {@code 0} if the term is a leaf or is not part of this branch
+     */
+    public int getDescendantCount(@Nullable final String id)
+    {
+        final Integer result = id == null ? null : this.descendantCounts.get(id);
+        return result == null ? 0 : result;
+    }
+}
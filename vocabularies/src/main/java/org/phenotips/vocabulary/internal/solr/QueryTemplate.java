@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
+import org.apache.solr.client.solrj.SolrQuery.SortClause;
+
+/**
+ * The static part of a Solr query, such as the query parser and the boosted fields, built once and then applied to
+ * every new query, so that only the parts depending on the request remain to be set on each search. Templates are
+ * immutable and can be shared between threads.
+ */
+final class QueryTemplate
+{
+    /** A template without any parameters. */
+    static final QueryTemplate EMPTY = new QueryTemplate(Collections.emptyMap());
+
+    /** Separates the items of a sort specification. */
+    private static final Pattern SORT_SEPARATOR = Pattern.compile("\\s*,\\s*");
+
+    /** The maximum number of parsed sort specifications kept; requests use very few distinct ones. */
+    private static final int MAX_CACHED_SORTS = 64;
+
+    /** The parsed sort specifications, by their text. */
+    private static final ConcurrentMap<String, List<SortClause>> SORTS = new ConcurrentHashMap<>();
+
+    /** The parameters set by this template, in the order they were added. */
+    private final Map<String, String> params;
+
+    private QueryTemplate(@Nonnull final Map<String, String> params)
+    {
+        this.params = params;
+    }
+
+    /**
+     * Returns a template setting the same parameters as this one, and another parameter.
+     *
+     * @param name the parameter name
+     * @param value the parameter value
+     * @return a new {@link QueryTemplate}, this template is not changed
+     */
+    @Nonnull
+    QueryTemplate with(@Nonnull final String name, @Nonnull final String value)
+    {
+        final Map<String, String> extended = new LinkedHashMap<>(this.params);
+        extended.put(name, value);
+        return new QueryTemplate(Collections.unmodifiableMap(extended));
+    }
+
+    /**
+     * Creates a new query with the parameters of this template.
+     *
+     * @return a new {@link SolrQuery}
+     */
+    @Nonnull
+    SolrQuery newQuery()
+    {
+        return applyTo(new SolrQuery());
+    }
+
+    /**
+     * Sets the parameters of this template on an existing query, replacing any previous values.
+     *
+     * @param query the {@link SolrQuery} being formed
+     * @return the updated {@code query}
+     */
+    @Nonnull
+    SolrQuery applyTo(@Nonnull final SolrQuery query)
+    {
+        for (final Map.Entry<String, String> param : this.params.entrySet()) {
+            query.set(param.getKey(), param.getValue());
+        }
+        return query;
+    }
+
+    /**
+     * Parses a sort specification, such as {@code name asc, -depth}, reusing the result of previous parses. Each item
+     * is a field, followed by {@code asc} or {@code desc}, or prefixed by {@code -} for a descending order.
+     *
+     * @param sort the sort specification, may be blank
+     * @return the unmodifiable list of sort clauses, empty if {@code sort} is blank
+     */
+    @Nonnull
+    static List<SortClause> parseSort(@Nullable final String sort)
+    {
+        if (StringUtils.isBlank(sort)) {
+            return Collections.emptyList();
+        }
+        final List<SortClause> cached = SORTS.get(sort);
+        if (cached != null) {
+            return cached;
+        }
+        final List<SortClause> result = new ArrayList<>();
+        for (final String item : SORT_SEPARATOR.split(sort.trim())) {
+            final boolean descending = item.endsWith(" desc") || item.startsWith("-");
+            final String field = StringUtils.removeStart(StringUtils.substringBefore(item, " "), "-");
+            result.add(SortClause.create(field, descending ? ORDER.desc : ORDER.asc));
+        }
+        final List<SortClause> parsed = Collections.unmodifiableList(result);
+        if (SORTS.size() < MAX_CACHED_SORTS) {
+            SORTS.putIfAbsent(sort, parsed);
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.common.params.DisMaxParams;
+
+/**
+ * How a vocabulary search trades recall for latency: the searched fields and their boosts, the maximum number of
+ * results, and whether queries that find nothing are spellchecked. Profiles are immutable; a changed copy is obtained
+ * with the {@code with*} methods.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class SearchProfile
+{
+    /** The name of the cheap profile for autocompletion, searching only the name fields. */
+    public static final String TYPEAHEAD = "typeahead";
+
+    /** The name of the default profile, searching all the fields. */
+    public static final String FULL = "full";
+
+    /** The name of the profile used for identifier queries. */
+    public static final String ID = "id";
+
+    /**
+     * The static parameters shared by all profiles. Spellchecking is disabled, it is only requested when a query finds
+     * nothing and the profile {@link #isSpellchecked() allows it}.
+     */
+    private static final QueryTemplate BASE = QueryTemplate.EMPTY
+        .with("spellcheck", Boolean.toString(false))
+        .with("lowercaseOperators", Boolean.toString(false))
+        .with("defType", "edismax");
+
+    /** The profile name. */
+    private final String name;
+
+    /** The phrase fields, with their boosts. */
+    private final String phraseFields;
+
+    /** The query fields, with their boosts. */
+    private final String queryFields;
+
+    /** The maximum number of results returned by one search. */
+    private final int maxRows;
+
+    /** Whether queries that find nothing are run again with spellchecking. */
+    private final boolean spellcheck;
+
+    /** The static query parameters of this profile. */
+    private final QueryTemplate template;
+
+    /**
+     * Default constructor.
+     *
+     * @param name the profile name
+     * @param phraseFields the {@link DisMaxParams#PF phrase fields} with their boosts, may be blank
+     * @param queryFields the {@link DisMaxParams#QF query fields} with their boosts, may be blank
+     * @param maxRows the maximum number of results returned by one search
+     * @param spellcheck whether queries that find nothing are run again with spellchecking
+     */
+    SearchProfile(@Nonnull final String name, @Nullable final String phraseFields, @Nullable final String queryFields,
+        final int maxRows, final boolean spellcheck)
+    {
+        this.name = name;
+        this.phraseFields = StringUtils.trimToEmpty(phraseFields);
+        this.queryFields = StringUtils.trimToEmpty(queryFields);
+        this.maxRows = Math.max(0, maxRows);
+        this.spellcheck = spellcheck;
+        QueryTemplate fields = BASE;
+        if (!this.phraseFields.isEmpty()) {
+            fields = fields.with(DisMaxParams.PF, this.phraseFields);
+        }
+        if (!this.queryFields.isEmpty()) {
+            fields = fields.with(DisMaxParams.QF, this.queryFields);
+        }
+        this.template = fields;
+    }
+
+    /**
+     * Returns the profile name.
+     *
+     * @return the name, for example {@link #TYPEAHEAD}
+     */
+    @Nonnull
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * Returns the phrase fields searched by this profile.
+     *
+     * @return the fields with their boosts, for example {@code name^20 nameSpell^36}, empty if none are set
+     */
+    @Nonnull
+    public String getPhraseFields()
+    {
+        return this.phraseFields;
+    }
+
+    /**
+     * Returns the query fields searched by this profile.
+     *
+     * @return the fields with their boosts, for example {@code name^10 nameSpell^18}, empty if none are set
+     */
+    @Nonnull
+    public String getQueryFields()
+    {
+        return this.queryFields;
+    }
+
+    /**
+     * Returns the maximum number of results returned by one search, whatever the requested number.
+     *
+     * @return the rows cap
+     */
+    public int getMaxRows()
+    {
+        return this.maxRows;
+    }
+
+    /**
+     * Returns whether queries that find nothing are run again with spellchecking.
+     *
+     * @return {@code true} if typos are corrected, at the cost of a second query
+     */
+    public boolean isSpellchecked()
+    {
+        return this.spellcheck;
+    }
+
+    /**
+     * Returns a copy of this profile searching other phrase fields.
+     *
+     * @param fields the fields with their boosts, may be blank
+     * @return a new {@link SearchProfile}, this profile is not changed
+     */
+    @Nonnull
+    public SearchProfile withPhraseFields(@Nullable final String fields)
+    {
+        return new SearchProfile(this.name, fields, this.queryFields, this.maxRows, this.spellcheck);
+    }
+
+    /**
+     * Returns a copy of this profile searching other query fields.
+     *
+     * @param fields the fields with their boosts, may be blank
+     * @return a new {@link SearchProfile}, this profile is not changed
+     */
+    @Nonnull
+    public SearchProfile withQueryFields(@Nullable final String fields)
+    {
+        return new SearchProfile(this.name, this.phraseFields, fields, this.maxRows, this.spellcheck);
+    }
+
+    /**
+     * Returns a copy of this profile with another rows cap.
+     *
+     * @param rows the maximum number of results returned by one search
+     * @return a new {@link SearchProfile}, this profile is not changed
+     */
+    @Nonnull
+    public SearchProfile withMaxRows(final int rows)
+    {
+        return new SearchProfile(this.name, this.phraseFields, this.queryFields, rows, this.spellcheck);
+    }
+
+    /**
+     * Returns a copy of this profile with another spellcheck policy.
+     *
+     * @param enabled whether queries that find nothing are run again with spellchecking
+     * @return a new {@link SearchProfile}, this profile is not changed
+     */
+    @Nonnull
+    public SearchProfile withSpellcheck(final boolean enabled)
+    {
+        return new SearchProfile(this.name, this.phraseFields, this.queryFields, this.maxRows, enabled);
+    }
+
+    /**
+     * Caps the requested number of results to the {@link #getMaxRows() maximum} of this profile.
+     *
+     * @param requested the requested number of results
+     * @return the number of results to return
+     */
+    int limit(final int requested)
+    {
+        return Math.min(requested, this.maxRows);
+    }
+
+    /**
+     * Returns the static query parameters of this profile: the query parser and the searched fields.
+     *
+     * @return the {@link QueryTemplate} of this profile
+     */
+    @Nonnull
+    QueryTemplate getTemplate()
+    {
+        return this.template;
+    }
+
+    @Override
+    public boolean equals(@Nullable final Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SearchProfile)) {
+            return false;
+        }
+        final SearchProfile other = (SearchProfile) obj;
+        return this.name.equals(other.name) && this.phraseFields.equals(other.phraseFields)
+            && this.queryFields.equals(other.queryFields) && this.maxRows == other.maxRows
+            && this.spellcheck == other.spellcheck;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(this.name, this.phraseFields, this.queryFields, this.maxRows, this.spellcheck);
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.name + " [pf=" + this.phraseFields + ", qf=" + this.queryFields + ", rows=" + this.maxRows
+            + ", spellcheck=" + this.spellcheck + ']';
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.io.IOException;
+
+import javax.annotation.Nonnull;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+
+/**
+ * Receives the documents parsed from a vocabulary source one at a time, as they are built, so that a source can be
+ * indexed without keeping all its documents in memory.
+ */
+@FunctionalInterface
+interface SolrDocumentConsumer
+{
+    /**
+     * Processes the next parsed document. May block while earlier documents are being sent to the index.
+     *
+     * @param doc the parsed document
+     * @throws SolrServerException if sending documents to the index fails
+     * @throws IOException if communicating with the index fails
+     */
+    void accept(@Nonnull SolrInputDocument doc) throws SolrServerException, IOException;
+}
@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+
+/**
+ * Answers searches for term identifiers, such as a single identifier or a pasted list of them, directly by identifier
+ * instead of going through query parsing and spellchecking.
+ */
+final class TermIdLookup
+{
+    /** Separates the identifiers in a pasted list. */
+    private static final Pattern ID_SEPARATOR = Pattern.compile("[\\s,;]+");
+
+    /** The label for the field storing the term identifier. */
+    private static final String ID = "id";
+
+    private TermIdLookup()
+    {
+        // Utility class
+    }
+
+    /**
+     * Reads the identifiers from a search input made only of identifiers, separated by whitespace, commas or
+     * semicolons.
+     *
+     * @param input the search input
+     * @param idPattern matches a single identifier of the vocabulary, case insensitive
+     * @return the distinct identifiers in upper case, in input order, or an empty list if {@code input} contains
+     *         anything else than identifiers
+     */
+    @Nonnull
+    static List<String> parse(@Nullable final String input, @Nonnull final Pattern idPattern)
+    {
+        final Set<String> result = new LinkedHashSet<>();
+        for (final String token : ID_SEPARATOR.split(StringUtils.trimToEmpty(input))) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (!idPattern.matcher(token).matches()) {
+                return Collections.emptyList();
+            }
+            result.add(token.toUpperCase(Locale.ROOT));
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Fetches the documents with the given identifiers with a single real-time get, bypassing the query parser.
+     *
+     * @param client the connection to the index
+     * @param ids the identifiers to look up
+     * @return the documents of the existing terms, by identifier
+     * @throws SolrServerException if the index cannot be queried
+     * @throws IOException if communicating with the index fails
+     */
+    @Nonnull
+    static Map<String, SolrDocument> fetch(@Nonnull final SolrClient client, @Nonnull final List<String> ids)
+        throws SolrServerException, IOException
+    {
+        if (ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final SolrDocumentList docs = client.getById(ids);
+        if (docs == null || docs.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<String, SolrDocument> result = new HashMap<>();
+        for (int i = 0; i < docs.size(); i++) {
+            result.put(String.valueOf(docs.get(i).getFieldValue(ID)), docs.get(i));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * An in-memory prefix index over the words of the term names of a vocabulary, used for answering typeahead queries
+ * without going through Solr. Every word of a term name is inserted in a character trie, and each trie node stores the
+ * sorted ordinals of all the terms having a word starting with that prefix, so that completing a prefix is a single
+ * walk down the trie. Multi-word queries return the terms matching every typed word prefix.
+ */
+final class TermPrefixTrie
+{
+    /** A trie without any terms. */
+    static final TermPrefixTrie EMPTY = new TermPrefixTrie();
+
+    /** Splits names and queries into words. */
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /** The sort specifications that can be applied to completions: by name, in either direction. */
+    private static final Pattern NAME_SORT = Pattern.compile("^(name|nameSort)(\\s+(asc|desc))?$");
+
+    /** Orders terms by name. */
+    private static final Comparator<VocabularyTerm> NAME_ORDER =
+        Comparator.comparing(VocabularyTerm::getName).thenComparing(VocabularyTerm::getId);
+
+    /** Ranks an exact name match first. */
+    private static final int EXACT_MATCH = 0;
+
+    /** Ranks names starting with the whole query second. */
+    private static final int NAME_PREFIX_MATCH = 1;
+
+    /** Ranks names whose first word starts with the first query word third. */
+    private static final int FIRST_WORD_MATCH = 2;
+
+    /** Ranks all other matches last. */
+    private static final int OTHER_MATCH = 3;
+
+    /** The indexed terms, sorted by name; the position of a term in this array is its ordinal. */
+    private final VocabularyTerm[] terms;
+
+    /** The normalized names of the indexed terms, by ordinal. */
+    private final String[] names;
+
+    /** The root of the trie, corresponding to the empty prefix. */
+    private final Node root;
+
+    /**
+     * Builds the {@link #EMPTY empty} trie. The other constants are not initialized yet when it is built, so they must
+     * not be used here.
+     */
+    private TermPrefixTrie()
+    {
+        this.terms = new VocabularyTerm[0];
+        this.names = new String[0];
+        this.root = new Node();
+        this.root.freeze();
+    }
+
+    /**
+     * Builds the trie for the provided terms. Terms without a name are ignored.
+     *
+     * @param terms the vocabulary terms to index
+     */
+    TermPrefixTrie(@Nonnull final Collection<VocabularyTerm> terms)
+    {
+        this.terms = terms.stream()
+            .filter(Objects::nonNull)
+            .filter(term -> StringUtils.isNotBlank(term.getName()))
+            .sorted(NAME_ORDER)
+            .toArray(VocabularyTerm[]::new);
+        this.names = new String[this.terms.length];
+        final Node builder = new Node();
+        for (int ordinal = 0; ordinal < this.terms.length; ordinal++) {
+            this.names[ordinal] = normalize(this.terms[ordinal].getName());
+            for (final String word : split(this.names[ordinal])) {
+                builder.insert(word, 0, ordinal);
+            }
+        }
+        builder.freeze();
+        this.root = builder;
+    }
+
+    /**
+     * Returns true iff no terms are indexed.
+     *
+     * @return true iff the trie is empty
+     */
+    boolean isEmpty()
+    {
+        return this.terms.length == 0;
+    }
+
+    /**
+     * Finds the terms whose names contain, for each word of {@code input}, a word starting with it. Results are ranked
+     * with exact name matches first, then names starting with the input, then names starting with the first typed
+     * word, and then all other matches; ties are broken by preferring shorter names, then alphabetically.
+     *
+     * @param input the text typed so far
+     * @param filter only terms accepted by this filter are returned
+     * @param maxResults the maximum number of terms to return
+     * @return the ranked matching terms, an empty list if nothing matches
+     */
+    @Nonnull
+    List<VocabularyTerm> complete(@Nullable final String input, @Nonnull final Predicate<VocabularyTerm> filter,
+        final int maxResults)
+    {
+        return complete(input, filter, maxResults, null);
+    }
+
+    /**
+     * Finds the terms whose names contain, for each word of {@code input}, a word starting with it, like
+     * {@link #complete(String, Predicate, int)}, but sorted according to {@code sort} before being truncated to
+     * {@code maxResults}.
+     *
+     * @param input the text typed so far
+     * @param filter only terms accepted by this filter are returned
+     * @param maxResults the maximum number of terms to return
+     * @param sort a Solr sort specification accepted by {@link #supportsSort(String)}; if blank, results are ranked
+     * @return the sorted matching terms, an empty list if nothing matches
+     */
+    @Nonnull
+    List<VocabularyTerm> complete(@Nullable final String input, @Nonnull final Predicate<VocabularyTerm> filter,
+        final int maxResults, @Nullable final String sort)
+    {
+        if (StringUtils.isNotBlank(sort)) {
+            final List<VocabularyTerm> all = complete(input, filter, Integer.MAX_VALUE, null);
+            all.sort(sort.trim().endsWith(" desc") ? NAME_ORDER.reversed() : NAME_ORDER);
+            return all.size() > maxResults ? new ArrayList<>(all.subList(0, maxResults)) : all;
+        }
+        final String query = normalize(input);
+        final String[] words = split(query);
+        if (words.length == 0 || maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        int[] candidates = null;
+        for (final String word : words) {
+            final Node node = this.root.find(word, 0);
+            if (node == null) {
+                return Collections.emptyList();
+            }
+            candidates = candidates == null ? node.postings : intersect(candidates, node.postings);
+            if (candidates.length == 0) {
+                return Collections.emptyList();
+            }
+        }
+        final List<Integer> ranked = new ArrayList<>(candidates.length);
+        Arrays.stream(candidates).forEach(ranked::add);
+        ranked.sort(Comparator.<Integer>comparingInt(ordinal -> rank(this.names[ordinal], query, words[0]))
+            .thenComparingInt(ordinal -> this.names[ordinal].length())
+            .thenComparingInt(Integer::intValue));
+        final List<VocabularyTerm> result = new ArrayList<>(Math.min(maxResults, ranked.size()));
+        for (final Integer ordinal : ranked) {
+            if (filter.test(this.terms[ordinal])) {
+                result.add(this.terms[ordinal]);
+                if (result.size() == maxResults) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks if completions can be sorted as requested by a Solr sort specification, i.e. if it is blank or it only
+     * sorts by name.
+     *
+     * @param sort the Solr sort specification, for example {@code nameSort asc}
+     * @return true iff {@link #complete(String, Predicate, int, String)} supports {@code sort}
+     */
+    static boolean supportsSort(@Nullable final String sort)
+    {
+        return StringUtils.isBlank(sort) || NAME_SORT.matcher(sort.trim()).matches();
+    }
+
+    private int rank(@Nonnull final String name, @Nonnull final String query, @Nonnull final String firstWord)
+    {
+        if (name.equals(query)) {
+            return EXACT_MATCH;
+        }
+        if (name.startsWith(query)) {
+            return NAME_PREFIX_MATCH;
+        }
+        return name.startsWith(firstWord) ? FIRST_WORD_MATCH : OTHER_MATCH;
+    }
+
+    @Nonnull
+    private static String normalize(@Nullable final String value)
+    {
+        return StringUtils.stripAccents(StringUtils.trimToEmpty(value)).toLowerCase(Locale.ROOT);
+    }
+
+    @Nonnull
+    private static String[] split(@Nonnull final String value)
+    {
+        return Arrays.stream(WORD_SEPARATOR.split(value)).filter(StringUtils::isNotEmpty).toArray(String[]::new);
+    }
+
+    /**
+     * Intersects two sorted arrays of ordinals.
+     *
+     * @param a a sorted array of distinct ordinals
+     * @param b another sorted array of distinct ordinals
+     * @return the sorted ordinals present in both arrays
+     */
+    @Nonnull
+    private static int[] intersect(@Nonnull final int[] a, @Nonnull final int[] b)
+    {
+        final int[] result = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * A node of the trie, holding the ordinals of all the terms with a word starting with the prefix it represents.
+     */
+    private static final class Node
+    {
+        /** The child nodes, by the next character of the prefix. */
+        private Map<Character, Node> children = new HashMap<>();
+
+        /** The sorted ordinals of the matching terms; only the first {@link #size} entries are used while building. */
+        private int[] postings = new int[1];
+
+        /** The number of ordinals stored in {@link #postings} while building. */
+        private int size;
+
+        /**
+         * Adds the term with the given ordinal to this node and to all the nodes on the path for {@code word}. Terms
+         * must be inserted in increasing ordinal order.
+         *
+         * @param word the word to insert
+         * @param offset the position in {@code word} corresponding to this node
+         * @param ordinal the ordinal of the term having this word in its name
+         */
+        void insert(@Nonnull final String word, final int offset, final int ordinal)
+        {
+            // The same prefix may occur in several words of the same name, store the term only once.
+            if (this.size == 0 || this.postings[this.size - 1] != ordinal) {
+                if (this.size == this.postings.length) {
+                    this.postings = Arrays.copyOf(this.postings, this.size * 2);
+                }
+                this.postings[this.size++] = ordinal;
+            }
+            if (offset < word.length()) {
+                this.children.computeIfAbsent(word.charAt(offset), c -> new Node()).insert(word, offset + 1, ordinal);
+            }
+        }
+
+        /**
+         * Finds the node for the given prefix.
+         *
+         * @param prefix the prefix to look for
+         * @param offset the position in {@code prefix} corresponding to this node
+         * @return the node for {@code prefix}, or {@code null} if no indexed word starts with it
+         */
+        @Nullable
+        Node find(@Nonnull final String prefix, final int offset)
+        {
+            if (offset == prefix.length()) {
+                return this;
+            }
+            final Node child = this.children.get(prefix.charAt(offset));
+            return child == null ? null : child.find(prefix, offset + 1);
+        }
+
+        /**
+         * Trims the storage of this node and its descendants once all the terms were inserted.
+         */
+        void freeze()
+        {
+            this.postings = Arrays.copyOf(this.postings, this.size);
+            this.children = this.children.isEmpty() ? Collections.emptyMap() : this.children;
+            this.children.values().forEach(Node::freeze);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The result of resolving a list of term identifiers at once: the terms that were found, in the requested order, and
+ * the identifiers that don't exist in the vocabulary.
+ *
+ * @version $Id$
+ * @since 1.0
+ */
+public final class TermResolution
+{
+    /** The terms that were found, by identifier, in the requested order. */
+    private final Map<String, VocabularyTerm> terms;
+
+    /** The requested identifiers that were not found, in the requested order. */
+    private final List<String> missingIds;
+
+    /**
+     * Default constructor.
+     *
+     * @param ids the distinct requested identifiers, in the requested order
+     * @param found the terms that were found, by identifier
+     */
+    TermResolution(@Nonnull final Collection<String> ids, @Nonnull final Map<String, VocabularyTerm> found)
+    {
+        final Map<String, VocabularyTerm> resolved = new LinkedHashMap<>();
+        final List<String> missing = new ArrayList<>();
+        for (final String id : ids) {
+            final VocabularyTerm term = found.get(id);
+            if (term == null) {
+                missing.add(id);
+            } else {
+                resolved.put(id, term);
+            }
+        }
+        this.terms = Collections.unmodifiableMap(resolved);
+        this.missingIds = Collections.unmodifiableList(missing);
+    }
+
+    /**
+     * Normalizes the identifiers to resolve, dropping blank and repeated ones.
+     *
+     * @param ids the requested identifiers, may be {@code null}
+     * @return the distinct trimmed identifiers, in the requested order
+     */
+    @Nonnull
+    static List<String> distinctIds(@Nullable final Collection<String> ids)
+    {
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        final Set<String> result = new LinkedHashSet<>();
+        for (final String id : ids) {
+            if (StringUtils.isNotBlank(id)) {
+                result.add(id.trim());
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * Returns the terms that were found.
+     *
+     * @return an unmodifiable list of terms, in the requested order
+     */
+    @Nonnull
+    public List<VocabularyTerm> getTerms()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(this.terms.values()));
+    }
+
+    /**
+     * Returns the term with the given identifier, if it was requested and found.
+     *
+     * @param id the term identifier
+     * @return the {@link VocabularyTerm}, or {@code null} if it was not requested or does not exist
+     */
+    @Nullable
+    public VocabularyTerm getTerm(@Nullable final String id)
+    {
+        return id == null ? null : this.terms.get(id);
+    }
+
+    /**
+     * Returns the requested identifiers that don't exist in the vocabulary.
+     *
+     * @return an unmodifiable list of identifiers, in the requested order, empty if all the terms were found
+     */
+    @Nonnull
+    public List<String> getMissingIds()
+    {
+        return this.missingIds;
+    }
+}
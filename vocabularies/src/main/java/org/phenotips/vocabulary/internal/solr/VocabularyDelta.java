@@ -0,0 +1,299 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nonnull;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+
+/**
+ * Updates a live index in place with freshly parsed vocabulary documents, instead of rebuilding it. Every document is
+ * stamped with a digest of its fields, so that unchanged documents are detected by comparing digests, without fetching
+ * and comparing their stored fields. Documents are consumed as they are parsed: changed documents are sent to the index
+ * in bounded batches, and the parser is blocked while a batch is being indexed, so only one batch is kept in memory.
+ */
+final class VocabularyDelta implements SolrDocumentConsumer
+{
+    /** The label for the field storing the digest of the indexed document. */
+    static final String DIGEST = "digest";
+
+    /** The label for the field storing the document identifier. */
+    private static final String ID = "id";
+
+    /** The connection to the index being updated. */
+    private final SolrClient client;
+
+    /** The maximum number of documents to send at once. */
+    private final int batchSize;
+
+    /** The digests of the indexed documents not yet seen in the source, by identifier. */
+    private final Map<String, Object> indexed;
+
+    /** The changed documents not yet sent to the index. */
+    private List<SolrInputDocument> batch = new ArrayList<>();
+
+    /** The identifiers of the documents that are new or changed. */
+    private final Set<String> updates = new HashSet<>();
+
+    /** The identifiers of the indexed documents that are no longer present in the source. */
+    private final List<String> deletes = new ArrayList<>();
+
+    private VocabularyDelta(@Nonnull final SolrClient client, final int batchSize,
+        @Nonnull final Map<String, Object> indexed)
+    {
+        this.client = client;
+        this.batchSize = Math.max(1, batchSize);
+        this.indexed = indexed;
+    }
+
+    /**
+     * Parses a vocabulary source into the documents of an index, sends the changed documents and deletes the
+     * documents no longer present in the source, then commits. If anything fails, the uncommitted changes are rolled
+     * back, so that the index keeps serving the previous data.
+     *
+     * @param client the connection to the index to update
+     * @param batchSize the maximum number of documents to send at once
+     * @param parser parses the source, passing every document, already {@link #stamp stamped}, to its consumer
+     * @return the {@link VocabularyDelta} that was applied to the index
+     * @throws SolrServerException if the index cannot be queried or updated
+     * @throws IOException if communicating with the index fails
+     */
+    @Nonnull
+    static VocabularyDelta update(@Nonnull final SolrClient client, final int batchSize, @Nonnull final Parser parser)
+        throws SolrServerException, IOException
+    {
+        return apply(new VocabularyDelta(client, batchSize, getIndexedDigests(client)), parser, false);
+    }
+
+    /**
+     * Replaces everything in an index with the documents parsed from a vocabulary source, streaming them to the index
+     * in batches, then commits. Used when the index holds no version information, so its content cannot be trusted.
+     * If anything fails, the uncommitted changes are rolled back, so that the index keeps its previous content.
+     *
+     * @param client the connection to the index to rebuild
+     * @param batchSize the maximum number of documents to send at once
+     * @param parser parses the source, passing every document, already {@link #stamp stamped}, to its consumer
+     * @return the {@link VocabularyDelta} that was applied to the index
+     * @throws SolrServerException if the index cannot be updated
+     * @throws IOException if communicating with the index fails
+     */
+    @Nonnull
+    static VocabularyDelta rebuild(@Nonnull final SolrClient client, final int batchSize, @Nonnull final Parser parser)
+        throws SolrServerException, IOException
+    {
+        return apply(new VocabularyDelta(client, batchSize, new HashMap<>()), parser, true);
+    }
+
+    @Nonnull
+    private static VocabularyDelta apply(@Nonnull final VocabularyDelta delta, @Nonnull final Parser parser,
+        final boolean clear) throws SolrServerException, IOException
+    {
+        final SolrClient client = delta.client;
+        try {
+            if (clear) {
+                client.deleteByQuery("*:*");
+            }
+            parser.parse(delta);
+            delta.finish();
+            return delta;
+        } catch (SolrServerException | IOException | RuntimeException ex) {
+            try {
+                client.rollback();
+            } catch (SolrServerException | IOException | RuntimeException rollbackEx) {
+                ex.addSuppressed(rollbackEx);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Stores the digest of a document in its {@link #DIGEST} field. Must be called on every document before it is
+     * indexed, and before it is passed to a delta.
+     *
+     * @param doc the document to stamp
+     * @return the same {@code doc}
+     */
+    @Nonnull
+    static SolrInputDocument stamp(@Nonnull final SolrInputDocument doc)
+    {
+        doc.setField(DIGEST, digest(doc));
+        return doc;
+    }
+
+    @Override
+    public void accept(@Nonnull final SolrInputDocument doc) throws SolrServerException, IOException
+    {
+        final String id = String.valueOf(doc.getFieldValue(ID));
+        final Object indexedDigest = this.indexed.remove(id);
+        if (indexedDigest == null || !indexedDigest.equals(doc.getFieldValue(DIGEST))) {
+            this.updates.add(id);
+            this.batch.add(doc);
+            if (this.batch.size() >= this.batchSize) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Returns the identifiers of the documents that were added or replaced.
+     *
+     * @return an unmodifiable set of identifiers of new or changed documents
+     */
+    @Nonnull
+    Set<String> getUpdates()
+    {
+        return Collections.unmodifiableSet(this.updates);
+    }
+
+    /**
+     * Returns the identifiers of the documents that were deleted.
+     *
+     * @return an unmodifiable list of identifiers no longer present in the source
+     */
+    @Nonnull
+    List<String> getDeletes()
+    {
+        return Collections.unmodifiableList(this.deletes);
+    }
+
+    /**
+     * Returns the identifiers of all the documents affected by this delta.
+     *
+     * @return the identifiers of the updated and deleted documents
+     */
+    @Nonnull
+    Set<String> getAffectedIds()
+    {
+        final Set<String> result = new HashSet<>(this.updates);
+        result.addAll(this.deletes);
+        return result;
+    }
+
+    /**
+     * Sends the remaining changes to the index and commits them. Unchanged documents are not touched, so searches keep
+     * being answered from the same index while it is updated.
+     *
+     * @throws SolrServerException if the index cannot be updated
+     * @throws IOException if communicating with the index fails
+     */
+    private void finish() throws SolrServerException, IOException
+    {
+        flush();
+        this.deletes.addAll(this.indexed.keySet());
+        this.indexed.clear();
+        if (!this.deletes.isEmpty()) {
+            this.client.deleteById(this.deletes);
+        }
+        if (!this.updates.isEmpty() || !this.deletes.isEmpty()) {
+            this.client.commit();
+        }
+    }
+
+    private void flush() throws SolrServerException, IOException
+    {
+        if (!this.batch.isEmpty()) {
+            this.client.add(this.batch);
+            this.batch = new ArrayList<>();
+        }
+    }
+
+    @Nonnull
+    private static Map<String, Object> getIndexedDigests(@Nonnull final SolrClient client)
+        throws SolrServerException, IOException
+    {
+        final SolrQuery query = new SolrQuery("*:*");
+        query.setFields(ID, DIGEST);
+        query.setRows(Integer.MAX_VALUE);
+        final QueryResponse response = client.query(query);
+        final SolrDocumentList docs = response == null ? null : response.getResults();
+        if (docs == null) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Object> result = new HashMap<>(docs.size());
+        for (int i = 0; i < docs.size(); i++) {
+            final SolrDocument doc = docs.get(i);
+            result.put(String.valueOf(doc.getFieldValue(ID)), doc.getFieldValue(DIGEST));
+        }
+        return result;
+    }
+
+    /**
+     * Computes the digest of a document, over all its fields except the digest itself, in name order.
+     *
+     * @param doc the document to digest
+     * @return the hexadecimal digest of the document content
+     */
+    @Nonnull
+    private static String digest(@Nonnull final SolrInputDocument doc)
+    {
+        final MessageDigest digest = VocabularySource.newDigest();
+        for (final String name : new TreeSet<>(doc.getFieldNames())) {
+            final SolrInputField field = doc.getField(name);
+            if (DIGEST.equals(name) || field.getValueCount() == 0) {
+                continue;
+            }
+            update(digest, name + '#' + field.getValueCount());
+            for (final Object value : field.getValues()) {
+                update(digest, String.valueOf(value));
+            }
+        }
+        return VocabularySource.toHex(digest.digest());
+    }
+
+    private static void update(@Nonnull final MessageDigest digest, @Nonnull final String value)
+    {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        // Separate values, so that moving characters between consecutive values changes the digest.
+        digest.update((byte) 0);
+    }
+
+    /**
+     * Parses a vocabulary source into index documents.
+     */
+    @FunctionalInterface
+    interface Parser
+    {
+        /**
+         * Parses the whole source, passing the documents to {@code consumer} one at a time.
+         *
+         * @param consumer receives the parsed documents
+         * @throws SolrServerException if {@code consumer} fails to send documents to the index
+         * @throws IOException if reading the source or communicating with the index fails
+         */
+        void parse(@Nonnull SolrDocumentConsumer consumer) throws SolrServerException, IOException;
+    }
+}
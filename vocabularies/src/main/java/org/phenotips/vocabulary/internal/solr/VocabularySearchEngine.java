@@ -0,0 +1,751 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.SolrVocabularyResourceManager;
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.EntryEvictionConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.SortClause;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.SpellingParams;
+import org.slf4j.Logger;
+
+/**
+ * The search and indexing machinery shared by the care pathways vocabularies: the search results cache, the search
+ * profiles, identifier lookups, spellchecking, usage counters, and the incremental reindex. Each vocabulary creates
+ * its own engine, described by its {@link Settings}, and keeps only what is specific to its data, such as in-memory
+ * indexes and category filters.
+ */
+final class VocabularySearchEngine
+{
+    /** The label for the field storing the term identifier. */
+    private static final String ID = "id";
+
+    /** The parameter enabling spellchecking. */
+    private static final String SPELLCHECK = "spellcheck";
+
+    /** Queries returning fewer results than this are run again with spellchecking, to correct typos. */
+    private static final int SPELLCHECK_THRESHOLD = 1;
+
+    /** The parameters enabling spellchecking and collation, added when a query finds nothing. */
+    private static final QueryTemplate SPELLCHECK_QUERY = QueryTemplate.EMPTY
+        .with(SPELLCHECK, Boolean.toString(true))
+        .with(SpellingParams.SPELLCHECK_COLLATE, Boolean.toString(true))
+        .with(SpellingParams.SPELLCHECK_COUNT, "100")
+        .with(SpellingParams.SPELLCHECK_MAX_COLLATION_TRIES, "3");
+
+    /** The number of documents sent to the index at once, unless configured otherwise. */
+    private static final int DEFAULT_DOCS_PER_BATCH = 500000;
+
+    /** The maximum number of cached searches, unless configured otherwise. */
+    private static final int DEFAULT_SEARCH_CACHE_SIZE = 1000;
+
+    /** How long search results are kept, in seconds, unless configured otherwise. */
+    private static final int DEFAULT_SEARCH_CACHE_TTL = 600;
+
+    /** Separates the parts of the search cache keys. */
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    /** The vocabulary using this engine. */
+    private final Vocabulary vocabulary;
+
+    /** The per-vocabulary search settings. */
+    private final Settings settings;
+
+    /** Provides the connection to the index and the term cache of the vocabulary. */
+    private final SolrVocabularyResourceManager resources;
+
+    /** Provides the configuration of the search cache and of the indexing batches. */
+    private final ConfigurationSource configuration;
+
+    /** The logging object of the vocabulary. */
+    private final Logger logger;
+
+    /** Runs a query against the index of the vocabulary, with its own error handling; may return {@code null}. */
+    private final Function<SolrParams, SolrDocumentList> searcher;
+
+    /** The cache of search results, {@code null} if caching is disabled or the cache cannot be created. */
+    private final Cache<List<VocabularyTerm>> searchCache;
+
+    /** The profiles changed at runtime, by name, replacing the configured ones. */
+    private final ConcurrentMap<String, SearchProfile> tunedProfiles = new ConcurrentHashMap<>();
+
+    /** The profiles built from the configuration, by name, with the configured values they were built from. */
+    private final ConcurrentMap<String, ConfiguredProfile> configuredProfiles = new ConcurrentHashMap<>();
+
+    /** The number of searches answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of searches that had to be performed. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The number of queries sent to the index. */
+    private final AtomicLong queries = new AtomicLong();
+
+    /** The number of queries run again with spellchecking because they found nothing. */
+    private final AtomicLong spellcheckQueries = new AtomicLong();
+
+    /**
+     * Creates the engine of a vocabulary. It must be created once the vocabulary's dependencies are injected.
+     *
+     * @param vocabulary the vocabulary using this engine
+     * @param settings the search settings of the vocabulary
+     * @param resources provides the connection to the index and the term cache of the vocabulary
+     * @param configuration the source of the configuration
+     * @param cacheManager creates the search results cache
+     * @param logger the logging object of the vocabulary
+     * @param searcher runs a query against the index of the vocabulary, returning {@code null} if it fails
+     */
+    VocabularySearchEngine(
+        @Nonnull final Vocabulary vocabulary,
+        @Nonnull final Settings settings,
+        @Nonnull final SolrVocabularyResourceManager resources,
+        @Nonnull final ConfigurationSource configuration,
+        @Nonnull final CacheManager cacheManager,
+        @Nonnull final Logger logger,
+        @Nonnull final Function<SolrParams, SolrDocumentList> searcher)
+    {
+        this.vocabulary = vocabulary;
+        this.settings = settings;
+        this.resources = resources;
+        this.configuration = configuration;
+        this.logger = logger;
+        this.searcher = searcher;
+        this.searchCache = createSearchCache(cacheManager);
+    }
+
+    /**
+     * Checks the arguments of a search, logging a warning if the category is not supported by the vocabulary.
+     *
+     * @param input the searched text
+     * @param category the searched category
+     * @return {@code true} if the search can return results, {@code false} if it must return nothing
+     */
+    boolean accepts(@Nullable final String input, @Nonnull final String category)
+    {
+        if (StringUtils.isBlank(input)) {
+            return false;
+        }
+        // If the wrong category was provided for the vocabulary, want to provide an appropriate log message.
+        if (!this.settings.categories.contains(category)) {
+            this.logger.warn("The provided category [{}] is not supported by the {} vocabulary.", category,
+                this.vocabulary.getIdentifier());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the cached results for a search, performing it and caching its results if needed. Results are cached
+     * per version of the searched data, and the whole cache is cleared once a reindex succeeds. Concurrent identical
+     * searches may all run.
+     *
+     * @param version the version of the searched data, or {@code null} if results are only discarded by reindexing
+     * @param input the searched text
+     * @param category the searched category
+     * @param maxResults the maximum number of results
+     * @param sort the sorting order, may be blank
+     * @param customFilter the custom filter, may be blank
+     * @param profile the search profile
+     * @param search performs the search if its results are not cached, returning {@code null} if it failed
+     * @return the unmodifiable search results, empty if the search failed
+     */
+    @Nonnull
+    List<VocabularyTerm> search(
+        @Nullable final String version,
+        @Nonnull final String input,
+        @Nonnull final String category,
+        final int maxResults,
+        @Nullable final String sort,
+        @Nullable final String customFilter,
+        @Nonnull final SearchProfile profile,
+        @Nonnull final Supplier<List<VocabularyTerm>> search)
+    {
+        final String key = cacheKey(version, input, category, maxResults, sort, customFilter, profile);
+        final List<VocabularyTerm> cached = this.searchCache == null ? null : this.searchCache.get(key);
+        if (cached != null) {
+            this.hits.incrementAndGet();
+            return cached;
+        }
+        this.misses.incrementAndGet();
+        final List<VocabularyTerm> found = search.get();
+        if (found == null) {
+            // Failed searches are retried by the next identical search instead of hiding results until they expire.
+            return Collections.emptyList();
+        }
+        final List<VocabularyTerm> results = Collections.unmodifiableList(new ArrayList<>(found));
+        if (this.searchCache != null) {
+            this.searchCache.set(key, results);
+        }
+        return results;
+    }
+
+    /**
+     * Builds the search cache key for a search, normalizing the parts that don't change its results.
+     *
+     * @param version the version of the searched vocabulary data, may be {@code null} if unknown
+     * @param input the searched text
+     * @param category the searched category
+     * @param maxResults the maximum number of results
+     * @param sort the sorting order, may be blank
+     * @param customFilter the custom filter, may be blank
+     * @param profile the search profile
+     * @return the key for the search
+     */
+    @Nonnull
+    static String cacheKey(@Nullable final String version, @Nonnull final String input, @Nonnull final String category,
+        final int maxResults, @Nullable final String sort, @Nullable final String customFilter,
+        @Nonnull final SearchProfile profile)
+    {
+        // Profiles are part of the key with all their values, so that changing a profile at runtime doesn't return
+        // results computed before.
+        return StringUtils.join(Arrays.asList(StringUtils.defaultString(version), StringUtils.normalizeSpace(input),
+            category, maxResults, StringUtils.normalizeSpace(StringUtils.defaultString(sort)),
+            StringUtils.trimToEmpty(customFilter), profile), KEY_SEPARATOR);
+    }
+
+    /**
+     * Returns the current version of a search profile: the profile {@link #setProfile set at runtime} if any,
+     * otherwise the default profile of the vocabulary with the values configured in {@code xwiki.properties} with the
+     * {@code phenotips.vocabularies.<identifier>.searchProfiles.<profile>.pf}, {@code .qf}, {@code .rows} and
+     * {@code .spellcheck} properties. The configuration is read on every call, so that it can be changed without a
+     * restart, but the profile is only built again when the configured values change.
+     *
+     * @param name the profile name, {@link SearchProfile#FULL} if blank
+     * @return the {@link SearchProfile}, the full one if {@code name} is not a profile of the vocabulary
+     */
+    @Nonnull
+    SearchProfile getProfile(@Nullable final String name)
+    {
+        final String profileName = StringUtils.defaultIfBlank(name, SearchProfile.FULL);
+        final SearchProfile defaults = this.settings.profiles.get(profileName);
+        if (defaults == null) {
+            this.logger.warn("The search profile [{}] is not defined for the {} vocabulary, using the full profile",
+                profileName, this.vocabulary.getIdentifier());
+            return getProfile(SearchProfile.FULL);
+        }
+        final SearchProfile tuned = this.tunedProfiles.get(profileName);
+        if (tuned != null) {
+            return tuned;
+        }
+        final String prefix = "phenotips.vocabularies." + this.vocabulary.getIdentifier() + ".searchProfiles."
+            + profileName + '.';
+        final String phraseFields = this.configuration.getProperty(prefix + "pf", String.class);
+        final String queryFields = this.configuration.getProperty(prefix + "qf", String.class);
+        final Integer rows = this.configuration.getProperty(prefix + "rows", Integer.class);
+        final Boolean spellcheck = this.configuration.getProperty(prefix + "spellcheck", Boolean.class);
+        if (phraseFields == null && queryFields == null && rows == null && spellcheck == null) {
+            return defaults;
+        }
+        final List<Object> configured = Arrays.asList(phraseFields, queryFields, rows, spellcheck);
+        final ConfiguredProfile cached = this.configuredProfiles.get(profileName);
+        if (cached != null && cached.values.equals(configured)) {
+            return cached.profile;
+        }
+        final SearchProfile profile = new SearchProfile(profileName,
+            phraseFields == null ? defaults.getPhraseFields() : phraseFields,
+            queryFields == null ? defaults.getQueryFields() : queryFields,
+            rows == null || rows < 0 ? defaults.getMaxRows() : rows,
+            spellcheck == null ? defaults.isSpellchecked() : spellcheck);
+        this.configuredProfiles.put(profileName, new ConfiguredProfile(configured, profile));
+        return profile;
+    }
+
+    /**
+     * Replaces a search profile until the next restart, taking precedence over its configuration. Since cached
+     * results are stored per profile, searches with the new profile never return results computed with the old one.
+     *
+     * @param profile the new version of the profile, named after one of the profiles of the vocabulary
+     * @throws IllegalArgumentException if the vocabulary has no profile with the same name
+     */
+    void setProfile(@Nonnull final SearchProfile profile)
+    {
+        if (!this.settings.profiles.containsKey(profile.getName())) {
+            throw new IllegalArgumentException("Unknown search profile: " + profile.getName());
+        }
+        this.tunedProfiles.put(profile.getName(), profile);
+    }
+
+    /**
+     * Reads the identifiers from a search input made only of identifiers of the vocabulary, which can be looked up
+     * directly, without query parsing and spellchecking.
+     *
+     * @param input the search input
+     * @return the distinct identifiers in upper case, in input order, or an empty list if {@code input} contains
+     *         anything else than identifiers
+     */
+    @Nonnull
+    List<String> parseIds(@Nullable final String input)
+    {
+        return TermIdLookup.parse(input, this.settings.idPattern);
+    }
+
+    /**
+     * Returns true iff {@code input} is a single identifier of the vocabulary.
+     *
+     * @param input the query string
+     * @return true iff the {@code input} is an identifier
+     */
+    boolean isId(@Nonnull final String input)
+    {
+        return this.settings.idPattern.matcher(input).matches();
+    }
+
+    /**
+     * Finds the terms with the given identifiers, with a single real-time get from the index.
+     *
+     * @param ids the identifiers of the terms to find
+     * @return the existing terms, by identifier, or {@code null} if the index could not be queried
+     */
+    @Nullable
+    Map<String, VocabularyTerm> fetchTerms(@Nonnull final List<String> ids)
+    {
+        final Map<String, VocabularyTerm> result = new HashMap<>();
+        try {
+            TermIdLookup.fetch(this.resources.getSolrConnection(this.vocabulary), ids)
+                .forEach((id, doc) -> result.put(id, new SolrVocabularyTerm(doc, this.vocabulary)));
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.warn("Failed to look up terms by identifier: {}", ex.getMessage());
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * Searches the index, spellchecking the input if nothing is found.
+     *
+     * @param input the submitted input
+     * @param maxResults the maximum number of results to return
+     * @param sort the sorting order
+     * @param filter filters to apply to query
+     * @param isId true iff {@code input} is an ID
+     * @param profile the search profile, replaced by the {@link SearchProfile#ID identifier profile} if {@code isId}
+     * @return a list of {@link VocabularyTerm results} matching {@code input}, or {@code null} if the search failed
+     */
+    @Nullable
+    List<VocabularyTerm> search(
+        @Nonnull final String input,
+        final int maxResults,
+        @Nullable final String sort,
+        @Nullable final String filter,
+        final boolean isId,
+        @Nonnull final SearchProfile profile)
+    {
+        final SearchProfile used = isId ? getProfile(SearchProfile.ID) : profile;
+        final SolrDocumentList results =
+            searchWithSpellcheck(newQuery(input, maxResults, sort, filter, isId, used), used);
+        return results == null
+            ? null
+            : results.stream()
+                .map(doc -> new SolrVocabularyTerm(doc, this.vocabulary))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Builds the query for a search, from the static parameters of a search profile.
+     *
+     * @param input the submitted input
+     * @param rows the number of results to return
+     * @param sort the sorting order
+     * @param filter filters to apply to query
+     * @param isId true iff {@code input} is an ID
+     * @param profile the search profile
+     * @return a new {@link SolrQuery}, with spellchecking disabled
+     */
+    @Nonnull
+    SolrQuery newQuery(
+        @Nonnull final String input,
+        final int rows,
+        @Nullable final String sort,
+        @Nullable final String filter,
+        final boolean isId,
+        @Nonnull final SearchProfile profile)
+    {
+        return addDynamicQueryParameters(input, rows, sort, filter, isId, profile.getTemplate().newQuery());
+    }
+
+    /**
+     * Add the dynamic parameters to the {@code query}.
+     *
+     * @param originalQuery the original query string submitted
+     * @param rows the number of results to return
+     * @param sort the sorting order
+     * @param customFq filters to apply to query
+     * @param isId true iff {@code originalQuery} is an ID, false otherwise
+     * @param query the {@link SolrQuery} being formed
+     * @return the updated {@link SolrQuery}
+     */
+    @Nonnull
+    SolrQuery addDynamicQueryParameters(
+        @Nonnull final String originalQuery,
+        final int rows,
+        @Nullable final String sort,
+        @Nullable final String customFq,
+        final boolean isId,
+        @Nonnull final SolrQuery query)
+    {
+        final String queryString = originalQuery.trim();
+        final String escapedQuery = ClientUtils.escapeQueryChars(queryString);
+        if (isId) {
+            query.setFilterQueries(StringUtils.defaultIfBlank(customFq, ID + ':' + escapedQuery));
+        } else if (StringUtils.isNotBlank(customFq)) {
+            query.setFilterQueries(customFq);
+        }
+        query.setQuery(escapedQuery);
+        query.set(SpellingParams.SPELLCHECK_Q, queryString);
+        query.setRows(rows);
+        for (final SortClause sortItem : QueryTemplate.parseSort(sort)) {
+            query.addSort(sortItem);
+        }
+        return query;
+    }
+
+    /**
+     * Runs the {@code query} without spellchecking, and only if it returns fewer than {@link #SPELLCHECK_THRESHOLD}
+     * results and the profile allows it, runs it again with spellchecking, in which case the best collation is also
+     * tried, and its results are returned if they match better.
+     *
+     * @param query the {@link SolrQuery} to run, with spellchecking disabled
+     * @param profile the search profile, deciding whether spellchecking is allowed
+     * @return the search results, may be {@code null} if the search failed
+     */
+    @Nullable
+    SolrDocumentList searchWithSpellcheck(@Nonnull final SolrQuery query, @Nonnull final SearchProfile profile)
+    {
+        final SolrDocumentList results = search(query);
+        if (!profile.isSpellchecked() || results != null && results.size() >= SPELLCHECK_THRESHOLD) {
+            return results;
+        }
+        this.spellcheckQueries.incrementAndGet();
+        return search(SPELLCHECK_QUERY.applyTo(query.getCopy()));
+    }
+
+    /**
+     * Runs the {@code query} as it is.
+     *
+     * @param query the {@link SolrQuery} to run
+     * @return the search results, may be {@code null} if the search failed
+     */
+    @Nullable
+    SolrDocumentList search(@Nonnull final SolrQuery query)
+    {
+        this.queries.incrementAndGet();
+        return this.searcher.apply(query);
+    }
+
+    /**
+     * Returns the usage counters of the engine, for monitoring.
+     *
+     * @return the number of {@code hits} and {@code misses} of the search results cache since startup, and the number
+     *         of {@code queries} sent to the index, of which {@code spellcheckQueries} were run again with
+     *         spellchecking
+     */
+    @Nonnull
+    Map<String, Long> getStatistics()
+    {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        result.put("hits", this.hits.get());
+        result.put("misses", this.misses.get());
+        result.put("queries", this.queries.get());
+        result.put("spellcheckQueries", this.spellcheckQueries.get());
+        return result;
+    }
+
+    /**
+     * Returns the number of documents sent to the index at once, configured with the
+     * {@code phenotips.vocabularies.<identifier>.solrDocsPerBatch} property in {@code xwiki.properties}, which bounds
+     * the memory used while updating the index.
+     *
+     * @return the configured batch size, or the default one if it is not configured or invalid
+     */
+    int getDocsPerBatch()
+    {
+        final Integer configured = this.configuration.getProperty(
+            "phenotips.vocabularies." + this.vocabulary.getIdentifier() + ".solrDocsPerBatch", Integer.class);
+        return configured == null || configured < 1 ? DEFAULT_DOCS_PER_BATCH : configured;
+    }
+
+    /**
+     * Reindexes the vocabulary, unless the indexed data already has the version of the source. An already populated
+     * index is updated in place, so that it keeps serving searches from warm caches; an index without version
+     * information is rebuilt. Either way the documents are streamed to the index in batches, as they are parsed. Once
+     * the reindex succeeds, the search results cache is cleared.
+     *
+     * @param sourceUrl the location of the source
+     * @param parser parses the source into documents
+     * @param publish called once the reindex succeeded, before clearing the search cache, to publish the data loaded in
+     *            memory
+     * @return {@code 0} if the reindex succeeded or was not needed, {@code 1} if writing to the index failed, {@code 2}
+     *         if the source cannot be read
+     */
+    int reindex(@Nonnull final String sourceUrl, @Nonnull final SourceParser parser, @Nonnull final Runnable publish)
+    {
+        try (VocabularySource source = getSource(new URL(sourceUrl))) {
+            final String indexedVersion = getIndexedVersion();
+            if (source.getVersion().equals(indexedVersion)) {
+                this.logger.info("The {} vocabulary is already up to date, skipping reindex",
+                    this.vocabulary.getIdentifier());
+                return 0;
+            }
+            final int result = updateIndex(source, parser, indexedVersion == null);
+            if (result == 0) {
+                publish.run();
+                if (this.searchCache != null) {
+                    this.searchCache.removeAll();
+                }
+            }
+            return result;
+        } catch (final IOException ex) {
+            this.logger.warn("Failed to read/parse the {} source: {}", this.vocabulary.getIdentifier(),
+                ex.getMessage());
+            return 2;
+        }
+    }
+
+    /**
+     * Downloads the given source.
+     *
+     * @param url the location of the source
+     * @return the {@link VocabularySource} for {@code url}, to be closed once parsed
+     * @throws IOException if the source cannot be read
+     */
+    @Nonnull
+    VocabularySource getSource(@Nonnull final URL url) throws IOException
+    {
+        return VocabularySource.fetch(url, this.settings.indexFormat);
+    }
+
+    /**
+     * Reads the version of the data currently in the index.
+     *
+     * @return the indexed version, or {@code null} if the index is empty or cannot be read
+     */
+    @Nullable
+    private String getIndexedVersion()
+    {
+        try {
+            return VocabularySource.getIndexedVersion(this.resources.getSolrConnection(this.vocabulary));
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.warn("Failed to read the indexed {} version: {}", this.vocabulary.getIdentifier(),
+                ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Updates the live index in place, sending only the terms that were added, changed or removed since the last
+     * reindex, and evicting only those terms from the cache. When {@code rebuild} is set, the index content is
+     * replaced instead, without comparing it with the source, and the whole cache is cleared.
+     *
+     * @param source the source to index
+     * @param parser parses the source into documents
+     * @param rebuild whether the index content must be replaced, because it has no version information
+     * @return {@code 0} if the update succeeded, {@code 1} if writing to the index failed, {@code 2} if the source
+     *         cannot be parsed
+     */
+    private int updateIndex(@Nonnull final VocabularySource source, @Nonnull final SourceParser parser,
+        final boolean rebuild)
+    {
+        try {
+            final SolrClient client = this.resources.getSolrConnection(this.vocabulary);
+            final VocabularyDelta.Parser documents = consumer -> parser.parse(source, consumer);
+            final VocabularyDelta delta = rebuild
+                ? VocabularyDelta.rebuild(client, getDocsPerBatch(), documents)
+                : VocabularyDelta.update(client, getDocsPerBatch(), documents);
+            final Cache<VocabularyTerm> cache = this.resources.getTermCache(this.vocabulary);
+            if (rebuild) {
+                cache.removeAll();
+            } else {
+                delta.getAffectedIds().forEach(cache::remove);
+            }
+            this.logger.info("Updated the {} vocabulary: {} terms added or changed, {} removed",
+                this.vocabulary.getIdentifier(), delta.getUpdates().size(), delta.getDeletes().size());
+            return 0;
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.warn("Failed to update the {} index: {}", this.vocabulary.getIdentifier(), ex.getMessage());
+            return 1;
+        } catch (final RuntimeException ex) {
+            this.logger.warn("Failed to read/parse the {} source: {}", this.vocabulary.getIdentifier(),
+                ex.getMessage());
+            return 2;
+        }
+    }
+
+    /**
+     * Creates the cache of search results, configured with the
+     * {@code phenotips.vocabularies.<identifier>.searchCache.size} and
+     * {@code phenotips.vocabularies.<identifier>.searchCache.ttl} properties in {@code xwiki.properties}, the latter
+     * in seconds. Entries are evicted least recently used first when the cache is full, and once they are older than
+     * the time to live.
+     *
+     * @param cacheManager creates the cache
+     * @return the new, empty cache, or {@code null} if caching is disabled with a size of {@code 0}, or if the cache
+     *         cannot be created
+     */
+    @Nullable
+    private Cache<List<VocabularyTerm>> createSearchCache(@Nonnull final CacheManager cacheManager)
+    {
+        final String prefix = "phenotips.vocabularies." + this.vocabulary.getIdentifier() + ".searchCache";
+        final Integer size = this.configuration.getProperty(prefix + ".size", Integer.class);
+        final Integer ttl = this.configuration.getProperty(prefix + ".ttl", Integer.class);
+        if (size != null && size == 0) {
+            return null;
+        }
+        final CacheConfiguration cacheConfiguration = new CacheConfiguration();
+        cacheConfiguration.setConfigurationId(prefix);
+        final LRUEvictionConfiguration eviction = new LRUEvictionConfiguration();
+        eviction.setMaxEntries(size == null || size < 0 ? DEFAULT_SEARCH_CACHE_SIZE : size);
+        eviction.setTimeToLive(ttl == null || ttl < 0 ? DEFAULT_SEARCH_CACHE_TTL : ttl);
+        cacheConfiguration.put(EntryEvictionConfiguration.CONFIGURATIONID, eviction);
+        try {
+            return cacheManager.createNewLocalCache(cacheConfiguration);
+        } catch (final CacheException ex) {
+            this.logger.warn("Failed to create the {} search cache, searches will not be cached: {}",
+                this.vocabulary.getIdentifier(), ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parses a vocabulary source into index documents.
+     */
+    @FunctionalInterface
+    interface SourceParser
+    {
+        /**
+         * Parses the whole source, passing the documents to {@code consumer} one at a time.
+         *
+         * @param source the source to parse
+         * @param consumer receives the parsed documents
+         * @throws SolrServerException if {@code consumer} fails to send documents to the index
+         * @throws IOException if reading the source or communicating with the index fails
+         */
+        void parse(@Nonnull VocabularySource source, @Nonnull SolrDocumentConsumer consumer)
+            throws SolrServerException, IOException;
+    }
+
+    /**
+     * What distinguishes the searches of one vocabulary: its categories, the form of its identifiers, its default
+     * search profiles, and the layout of its indexed documents.
+     */
+    static final class Settings
+    {
+        /** The categories supported by the vocabulary. */
+        private final Collection<String> categories;
+
+        /** Matches a single identifier of the vocabulary, case insensitive. */
+        private final Pattern idPattern;
+
+        /** Identifies the layout of the indexed documents, and is part of the indexed version. */
+        private final String indexFormat;
+
+        /** The default search profiles, by name. */
+        private final Map<String, SearchProfile> profiles;
+
+        /**
+         * Default constructor.
+         *
+         * @param categories the categories supported by the vocabulary
+         * @param idPattern matches a single identifier of the vocabulary, case insensitive
+         * @param indexFormat identifies the layout of the indexed documents; it must be changed whenever the indexed
+         *            fields change, so that existing indexes are rebuilt even if the source data is the same
+         * @param profiles the default search profiles, which must include the {@link SearchProfile#FULL full} and the
+         *            {@link SearchProfile#ID identifier} profiles
+         * @throws IllegalArgumentException if a required profile is missing
+         */
+        Settings(
+            @Nonnull final Collection<String> categories,
+            @Nonnull final Pattern idPattern,
+            @Nonnull final String indexFormat,
+            @Nonnull final SearchProfile... profiles)
+        {
+            this.categories = Collections.unmodifiableCollection(categories);
+            this.idPattern = idPattern;
+            this.indexFormat = indexFormat;
+            final Map<String, SearchProfile> byName = new HashMap<>();
+            for (final SearchProfile profile : profiles) {
+                byName.put(profile.getName(), profile);
+            }
+            if (!byName.containsKey(SearchProfile.FULL) || !byName.containsKey(SearchProfile.ID)) {
+                throw new IllegalArgumentException("The full and id search profiles are required");
+            }
+            this.profiles = Collections.unmodifiableMap(byName);
+        }
+    }
+
+    /**
+     * A search profile built from the configuration, with the configured values it was built from.
+     */
+    private static final class ConfiguredProfile
+    {
+        /** The configured phrase fields, query fields, rows and spellchecking, {@code null} where not configured. */
+        private final List<Object> values;
+
+        /** The profile built from these values. */
+        private final SearchProfile profile;
+
+        /**
+         * Default constructor.
+         *
+         * @param values the configured values, in the order of the {@link SearchProfile} constructor
+         * @param profile the profile built from these values
+         */
+        ConfiguredProfile(@Nonnull final List<Object> values, @Nonnull final SearchProfile profile)
+        {
+            this.values = values;
+            this.profile = profile;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrDocument;
+
+/**
+ * The raw content of a vocabulary source file, downloaded once and identified by a digest of its content. The digest
+ * is used as the version of the indexed vocabulary, so that reindexing identical data can be detected and skipped.
+ * The content is kept in a temporary file rather than in memory, and the file is deleted when the source is
+ * {@link #close() closed}.
+ */
+final class VocabularySource implements Closeable
+{
+    /** The identifier of the document holding the vocabulary version. */
+    static final String HEADER_INFO = "HEADER_INFO";
+
+    /** The label for the field storing the vocabulary version. */
+    static final String VERSION = "version";
+
+    /** The digest algorithm used for computing versions. */
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /** The size of the buffer used for reading the source. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** The location the content was read from. */
+    private final String location;
+
+    /** The temporary file holding the source content. */
+    private final Path content;
+
+    /** The size of the content, in bytes. */
+    private final long size;
+
+    /** The hexadecimal digest of the format and content. */
+    private final String version;
+
+    private VocabularySource(@Nonnull final String location, @Nonnull final Path content, final long size,
+        @Nonnull final String version)
+    {
+        this.location = location;
+        this.content = content;
+        this.size = size;
+        this.version = version;
+    }
+
+    /**
+     * Downloads the whole source to a temporary file and computes its version.
+     *
+     * @param url the location of the source
+     * @param format identifies the layout of the documents built from the source; changing it changes the version
+     *            even if the source content is the same, so that the index is rebuilt when the indexing code changes
+     * @return the {@link VocabularySource} holding the content read from {@code url}, to be closed once parsed
+     * @throws IOException if the source cannot be read
+     */
+    @Nonnull
+    static VocabularySource fetch(@Nonnull final URL url, @Nonnull final String format) throws IOException
+    {
+        final MessageDigest digest = newDigest();
+        digest.update(format.getBytes(StandardCharsets.UTF_8));
+        final Path file = Files.createTempFile("vocabulary", ".source");
+        long size = 0;
+        try (InputStream in = url.openConnection().getInputStream(); OutputStream out = Files.newOutputStream(file)) {
+            final byte[] chunk = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+                digest.update(chunk, 0, read);
+                size += read;
+            }
+        } catch (final IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        return new VocabularySource(url.toExternalForm(), file, size, toHex(digest.digest()));
+    }
+
+    /**
+     * Creates a new digest, as used for computing versions.
+     *
+     * @return a new SHA-256 {@link MessageDigest}
+     */
+    @Nonnull
+    static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (final NoSuchAlgorithmException ex) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Formats a digest as text.
+     *
+     * @param digest the computed digest
+     * @return the lowercase hexadecimal representation of {@code digest}
+     */
+    @Nonnull
+    static String toHex(@Nonnull final byte[] digest)
+    {
+        final StringBuilder result = new StringBuilder(digest.length * 2);
+        for (final byte b : digest) {
+            result.append(String.format("%02x", b));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Reads the version stored in the {@code HEADER_INFO} document of an index, with a realtime get.
+     *
+     * @param client the connection to the index
+     * @return the indexed version, or {@code null} if the index holds no version information
+     * @throws SolrServerException if the index cannot be queried
+     * @throws IOException if communicating with the index fails
+     */
+    @Nullable
+    static String getIndexedVersion(@Nonnull final SolrClient client) throws SolrServerException, IOException
+    {
+        final SolrDocument header = client.getById(HEADER_INFO);
+        final Object version = header == null ? null : header.getFieldValue(VERSION);
+        return version == null ? null : String.valueOf(version);
+    }
+
+    /**
+     * Returns a new stream over the source content.
+     *
+     * @return an {@link InputStream} over the content, which must be closed
+     * @throws IOException if the downloaded content cannot be read
+     */
+    @Nonnull
+    InputStream open() throws IOException
+    {
+        return Files.newInputStream(this.content);
+    }
+
+    /**
+     * Splits the content into consecutive chunks of whole lines, so that they can be parsed independently. Line breaks
+     * inside double-quoted values are never split on. The chunk boundaries are found with a single sequential read,
+     * and each chunk is only opened once it is read.
+     *
+     * @param chunkSize the minimum size of a chunk, in bytes; only the last chunk may be smaller
+     * @return streams over consecutive chunks, in order, covering the whole content; each one must be closed
+     * @throws IOException if the downloaded content cannot be read
+     */
+    @Nonnull
+    List<InputStream> split(final int chunkSize) throws IOException
+    {
+        if (chunkSize >= this.size) {
+            return Collections.singletonList(new Chunk(this.content, 0, this.size));
+        }
+        final List<InputStream> result = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(open(), BUFFER_SIZE)) {
+            boolean quoted = false;
+            long start = 0;
+            long position = 0;
+            int b;
+            while ((b = in.read()) != -1) {
+                position++;
+                if (b == '"') {
+                    quoted = !quoted;
+                } else if (b == '\n' && !quoted && position - start >= chunkSize) {
+                    result.add(new Chunk(this.content, start, position - start));
+                    start = position;
+                }
+            }
+            if (start < position) {
+                result.add(new Chunk(this.content, start, position - start));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the version of the source, a digest of the document format and the source content.
+     *
+     * @return a lowercase hexadecimal SHA-256 digest
+     */
+    @Nonnull
+    String getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Deletes the downloaded content. A file that cannot be deleted is left to the system cleanup of temporary files.
+     */
+    @Override
+    public void close()
+    {
+        try {
+            Files.deleteIfExists(this.content);
+        } catch (final IOException ex) {
+            // Nothing else to do, the file is in the temporary directory.
+        }
+    }
+
+    /**
+     * A stream over a range of the downloaded content, which only opens the file when first read.
+     */
+    private static final class Chunk extends InputStream
+    {
+        /** The file holding the whole content. */
+        private final Path file;
+
+        /** The position of the first byte of the chunk. */
+        private final long start;
+
+        /** The number of bytes of the chunk not read yet. */
+        private long remaining;
+
+        /** The open file, {@code null} until first read. */
+        private InputStream in;
+
+        Chunk(@Nonnull final Path file, final long start, final long length)
+        {
+            this.file = file;
+            this.start = start;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int result = stream().read();
+            if (result != -1) {
+                this.remaining--;
+            }
+            return result;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException
+        {
+            if (length == 0) {
+                return 0;
+            }
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            final int result = stream().read(buffer, offset, (int) Math.min(length, this.remaining));
+            if (result > 0) {
+                this.remaining -= result;
+            }
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (this.in != null) {
+                this.in.close();
+            }
+        }
+
+        @Nonnull
+        private InputStream stream() throws IOException
+        {
+            if (this.in == null) {
+                this.in = Channels.newInputStream(FileChannel.open(this.file).position(this.start));
+            }
+            return this.in;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link CarePathwaysGraph} class.
+ */
+public class CarePathwaysGraphTest
+{
+    private static final String ROOT = "CP:1";
+
+    private static final String CATEGORY = "CP:3";
+
+    private static final String KARYOTYPE = "CP:4";
+
+    private static final String MICROARRAY = "CP:5";
+
+    private CarePathwaysGraph graph;
+
+    @Before
+    public void setUp()
+    {
+        final Map<String, CPNode> nodes = new HashMap<>();
+        nodes.put(ROOT, new CPNode(ROOT, "Test"));
+        nodes.put(CATEGORY, node(CATEGORY, "Cytogenetic", ROOT));
+        // Inserted in reverse name order, to check that children are sorted.
+        nodes.put(MICROARRAY, node(MICROARRAY, "microarray", CATEGORY, ROOT));
+        nodes.put(KARYOTYPE, node(KARYOTYPE, "karyotype", CATEGORY, ROOT));
+        this.graph = new CarePathwaysGraph(nodes, CarePathwaysGraphTest::term);
+    }
+
+    @Test
+    public void getTermReturnsTermForKnownId()
+    {
+        Assert.assertEquals(KARYOTYPE, this.graph.getTerm(KARYOTYPE).getId());
+        Assert.assertEquals(4, this.graph.size());
+    }
+
+    @Test
+    public void getTermReturnsNullForUnknownOrNullId()
+    {
+        Assert.assertNull(this.graph.getTerm("CP:999"));
+        Assert.assertNull(this.graph.getTerm(null));
+    }
+
+    @Test
+    public void getChildrenReturnsChildrenSortedByName()
+    {
+        Assert.assertEquals(Arrays.asList(KARYOTYPE, MICROARRAY), ids(this.graph.getChildren(CATEGORY)));
+        Assert.assertEquals(Collections.singletonList(CATEGORY), ids(this.graph.getChildren(ROOT)));
+        Assert.assertTrue(this.graph.getChildren(KARYOTYPE).isEmpty());
+    }
+
+    @Test
+    public void getParentsReturnsDirectParents()
+    {
+        Assert.assertEquals(Collections.singletonList(CATEGORY), ids(this.graph.getParents(MICROARRAY)));
+        Assert.assertTrue(this.graph.getParents(ROOT).isEmpty());
+    }
+
+    @Test
+    public void getAncestorsReturnsAncestorsStartingFromRoot()
+    {
+        Assert.assertEquals(Arrays.asList(ROOT, CATEGORY), ids(this.graph.getAncestors(MICROARRAY)));
+        Assert.assertTrue(this.graph.getAncestors(ROOT).isEmpty());
+    }
+
+    @Test
+    public void lookupsForUnknownIdsReturnEmptyLists()
+    {
+        Assert.assertTrue(this.graph.getChildren("CP:999").isEmpty());
+        Assert.assertTrue(this.graph.getParents(null).isEmpty());
+        Assert.assertTrue(this.graph.getAncestors("CP:999").isEmpty());
+    }
+
+    @Test
+    public void countDescendantsCountsAllLevels()
+    {
+        Assert.assertEquals(3, this.graph.countDescendants(ROOT));
+        Assert.assertEquals(2, this.graph.countDescendants(CATEGORY));
+        Assert.assertEquals(0, this.graph.countDescendants(KARYOTYPE));
+        Assert.assertEquals(0, this.graph.countDescendants(null));
+    }
+
+    @Test
+    public void getDepthReturnsDistanceFromRoot()
+    {
+        Assert.assertEquals(0, this.graph.getDepth(ROOT));
+        Assert.assertEquals(1, this.graph.getDepth(CATEGORY));
+        Assert.assertEquals(2, this.graph.getDepth(KARYOTYPE));
+        Assert.assertEquals(-1, this.graph.getDepth("CP:999"));
+    }
+
+    @Test
+    public void termFactoryReceivesSortedChildrenAndDepth()
+    {
+        final Map<String, List<String>> children = new HashMap<>();
+        final Map<String, Integer> depths = new HashMap<>();
+        final Map<String, CPNode> nodes = new HashMap<>();
+        nodes.put(ROOT, new CPNode(ROOT, "Test"));
+        nodes.put(CATEGORY, node(CATEGORY, "Cytogenetic", ROOT));
+        nodes.put(MICROARRAY, node(MICROARRAY, "microarray", CATEGORY, ROOT));
+        nodes.put(KARYOTYPE, node(KARYOTYPE, "karyotype", CATEGORY, ROOT));
+        new CarePathwaysGraph(nodes, (id, name, parents, ancestors, nodeChildren, depth) -> {
+            children.put(id, nodeChildren);
+            depths.put(id, depth);
+            return term(id, name, parents, ancestors, nodeChildren, depth);
+        });
+        Assert.assertEquals(Arrays.asList(KARYOTYPE, MICROARRAY), children.get(CATEGORY));
+        Assert.assertTrue(children.get(MICROARRAY).isEmpty());
+        Assert.assertEquals(Integer.valueOf(1), depths.get(CATEGORY));
+        Assert.assertEquals(Integer.valueOf(2), depths.get(MICROARRAY));
+    }
+
+    @Test
+    public void termFactoryReceivesTheCanonicalIdentifiersInSourceOrder()
+    {
+        final Map<String, List<String>> ancestors = new HashMap<>();
+        final Map<String, CPNode> nodes = new HashMap<>();
+        nodes.put(ROOT, new CPNode(ROOT, "Test"));
+        nodes.put(CATEGORY, node(CATEGORY, "Cytogenetic", ROOT));
+        nodes.put(KARYOTYPE, node(KARYOTYPE, "karyotype", new String(CATEGORY), new String(ROOT)));
+        new CarePathwaysGraph(nodes, (id, name, parents, nodeAncestors, nodeChildren, depth) -> {
+            ancestors.put(id, nodeAncestors);
+            return term(id, name, parents, nodeAncestors, nodeChildren, depth);
+        });
+        Assert.assertEquals(Arrays.asList(CATEGORY, ROOT), ancestors.get(KARYOTYPE));
+        Assert.assertSame(CATEGORY, ancestors.get(KARYOTYPE).get(0));
+        Assert.assertSame(ROOT, ancestors.get(KARYOTYPE).get(1));
+        Assert.assertTrue(ancestors.get(ROOT).isEmpty());
+    }
+
+    @Test
+    public void getSubtreeCollectsSortedChildrenOfTheWholeBranch()
+    {
+        final CarePathwaysSubtree subtree = this.graph.getSubtree(ROOT);
+        Assert.assertEquals(ROOT, subtree.getRootId());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(ROOT, CATEGORY, KARYOTYPE, MICROARRAY)), subtree.getTermIds());
+        Assert.assertEquals(Collections.singletonList(CATEGORY), ids(subtree.getChildren(ROOT)));
+        Assert.assertEquals(Arrays.asList(KARYOTYPE, MICROARRAY), ids(subtree.getChildren(CATEGORY)));
+        Assert.assertTrue(subtree.getChildren(MICROARRAY).isEmpty());
+        Assert.assertEquals(3, subtree.getDescendantCount(ROOT));
+        Assert.assertEquals(2, subtree.getDescendantCount(CATEGORY));
+    }
+
+    @Test
+    public void getSubtreeExcludesTermsOutsideTheBranch()
+    {
+        final CarePathwaysSubtree subtree = this.graph.getSubtree(CATEGORY);
+        Assert.assertFalse(subtree.getTermIds().contains(ROOT));
+        Assert.assertTrue(subtree.getChildren(ROOT).isEmpty());
+        Assert.assertEquals(0, subtree.getDescendantCount(ROOT));
+    }
+
+    @Test
+    public void getSubtreeForUnknownRootHasNoChildren()
+    {
+        final CarePathwaysSubtree subtree = this.graph.getSubtree("CP:999");
+        Assert.assertTrue(subtree.getChildren("CP:999").isEmpty());
+        Assert.assertEquals(0, subtree.getDescendantCount("CP:999"));
+    }
+
+    @Test
+    public void descendantsOfAcceptsOnlyTermsInTheBranch()
+    {
+        Assert.assertTrue(this.graph.descendantsOf(ROOT).test(MICROARRAY));
+        Assert.assertTrue(this.graph.descendantsOf(CATEGORY).test(KARYOTYPE));
+        Assert.assertFalse(this.graph.descendantsOf(CATEGORY).test(CATEGORY));
+        Assert.assertFalse(this.graph.descendantsOf(CATEGORY).test(ROOT));
+        Assert.assertFalse(this.graph.descendantsOf(KARYOTYPE).test(MICROARRAY));
+        Assert.assertFalse(this.graph.descendantsOf("CP:999").test(KARYOTYPE));
+        Assert.assertFalse(this.graph.descendantsOf(ROOT).test("CP:999"));
+        Assert.assertFalse(this.graph.descendantsOf(ROOT).test(null));
+    }
+
+    @Test
+    public void getLowestCommonAncestorReturnsDeepestSharedTerm()
+    {
+        Assert.assertEquals(CATEGORY, this.graph.getLowestCommonAncestor(KARYOTYPE, MICROARRAY).getId());
+        Assert.assertEquals(CATEGORY, this.graph.getLowestCommonAncestor(MICROARRAY, CATEGORY).getId());
+        Assert.assertEquals(KARYOTYPE, this.graph.getLowestCommonAncestor(KARYOTYPE, KARYOTYPE).getId());
+        Assert.assertNull(this.graph.getLowestCommonAncestor(KARYOTYPE, "CP:999"));
+    }
+
+    @Test
+    public void getPathGoesThroughLowestCommonAncestor()
+    {
+        Assert.assertEquals(Arrays.asList(KARYOTYPE, CATEGORY, MICROARRAY),
+            ids(this.graph.getPath(KARYOTYPE, MICROARRAY)));
+        Assert.assertEquals(Arrays.asList(ROOT, CATEGORY, KARYOTYPE), ids(this.graph.getPath(ROOT, KARYOTYPE)));
+        Assert.assertTrue(this.graph.getPath(null, KARYOTYPE).isEmpty());
+    }
+
+    @Test
+    public void getRootPathFollowsDeepestParents()
+    {
+        final Map<String, CPNode> nodes = new HashMap<>();
+        nodes.put(ROOT, new CPNode(ROOT, "Test"));
+        nodes.put(CATEGORY, node(CATEGORY, "Cytogenetic", ROOT));
+        final CPNode multi = node(KARYOTYPE, "karyotype", ROOT);
+        multi.addParent(CATEGORY);
+        multi.addAncestor(CATEGORY);
+        nodes.put(KARYOTYPE, multi);
+        final CarePathwaysGraph dag = new CarePathwaysGraph(nodes, CarePathwaysGraphTest::term);
+        Assert.assertEquals(Arrays.asList(ROOT, CATEGORY, KARYOTYPE), ids(dag.getRootPath(KARYOTYPE)));
+        Assert.assertEquals(Collections.singletonList(ROOT), ids(dag.getRootPath(ROOT)));
+        Assert.assertTrue(dag.getRootPath("CP:999").isEmpty());
+    }
+
+    @Test
+    public void unknownParentsAreIgnored()
+    {
+        final Map<String, CPNode> nodes = new HashMap<>();
+        nodes.put(ROOT, new CPNode(ROOT, "Test"));
+        nodes.put(KARYOTYPE, node(KARYOTYPE, "karyotype", "CP:999", ROOT));
+        final CarePathwaysGraph orphans = new CarePathwaysGraph(nodes, CarePathwaysGraphTest::term);
+        Assert.assertTrue(orphans.getParents(KARYOTYPE).isEmpty());
+        Assert.assertEquals(Collections.singletonList(ROOT), ids(orphans.getAncestors(KARYOTYPE)));
+        Assert.assertTrue(orphans.hasAncestor(KARYOTYPE, ROOT));
+        Assert.assertFalse(orphans.hasAncestor(KARYOTYPE, "CP:999"));
+    }
+
+    @Test
+    public void emptyGraphHasNoTerms()
+    {
+        Assert.assertTrue(CarePathwaysGraph.EMPTY.isEmpty());
+        Assert.assertFalse(this.graph.isEmpty());
+    }
+
+    private static CPNode node(final String id, final String name, final String parent, final String... ancestors)
+    {
+        final CPNode node = new CPNode(id, name);
+        node.addParent(parent);
+        node.addAncestor(parent);
+        node.addAncestors(Arrays.asList(ancestors));
+        return node;
+    }
+
+    private static VocabularyTerm term(final String id, final String name, final List<String> parents,
+        final List<String> ancestors, final List<String> children, final int depth)
+    {
+        final VocabularyTerm term = Mockito.mock(VocabularyTerm.class);
+        when(term.getId()).thenReturn(id);
+        when(term.getName()).thenReturn(name);
+        return term;
+    }
+
+    private static List<String> ids(final List<VocabularyTerm> terms)
+    {
+        return terms.stream().map(VocabularyTerm::getId).collect(Collectors.toList());
+    }
+}
@@ -22,17 +22,27 @@ import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -47,13 +57,12 @@ import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.DisMaxParams;
 import org.apache.solr.common.params.SolrParams;
-import org.joda.time.DateTime;
-import org.joda.time.Minutes;
-import org.joda.time.format.ISODateTimeFormat;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 import org.mockito.Mock;
@@ -99,6 +108,9 @@ public class CarePathwaysOntologyTest
     public final MockitoComponentMockingRule<Vocabulary> mocker =
         new MockitoComponentMockingRule<>(CarePathwaysOntology.class);
 
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
     @Mock
     private SolrClient solrClient;
 
@@ -122,7 +134,7 @@ public class CarePathwaysOntologyTest
     private Logger logger;
 
     @Before
-    public void setUp() throws ComponentLookupException, IOException, SolrServerException
+    public void setUp() throws ComponentLookupException, IOException, SolrServerException, CacheException
     {
         MockitoAnnotations.initMocks(this);
         this.component = (CarePathwaysOntology) this.mocker.getComponentUnderTest();
@@ -133,6 +145,9 @@ public class CarePathwaysOntologyTest
         when(externalServicesAccess.getTermCache(this.component)).thenReturn(this.cache);
         when(externalServicesAccess.getReplacementSolrConnection(this.component)).thenReturn(this.solrClient);
         when(externalServicesAccess.getSolrConnection(this.component)).thenReturn(this.solrClient);
+        final CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        when(cacheManager.createNewLocalCache(any(CacheConfiguration.class)))
+            .thenReturn(VocabularySearchEngineTest.newMapCache());
 
         when(this.solrClient.query(any(SolrQuery.class))).thenReturn(this.response);
         when(this.response.getResults()).thenReturn(this.termList);
@@ -146,6 +161,9 @@ public class CarePathwaysOntologyTest
     {
         final int ontologyServiceResult = this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv")
             .toString());
+        Mockito.verify(this.solrClient).getById("HEADER_INFO");
+        // Without version information, the whole index is replaced
+        Mockito.verify(this.solrClient).deleteByQuery("*:*");
         Mockito.verify(this.solrClient).commit();
         Mockito.verify(this.solrClient).add(Matchers.anyCollectionOf(SolrInputDocument.class));
         Mockito.verify(this.cache).removeAll();
@@ -153,6 +171,62 @@ public class CarePathwaysOntologyTest
         Assert.assertTrue(ontologyServiceResult == 0);
     }
 
+    @Test
+    public void reindexUpdatesAPopulatedIndexInPlace() throws IOException, SolrServerException, ComponentLookupException
+    {
+        final URL url = new URL(this.getClass().getResource("/care-pathways-test.tsv").toString());
+        final SolrDocument header = new SolrDocument();
+        header.setField(ID_LABEL, "HEADER_INFO");
+        header.setField("version", "old");
+        when(this.solrClient.getById("HEADER_INFO")).thenReturn(header);
+        final SolrDocumentList indexed = new SolrDocumentList();
+        indexed.add(indexedDigest("CP:4", (String) findDoc(this.component.load(url), "CP:4").getFieldValue("digest")));
+        indexed.add(indexedDigest("CP:404", "removed"));
+        when(this.response.getResults()).thenReturn(indexed);
+
+        Assert.assertEquals(0, this.component.reindex(url.toString()));
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        final ArgumentCaptor<Collection<SolrInputDocument>> added = ArgumentCaptor.forClass((Class) Collection.class);
+        verify(this.solrClient).add(added.capture());
+        // Everything except the unchanged CP:4 is sent, including the new version
+        Assert.assertEquals(9, added.getValue().size());
+        Assert.assertNull(findDoc(added.getValue(), "CP:4"));
+        verify(this.solrClient).deleteById(Collections.singletonList("CP:404"));
+        verify(this.solrClient).commit();
+        verify(this.cache).remove("CP:404");
+        verify(this.cache, never()).remove("CP:4");
+        verify(this.cache, never()).removeAll();
+        verify(this.mocker.getInstance(SolrVocabularyResourceManager.class), never())
+            .getReplacementSolrConnection(this.component);
+        Assert.assertEquals("karyotype", this.component.getTerm("CP:4").getName());
+    }
+
+    @Test
+    public void reindexSendsUpdatesInConfiguredBatches()
+        throws IOException, SolrServerException, ComponentLookupException
+    {
+        final ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty("phenotips.vocabularies.care-pathways.solrDocsPerBatch", Integer.class))
+            .thenReturn(4);
+        Assert.assertEquals(4, this.component.getSolrDocsPerBatch());
+
+        final URL url = new URL(this.getClass().getResource("/care-pathways-test.tsv").toString());
+        final SolrDocument header = new SolrDocument();
+        header.setField(ID_LABEL, "HEADER_INFO");
+        header.setField("version", "old");
+        when(this.solrClient.getById("HEADER_INFO")).thenReturn(header);
+        when(this.response.getResults()).thenReturn(new SolrDocumentList());
+
+        Assert.assertEquals(0, this.component.reindex(url.toString()));
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        final ArgumentCaptor<Collection<SolrInputDocument>> added = ArgumentCaptor.forClass((Class) Collection.class);
+        verify(this.solrClient, times(3)).add(added.capture());
+        // All 10 documents are sent, at most 4 at a time
+        Assert.assertEquals(Arrays.asList(4, 4, 2),
+            added.getAllValues().stream().map(Collection::size).collect(Collectors.toList()));
+        verify(this.solrClient).commit();
+    }
+
     @Test
     public void getIdentifierReturnsCorrectVocabularyIdentifier()
     {
@@ -243,6 +317,130 @@ public class CarePathwaysOntologyTest
         verify(this.cache, times(1)).set(TERM_ID, result);
     }
 
+    @Test
+    public void hierarchyIsServedFromMemoryAfterReindex() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv").toString());
+
+        Assert.assertEquals(Arrays.asList("CP:4", "CP:5"), ids(this.component.getChildren("CP:3")));
+        Assert.assertEquals(Collections.singletonList("CP:3"), ids(this.component.getParents("CP:4")));
+        Assert.assertEquals(Arrays.asList("CP:1", "CP:3"), ids(this.component.getAncestors("CP:5")));
+        Assert.assertEquals("karyotype", this.component.getTerm("CP:4").getName());
+        Assert.assertNull(this.component.getTerm("CP:404"));
+        verify(this.solrClient, never()).query(any(SolrQuery.class));
+        verify(this.cache, never()).get(any(String.class));
+    }
+
+    @Test
+    public void getSubtreeReturnsTheWholeBranchWithoutQueries() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv").toString());
+
+        final CarePathwaysSubtree subtree = this.component.getSubtree("CP:2");
+        Assert.assertEquals(Collections.singletonList("CP:168"), ids(subtree.getChildren("CP:2")));
+        Assert.assertEquals(Arrays.asList("CP:170", "CP:171", "CP:169"), ids(subtree.getChildren("CP:168")));
+        Assert.assertEquals(4, subtree.getDescendantCount("CP:2"));
+        Assert.assertTrue(subtree.getChildren("CP:3").isEmpty());
+        verify(this.solrClient, never()).query(any(SolrQuery.class));
+    }
+
+    @Test
+    public void termsOnlyListedAsAncestorsArePartOfTheHierarchy() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.component.getDefaultSourceLocation());
+
+        final CarePathwaysSubtree care = this.component.getSubtree("CP:08");
+        Assert.assertEquals(Arrays.asList("CP:80", "CP:81"), ids(care.getChildren("CP:08")));
+        Assert.assertEquals(Arrays.asList("CP:812", "CP:811"), ids(care.getChildren("CP:81")));
+        Assert.assertEquals(5, care.getDescendantCount("CP:08"));
+        final CarePathwaysSubtree followUp = this.component.getSubtree("CP:09");
+        Assert.assertEquals(Collections.singletonList("CP:99"), ids(followUp.getChildren("CP:09")));
+        Assert.assertEquals(1, followUp.getDescendantCount("CP:09"));
+        Assert.assertEquals("Care", this.component.getTerm("CP:09").getName());
+        Assert.assertEquals(Collections.singletonList("CP:09"), ids(this.component.getParents("CP:99")));
+    }
+
+    @Test
+    public void hierarchyIsLoadedFromTheIndexOnlyOnce() throws IOException, SolrServerException
+    {
+        final SolrDocumentList docs = new SolrDocumentList();
+        docs.add(indexedTerm("CP:1", "Test"));
+        docs.add(indexedTerm("CP:3", "Cytogenetic", "CP:1"));
+        docs.add(indexedTerm("CP:5", "microarray", "CP:3", "CP:1"));
+        docs.add(indexedTerm("CP:4", "karyotype", "CP:3", "CP:1"));
+        final SolrDocument version = new SolrDocument();
+        version.setField(ID_LABEL, "HEADER_INFO");
+        version.setField("version", "1");
+        docs.add(version);
+        when(this.response.getResults()).thenReturn(docs);
+
+        Assert.assertEquals(Arrays.asList("CP:4", "CP:5"), ids(this.component.getChildren("CP:3")));
+        Assert.assertEquals(Collections.singletonList("CP:1"), ids(this.component.getParents("CP:3")));
+        Assert.assertNull(this.component.getTerm("HEADER_INFO"));
+        verify(this.solrClient, times(1)).query(any(SolrQuery.class));
+    }
+
+    @Test
+    public void hierarchyLookupsReturnEmptyWhenIndexIsEmpty()
+    {
+        when(this.response.getResults()).thenReturn(new SolrDocumentList());
+        Assert.assertTrue(this.component.getChildren("CP:3").isEmpty());
+        Assert.assertTrue(this.component.getAncestors("CP:5").isEmpty());
+    }
+
+    @Test
+    public void anEmptyIndexIsOnlyReadOnceUntilReindex() throws IOException, SolrServerException
+    {
+        when(this.response.getResults()).thenReturn(new SolrDocumentList());
+        this.component.getChildren("CP:3");
+        this.component.getAncestors("CP:5");
+        this.component.getDepth("CP:5");
+        verify(this.solrClient, times(1)).query(any(SolrQuery.class));
+
+        this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv").toString());
+        Assert.assertEquals(Arrays.asList("CP:4", "CP:5"), ids(this.component.getChildren("CP:3")));
+        verify(this.solrClient, times(1)).query(any(SolrQuery.class));
+    }
+
+    @Test
+    public void anUnreadableIndexIsNotQueriedOnEveryLookup() throws IOException, SolrServerException
+    {
+        when(this.solrClient.query(any(SolrQuery.class))).thenThrow(new SolrServerException("unavailable"));
+        Assert.assertTrue(this.component.getChildren("CP:3").isEmpty());
+        Assert.assertTrue(this.component.getAncestors("CP:5").isEmpty());
+        Assert.assertTrue(this.component.getSubtree("CP:1").getChildren("CP:1").isEmpty());
+        verify(this.solrClient, times(1)).query(any(SolrQuery.class));
+    }
+
+    @Test
+    public void getSnapshotUsesTheIndexedVersion()
+    {
+        final SolrDocumentList docs = new SolrDocumentList();
+        docs.add(indexedTerm("CP:1", "Test"));
+        docs.add(indexedTerm("CP:3", "Cytogenetic", "CP:1"));
+        final SolrDocument version = new SolrDocument();
+        version.setField(ID_LABEL, "HEADER_INFO");
+        version.setField("version", "2018-04-11T15:29:42.000Z");
+        docs.add(version);
+        when(this.response.getResults()).thenReturn(docs);
+
+        final CarePathwaysSnapshot snapshot = this.component.getSnapshot();
+        Assert.assertEquals("\"2018-04-11T15:29:42.000Z\"", snapshot.getETag());
+        Assert.assertEquals("{\"version\":\"2018-04-11T15:29:42.000Z\",\"id\":[\"CP:3\",\"CP:1\"],"
+            + "\"name\":[\"Cytogenetic\",\"Test\"],\"parent\":[[1],[]]}", snapshot.getJSON());
+        Assert.assertSame(snapshot, this.component.getSnapshot());
+    }
+
+    @Test
+    public void getSnapshotListsTermsOnlyListedAsAncestors() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.component.getDefaultSourceLocation());
+
+        final String json = this.component.getSnapshot().getJSON();
+        Assert.assertTrue(json.contains("\"CP:08\""));
+        Assert.assertTrue(json.contains("\"CP:09\""));
+    }
+
     @Test
     public void loadWorksAsExpectedWithCorrectData() throws MalformedURLException
     {
@@ -266,11 +464,43 @@ public class CarePathwaysOntologyTest
         Assert.assertEquals(1, versionDocs.size());
         SolrInputDocument versionDoc = versionDocs.get(0);
         Assert.assertEquals("HEADER_INFO", versionDoc.getFieldValue("id"));
-        DateTime version =
-            ISODateTimeFormat.dateTime().withZoneUTC().parseDateTime((String) versionDoc.getFieldValue("version"));
-        Assert.assertTrue(DateTime.now().isAfter(version));
-        // We allow two minutes time for running tests on a busy slow machine
-        Assert.assertTrue(Minutes.minutesBetween(version, DateTime.now()).getMinutes() < 2);
+        // The version is a SHA-256 digest of the content, identical for identical sources
+        final String version = (String) versionDoc.getFieldValue("version");
+        Assert.assertTrue(version.matches("^[0-9a-f]{64}$"));
+        Assert.assertEquals(version, getVersion(this.component.load(url)));
+    }
+
+    @Test
+    public void reindexIsSkippedWhenTheSameVersionIsIndexed() throws IOException, SolrServerException
+    {
+        final URL url = new URL(this.getClass().getResource("/care-pathways-test.tsv").toString());
+        final SolrDocument header = new SolrDocument();
+        header.setField(ID_LABEL, "HEADER_INFO");
+        header.setField("version", getVersion(this.component.load(url)));
+        when(this.solrClient.getById("HEADER_INFO")).thenReturn(header);
+
+        Assert.assertEquals(0, this.component.reindex(url.toString()));
+        verify(this.solrClient, never()).add(Matchers.anyCollectionOf(SolrInputDocument.class));
+        verify(this.solrClient, never()).commit();
+        verify(this.cache, never()).removeAll();
+    }
+
+    @Test
+    public void loadStoresSortedChildrenDepthAndLeafOnEachTerm() throws MalformedURLException
+    {
+        final URL url = new URL(this.getClass().getResource("/care-pathways-test.tsv").toString());
+        final Collection<SolrInputDocument> docs = this.component.load(url);
+        Assert.assertNotNull(docs);
+        final SolrInputDocument category = findDoc(docs, "CP:168");
+        Assert.assertEquals(Arrays.asList("CP:170", "CP:171", "CP:169"),
+            new ArrayList<>(category.getFieldValues("children")));
+        Assert.assertEquals(1, category.getFieldValue("depth"));
+        Assert.assertEquals(false, category.getFieldValue("leaf"));
+        final SolrInputDocument leaf = findDoc(docs, "CP:169");
+        Assert.assertNull(leaf.getFieldValues("children"));
+        Assert.assertEquals(2, leaf.getFieldValue("depth"));
+        Assert.assertEquals(true, leaf.getFieldValue("leaf"));
+        Assert.assertEquals(0, findDoc(docs, "CP:2").getFieldValue("depth"));
     }
 
     @Test
@@ -293,6 +523,60 @@ public class CarePathwaysOntologyTest
             "Term [CP:NO_NAME] is missing a name");
     }
 
+    @Test
+    public void reindexWithAMalformedSourceKeepsTheIndex() throws IOException, SolrServerException
+    {
+        Assert.assertEquals(2,
+            this.component.reindex(this.getClass().getResource("/care-pathways-missing-id-test.tsv").toString()));
+        verify(this.solrClient, never()).add(Matchers.anyCollectionOf(SolrInputDocument.class));
+        verify(this.solrClient).rollback();
+        verify(this.solrClient, never()).commit();
+        Assert.assertTrue(this.component.getChildren("CP:1").isEmpty());
+    }
+
+    @Test
+    public void reindexFailsWhenTheSourceCannotBeRead() throws IOException, SolrServerException
+    {
+        final File missing = new File(this.folder.getRoot(), "missing.tsv");
+        Assert.assertEquals(2, this.component.reindex(missing.toURI().toURL().toString()));
+        verify(this.solrClient, never()).getById("HEADER_INFO");
+        verify(this.solrClient, never()).commit();
+    }
+
+    @Test
+    public void parallelParsingMatchesSequentialParsing() throws IOException
+    {
+        final StringBuilder content = syntheticPathways(5000, new Random(42));
+        try (VocabularySource source = source(content)) {
+            final Map<String, CPNode> sequential = this.component.parseNodes(source, Integer.MAX_VALUE);
+            Assert.assertEquals(5000, sequential.size());
+            Assert.assertTrue(sequential.values().stream().anyMatch(node -> node.getParents().size() > 1));
+            for (final int chunkSize : new int[] { 1, 100, 4096, 65536 }) {
+                Assert.assertTrue(source.split(chunkSize).size() > 1);
+                Assert.assertEquals(describe(sequential), describe(this.component.parseNodes(source, chunkSize)));
+            }
+        }
+    }
+
+    @Test
+    public void parallelParsingReportsTheFirstMalformedRow() throws IOException
+    {
+        final StringBuilder content = syntheticPathways(2000, new Random(7));
+        content.append("Test [CP:1]\tBroken\n");
+        content.append(syntheticPathways(2000, new Random(8)));
+        content.append("Later [CP:\n");
+        try (VocabularySource source = source(content)) {
+            for (final int chunkSize : new int[] { 1, 4096, Integer.MAX_VALUE }) {
+                try {
+                    this.component.parseNodes(source, chunkSize);
+                    Assert.fail("Malformed rows must be reported");
+                } catch (final IllegalArgumentException ex) {
+                    Assert.assertEquals("Term Broken is missing an id", ex.getMessage());
+                }
+            }
+        }
+    }
+
     @Test
     public void searchWithBlankInputReturnsEmpty()
     {
@@ -300,13 +584,52 @@ public class CarePathwaysOntologyTest
     }
 
     @Test
-    public void searchWithInputIsIdResultsInCorrectQuery() throws IOException, SolrServerException
+    public void searchWithInputIsIdLooksUpTermDirectly() throws IOException, SolrServerException
     {
-        when(this.response.getSpellCheckResponse()).thenReturn(null);
-        when(this.response.getResults()).thenReturn(new SolrDocumentList());
+        final String id = TERM_PREFIX + COLON + TERM_ID;
+        final SolrDocumentList found = new SolrDocumentList();
+        found.add(idDoc(id));
+        when(this.solrClient.getById(Matchers.anyCollectionOf(String.class))).thenReturn(found);
+
+        final List<VocabularyTerm> result = this.component.search(id.toLowerCase(), 10, null, null);
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(id, result.get(0).getId());
+        verify(this.solrClient).getById(Collections.singletonList(id));
+        verify(this.solrClient, never()).query(argThat(new IsIdQuery()));
+        verify(this.solrClient, never()).query(argThat(new IsDisMaxQuery()));
+    }
+
+    @Test
+    public void searchWithListOfIdsLooksUpTermsInInputOrder() throws IOException, SolrServerException
+    {
+        final String first = TERM_PREFIX + COLON + TERM_ID;
+        final String second = TERM_PREFIX + COLON + "4";
+        final SolrDocumentList found = new SolrDocumentList();
+        found.add(idDoc(second));
+        found.add(idDoc(first));
+        when(this.solrClient.getById(Matchers.anyCollectionOf(String.class))).thenReturn(found);
+
+        final List<VocabularyTerm> result =
+            this.component.search(first + ", " + second + StringUtils.SPACE + first, 10, null, null);
+        Assert.assertEquals(Arrays.asList(first, second),
+            result.stream().map(VocabularyTerm::getId).collect(Collectors.toList()));
+        verify(this.solrClient).getById(Arrays.asList(first, second));
+        verify(this.solrClient, never()).query(argThat(new IsDisMaxQuery()));
+    }
 
-        this.component.search(TERM_PREFIX + COLON + TERM_ID, 0, null, null);
-        verify(this.solrClient).query(argThat(new IsIdQuery()));
+    @Test
+    public void resolveTermsUsesHierarchyAndReportsMissingIds() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv").toString());
+
+        final TermResolution resolution =
+            this.component.resolveTerms(Arrays.asList("CP:169", "CP:999", " CP:4 ", "CP:169", null));
+        Assert.assertEquals(Arrays.asList("CP:169", "CP:4"), ids(resolution.getTerms()));
+        Assert.assertEquals(Collections.singletonList("CP:999"), resolution.getMissingIds());
+        Assert.assertEquals("CP:4", resolution.getTerm("CP:4").getId());
+        Assert.assertEquals(Arrays.asList("CP:169", "CP:4"),
+            ids(new ArrayList<>(this.component.getTerms(Arrays.asList("CP:169", "CP:4")))));
+        verify(this.solrClient, never()).getById(Matchers.anyCollectionOf(String.class));
     }
 
     @Test
@@ -316,7 +639,7 @@ public class CarePathwaysOntologyTest
         when(this.response.getResults()).thenReturn(new SolrDocumentList());
 
         this.component.search(TERM_ID, 0, null, null);
-        verify(this.solrClient).query(argThat(new IsDisMaxQuery()));
+        verify(this.solrClient, times(2)).query(argThat(new IsDisMaxQuery()));
     }
 
     @Test
@@ -326,7 +649,183 @@ public class CarePathwaysOntologyTest
         when(this.response.getResults()).thenReturn(new SolrDocumentList());
 
         this.component.search(TERM_ID + StringUtils.SPACE + TERM_ID, 0, null, null);
-        verify(this.solrClient).query(argThat(new IsDisMaxQuery()));
+        verify(this.solrClient, times(2)).query(argThat(new IsDisMaxQuery()));
+    }
+
+    @Test
+    public void searchSuggestsTermsFromMemoryAfterReindex() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv").toString());
+
+        Assert.assertEquals(Collections.singletonList("CP:4"),
+            ids(this.component.search("kary", TEST_CATEGORY, 10, null, null)));
+        Assert.assertEquals(Collections.singletonList("CP:169"),
+            ids(this.component.search("6 mon", CARE_CATEGORY, 10, null, null)));
+        verify(this.solrClient, never()).query(any(SolrQuery.class));
+    }
+
+    @Test
+    public void searchFallsBackToSolrWhenNothingMatchesInMemory() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv").toString());
+        when(this.response.getSpellCheckResponse()).thenReturn(null);
+        when(this.response.getResults()).thenReturn(new SolrDocumentList());
+
+        this.component.search("karyotpye", TEST_CATEGORY, 10, null, null);
+        verify(this.solrClient, times(2)).query(argThat(new IsDisMaxQuery()));
+    }
+
+    @Test
+    public void identicalSearchesAreCachedUntilReindex() throws IOException, SolrServerException
+    {
+        final String source = this.getClass().getResource("/care-pathways-test.tsv").toString();
+        this.component.reindex(source);
+        when(this.response.getSpellCheckResponse()).thenReturn(null);
+        when(this.response.getResults()).thenReturn(new SolrDocumentList());
+
+        this.component.search("karyotpye", TEST_CATEGORY, 10, null, null);
+        this.component.search(" karyotpye ", TEST_CATEGORY, 10, null, null);
+        verify(this.solrClient, times(2)).query(argThat(new IsDisMaxQuery()));
+        Assert.assertEquals(1L, (long) this.component.getSearchCacheStatistics().get("hits"));
+
+        this.component.reindex(source);
+        this.component.search("karyotpye", TEST_CATEGORY, 10, null, null);
+        verify(this.solrClient, times(4)).query(argThat(new IsDisMaxQuery()));
+    }
+
+    @Test
+    public void searchOnlySpellchecksWhenTheQueryFindsNothing() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv").toString());
+        final SolrDocumentList results = new SolrDocumentList();
+        results.add(indexedTerm("CP:4", "karyotype"));
+        when(this.response.getSpellCheckResponse()).thenReturn(null);
+        when(this.response.getResults()).thenReturn(results, new SolrDocumentList());
+
+        // Not in the in-memory prefix index, so both searches go to Solr.
+        this.component.search("zzz", TEST_CATEGORY, 10, null, null);
+        this.component.search("karyotpye", TEST_CATEGORY, 10, null, null);
+        final ArgumentCaptor<SolrParams> queries = ArgumentCaptor.forClass(SolrParams.class);
+        verify(this.solrClient, times(3)).query(queries.capture());
+        final List<SolrParams> searches = queries.getAllValues();
+        Assert.assertEquals(Arrays.asList("false", "false", "true"),
+            searches.stream().map(query -> query.get("spellcheck")).collect(Collectors.toList()));
+        Assert.assertEquals("karyotpye", searches.get(2).get(CommonParams.Q));
+    }
+
+    @Test
+    public void searchFiltersSolrResultsByTheCategoryMembers() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv").toString());
+        final SolrDocumentList results = new SolrDocumentList();
+        results.add(indexedTerm("CP:4", "karyotype"));
+        results.setNumFound(1000);
+        when(this.response.getSpellCheckResponse()).thenReturn(null);
+        when(this.response.getResults()).thenReturn(results);
+
+        Assert.assertEquals(Collections.singletonList("CP:4"),
+            ids(this.component.search("karyotpye", TEST_CATEGORY, 10, null, null)));
+        this.component.search("karyotpye", CARE_CATEGORY, 10, null, "term_category:CP\\:168");
+        final ArgumentCaptor<SolrParams> queries = ArgumentCaptor.forClass(SolrParams.class);
+        verify(this.solrClient, times(2)).query(queries.capture());
+        Assert.assertArrayEquals(new String[] { "{!terms f=id}CP:3,CP:4,CP:5" },
+            queries.getAllValues().get(0).getParams(CommonParams.FQ));
+        Assert.assertArrayEquals(new String[] { "{!terms f=id}CP:170,CP:171,CP:169" },
+            queries.getAllValues().get(1).getParams(CommonParams.FQ));
+    }
+
+    @Test
+    public void searchInACategoryWithoutMembersReturnsEmptyWithoutQueries() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-test.tsv").toString());
+
+        Assert.assertTrue(this.component.search("karyotpye", TEST_CATEGORY, 10, null, "term_category:CP\\:01")
+            .isEmpty());
+        Assert.assertTrue(this.component.search("kary", TEST_CATEGORY, 10, null, "term_category:\"CP:404\"")
+            .isEmpty());
+        Assert.assertTrue(this.component.search("kary", TEST_CATEGORY, 10, null, "term_category:CP\\:4").isEmpty());
+        verify(this.solrClient, never()).query(any(SolrQuery.class));
+    }
+
+    private SolrDocument indexedTerm(final String id, final String name, final String... ancestors)
+    {
+        final SolrDocument doc = new SolrDocument();
+        doc.setField(ID_LABEL, id);
+        doc.setField(NAME_LABEL, name);
+        if (ancestors.length > 0) {
+            doc.setField("is_a", Collections.singletonList(ancestors[0]));
+            doc.setField("term_category", Arrays.asList(ancestors));
+        }
+        return doc;
+    }
+
+    /**
+     * Generates a pathways source where each term is added under a random earlier term, and some terms are later given
+     * another parent, so that the partial data of a term is spread across distant rows.
+     */
+    private StringBuilder syntheticPathways(final int size, final Random random)
+    {
+        final List<String> paths = new ArrayList<>(Arrays.asList("Test [CP:1]", "Care [CP:2]"));
+        final StringBuilder content = new StringBuilder("Test [CP:1]\nCare [CP:2]\n");
+        for (int i = 3; i <= size; i++) {
+            final String path = paths.get(random.nextInt(paths.size())) + "\tTerm " + i + " [CP:" + i + "]";
+            paths.add(path);
+            content.append(path).append('\n');
+            if (random.nextInt(50) == 0) {
+                content.append('\n');
+            }
+        }
+        for (int i = 0; i < size / 10; i++) {
+            final int term = 3 + random.nextInt(size - 2);
+            content.append(paths.get(random.nextInt(term - 1))).append("\tTerm ").append(term).append(" [CP:")
+                .append(term).append("]\n");
+        }
+        return content;
+    }
+
+    private VocabularySource source(final CharSequence content) throws IOException
+    {
+        final File file = this.folder.newFile();
+        Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+        return VocabularySource.fetch(file.toURI().toURL(), "test");
+    }
+
+    private List<String> describe(final Map<String, CPNode> nodes)
+    {
+        return nodes.values().stream()
+            .map(node -> node.getId() + '|' + node.getName() + '|' + node.getParents() + '|' + node.getAncestors())
+            .collect(Collectors.toList());
+    }
+
+    private SolrDocument indexedDigest(final String id, final String digest)
+    {
+        final SolrDocument doc = new SolrDocument();
+        doc.setField(ID_LABEL, id);
+        doc.setField("digest", digest);
+        return doc;
+    }
+
+    private SolrInputDocument findDoc(final Collection<SolrInputDocument> docs, final String id)
+    {
+        return docs.stream().filter(doc -> id.equals(doc.getFieldValue(ID_LABEL))).findFirst().orElse(null);
+    }
+
+    private List<String> ids(final List<VocabularyTerm> terms)
+    {
+        return terms.stream().map(VocabularyTerm::getId).collect(Collectors.toList());
+    }
+
+    private String getVersion(final Collection<SolrInputDocument> docs)
+    {
+        return docs.stream().filter(doc -> "HEADER_INFO".equals(doc.getFieldValue(ID_LABEL)))
+            .map(doc -> (String) doc.getFieldValue("version")).findFirst().orElse(null);
+    }
+
+    private static SolrDocument idDoc(final String id)
+    {
+        final SolrDocument doc = new SolrDocument();
+        doc.setField(ID_LABEL, id);
+        return doc;
     }
 
     class IsIdQuery extends ArgumentMatcher<SolrParams>
@@ -28,6 +28,7 @@ import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -46,9 +47,6 @@ import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.DisMaxParams;
 import org.apache.solr.common.params.SolrParams;
-import org.joda.time.DateTime;
-import org.joda.time.Minutes;
-import org.joda.time.format.ISODateTimeFormat;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -143,6 +141,9 @@ public class CarePathwaysQuestionOntologyTest
     {
         final int ontologyServiceResult = this.component.reindex(this.getClass()
             .getResource("/care-pathways-questions-test.tsv").toString());
+        Mockito.verify(this.solrClient).getById("HEADER_INFO");
+        // Without version information, the whole index is replaced
+        Mockito.verify(this.solrClient).deleteByQuery("*:*");
         Mockito.verify(this.solrClient).commit();
         Mockito.verify(this.solrClient).add(Matchers.anyCollectionOf(SolrInputDocument.class));
         Mockito.verify(this.cache).removeAll();
@@ -263,11 +264,36 @@ public class CarePathwaysQuestionOntologyTest
         Assert.assertEquals(1, versionDocs.size());
         SolrInputDocument versionDoc = versionDocs.get(0);
         Assert.assertEquals("HEADER_INFO", versionDoc.getFieldValue("id"));
-        DateTime version =
-            ISODateTimeFormat.dateTime().withZoneUTC().parseDateTime((String) versionDoc.getFieldValue("version"));
-        Assert.assertTrue(DateTime.now().isAfter(version));
-        // We allow two minutes time for running tests on a busy slow machine
-        Assert.assertTrue(Minutes.minutesBetween(version, DateTime.now()).getMinutes() < 2);
+        // The version is a SHA-256 digest of the content, identical for identical sources
+        final String version = (String) versionDoc.getFieldValue("version");
+        Assert.assertTrue(version.matches("^[0-9a-f]{64}$"));
+        Assert.assertEquals(version, getVersion(this.component.load(url)));
+    }
+
+    @Test
+    public void reindexIsSkippedWhenTheSameVersionIsIndexed() throws IOException, SolrServerException
+    {
+        final URL url = new URL(this.getClass().getResource("/care-pathways-questions-test.tsv").toString());
+        final SolrDocument header = new SolrDocument();
+        header.setField(ID_LABEL, "HEADER_INFO");
+        header.setField("version", getVersion(this.component.load(url)));
+        when(this.solrClient.getById("HEADER_INFO")).thenReturn(header);
+
+        Assert.assertEquals(0, this.component.reindex(url.toString()));
+        verify(this.solrClient, never()).add(Matchers.anyCollectionOf(SolrInputDocument.class));
+        verify(this.solrClient, never()).commit();
+        verify(this.cache, never()).removeAll();
+    }
+
+    @Test
+    public void reindexSendsNothingWhenALaterRowIsMalformed() throws IOException, SolrServerException
+    {
+        Assert.assertEquals(2, this.component.reindex(this.getClass()
+            .getResource("/care-pathways-questions-missing-id-test.tsv").toString()));
+        verify(this.solrClient, never()).add(Matchers.anyCollectionOf(SolrInputDocument.class));
+        verify(this.solrClient).rollback();
+        verify(this.solrClient, never()).commit();
+        verify(this.cache, never()).removeAll();
     }
 
     @Test
@@ -302,13 +328,55 @@ public class CarePathwaysQuestionOntologyTest
     }
 
     @Test
-    public void searchWithInputIsIdResultsInCorrectQuery() throws IOException, SolrServerException
+    public void searchWithInputIsIdLooksUpTermDirectly() throws IOException, SolrServerException
     {
-        when(this.response.getSpellCheckResponse()).thenReturn(null);
-        when(this.response.getResults()).thenReturn(new SolrDocumentList());
+        final String id = TERM_PREFIX + COLON + TERM_ID;
+        final SolrDocumentList found = new SolrDocumentList();
+        found.add(idDoc(id));
+        when(this.solrClient.getById(Matchers.anyCollectionOf(String.class))).thenReturn(found);
+
+        final List<VocabularyTerm> result = this.component.search(id.toLowerCase(), 10, null, null);
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(id, result.get(0).getId());
+        verify(this.solrClient).getById(Collections.singletonList(id));
+        verify(this.solrClient, never()).query(argThat(new IsIdQuery()));
+        verify(this.solrClient, never()).query(argThat(new IsDisMaxQuery()));
+    }
 
-        this.component.search(TERM_PREFIX + COLON + TERM_ID, 0, null, null);
-        verify(this.solrClient).query(argThat(new IsIdQuery()));
+    @Test
+    public void searchWithListOfIdsLooksUpTermsInInputOrder() throws IOException, SolrServerException
+    {
+        final String first = TERM_PREFIX + COLON + TERM_ID;
+        final String second = TERM_PREFIX + COLON + "4";
+        final SolrDocumentList found = new SolrDocumentList();
+        found.add(idDoc(second));
+        found.add(idDoc(first));
+        when(this.solrClient.getById(Matchers.anyCollectionOf(String.class))).thenReturn(found);
+
+        final List<VocabularyTerm> result =
+            this.component.search(first + ", " + second + StringUtils.SPACE + first, 10, null, null);
+        Assert.assertEquals(Arrays.asList(first, second),
+            result.stream().map(VocabularyTerm::getId).collect(Collectors.toList()));
+        verify(this.solrClient).getById(Arrays.asList(first, second));
+        verify(this.solrClient, never()).query(argThat(new IsDisMaxQuery()));
+    }
+
+    @Test
+    public void resolveTermsFetchesAllIdsAtOnceAndReportsMissingIds() throws IOException, SolrServerException
+    {
+        final String first = TERM_PREFIX + COLON + TERM_ID;
+        final String missing = TERM_PREFIX + COLON + "999";
+        final String second = TERM_PREFIX + COLON + "4";
+        final SolrDocumentList found = new SolrDocumentList();
+        found.add(idDoc(second));
+        found.add(idDoc(first));
+        when(this.solrClient.getById(Matchers.anyCollectionOf(String.class))).thenReturn(found);
+
+        final TermResolution resolution = this.component.resolveTerms(Arrays.asList(first, missing, second, first));
+        Assert.assertEquals(Arrays.asList(first, second),
+            resolution.getTerms().stream().map(VocabularyTerm::getId).collect(Collectors.toList()));
+        Assert.assertEquals(Collections.singletonList(missing), resolution.getMissingIds());
+        verify(this.solrClient).getById(Arrays.asList(first, missing, second));
     }
 
     @Test
@@ -318,7 +386,7 @@ public class CarePathwaysQuestionOntologyTest
         when(this.response.getResults()).thenReturn(new SolrDocumentList());
 
         this.component.search(TERM_ID, 0, null, null);
-        verify(this.solrClient).query(argThat(new IsDisMaxQuery()));
+        verify(this.solrClient, times(2)).query(argThat(new IsDisMaxQuery()));
     }
 
     @Test
@@ -328,7 +396,43 @@ public class CarePathwaysQuestionOntologyTest
         when(this.response.getResults()).thenReturn(new SolrDocumentList());
 
         this.component.search(TERM_ID + StringUtils.SPACE + TERM_ID, 0, null, null);
-        verify(this.solrClient).query(argThat(new IsDisMaxQuery()));
+        verify(this.solrClient, times(2)).query(argThat(new IsDisMaxQuery()));
+    }
+
+    @Test
+    public void searchSuggestsQuestionsFromMemoryAfterReindex() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-questions-test.tsv").toString());
+
+        final List<VocabularyTerm> result = this.component.search("second var", 10, null, null);
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals("CPQ:6", result.get(0).getId());
+        Assert.assertEquals("post test", result.get(0).get("term_group"));
+        verify(this.solrClient, never()).query(any(SolrQuery.class));
+    }
+
+    @Test
+    public void searchFallsBackToSolrWhenNothingMatchesInMemory() throws IOException, SolrServerException
+    {
+        this.component.reindex(this.getClass().getResource("/care-pathways-questions-test.tsv").toString());
+        when(this.response.getSpellCheckResponse()).thenReturn(null);
+        when(this.response.getResults()).thenReturn(new SolrDocumentList());
+
+        this.component.search("secnodary", 10, null, null);
+        verify(this.solrClient, times(2)).query(argThat(new IsDisMaxQuery()));
+    }
+
+    private String getVersion(final Collection<SolrInputDocument> docs)
+    {
+        return docs.stream().filter(doc -> "HEADER_INFO".equals(doc.getFieldValue(ID_LABEL)))
+            .map(doc -> (String) doc.getFieldValue("version")).findFirst().orElse(null);
+    }
+
+    private static SolrDocument idDoc(final String id)
+    {
+        final SolrDocument doc = new SolrDocument();
+        doc.setField(ID_LABEL, id);
+        return doc;
     }
 
     class IsIdQuery extends ArgumentMatcher<SolrParams>
@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link CarePathwaysSnapshot} class.
+ */
+public class CarePathwaysSnapshotTest
+{
+    private static final String VERSION = "2018-04-11T15:29:42.000Z";
+
+    private VocabularyTerm root;
+
+    private VocabularyTerm category;
+
+    private VocabularyTerm child;
+
+    private Map<String, List<VocabularyTerm>> parents;
+
+    @Before
+    public void setUp()
+    {
+        this.root = term("CP:1", "Test");
+        this.category = term("CP:3", "Cytogenetic");
+        this.child = term("CP:4", "\"Quoted\" \\ name");
+        this.parents = new HashMap<>();
+        this.parents.put("CP:3", Collections.singletonList(this.root));
+        this.parents.put("CP:4", Arrays.asList(this.root, this.category));
+    }
+
+    @Test
+    public void jsonListsTermsByNameWithParentPositions()
+    {
+        final CarePathwaysSnapshot snapshot = snapshot(VERSION);
+        Assert.assertEquals("{\"version\":\"" + VERSION + "\","
+            + "\"id\":[\"CP:4\",\"CP:3\",\"CP:1\"],"
+            + "\"name\":[\"\\\"Quoted\\\" \\\\ name\",\"Cytogenetic\",\"Test\"],"
+            + "\"parent\":[[1,2],[2],[]]}", snapshot.getJSON());
+        Assert.assertEquals(VERSION, snapshot.getVersion());
+        Assert.assertEquals("\"" + VERSION + "\"", snapshot.getETag());
+    }
+
+    @Test
+    public void namesAreSafeToEmbedInScripts()
+    {
+        final CarePathwaysSnapshot snapshot = new CarePathwaysSnapshot(VERSION,
+            Collections.singletonList(term("CP:5", "Line\nbreak </script>")), id -> Collections.emptyList());
+        Assert.assertEquals("{\"version\":\"" + VERSION + "\",\"id\":[\"CP:5\"],"
+            + "\"name\":[\"Line\\nbreak <\\/script>\"],\"parent\":[[]]}", snapshot.getJSON());
+    }
+
+    @Test
+    public void versionDefaultsToContentHash()
+    {
+        final CarePathwaysSnapshot snapshot = snapshot(null);
+        Assert.assertFalse(snapshot.getVersion().isEmpty());
+        Assert.assertEquals(snapshot.getVersion(), snapshot(null).getVersion());
+    }
+
+    @Test
+    public void matchesAcceptsCurrentWeakAndWildcardTags()
+    {
+        final CarePathwaysSnapshot snapshot = snapshot(VERSION);
+        Assert.assertTrue(snapshot.matches("\"" + VERSION + "\""));
+        Assert.assertTrue(snapshot.matches("\"old\", W/\"" + VERSION + "\""));
+        Assert.assertTrue(snapshot.matches("*"));
+        Assert.assertFalse(snapshot.matches("\"old\""));
+        Assert.assertFalse(snapshot.matches(null));
+    }
+
+    private CarePathwaysSnapshot snapshot(final String version)
+    {
+        return new CarePathwaysSnapshot(version, Arrays.asList(this.root, this.category, this.child),
+            id -> this.parents.getOrDefault(id, Collections.emptyList()));
+    }
+
+    private static VocabularyTerm term(final String id, final String name)
+    {
+        final VocabularyTerm term = Mockito.mock(VocabularyTerm.class);
+        when(term.getId()).thenReturn(id);
+        when(term.getName()).thenReturn(name);
+        return term;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
+import org.apache.solr.client.solrj.SolrQuery.SortClause;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for the {@link QueryTemplate} class.
+ */
+public class QueryTemplateTest
+{
+    @Test
+    public void withReturnsNewTemplateAndKeepsOriginal()
+    {
+        final QueryTemplate base = QueryTemplate.EMPTY.with("defType", "edismax");
+        final QueryTemplate extended = base.with("qf", "name^10");
+
+        final SolrQuery query = extended.newQuery();
+        Assert.assertEquals("edismax", query.get("defType"));
+        Assert.assertEquals("name^10", query.get("qf"));
+        Assert.assertNull(base.newQuery().get("qf"));
+    }
+
+    @Test
+    public void applyToReplacesExistingValues()
+    {
+        final SolrQuery query = new SolrQuery();
+        query.set("spellcheck", "false");
+        QueryTemplate.EMPTY.with("spellcheck", "true").applyTo(query);
+        Assert.assertArrayEquals(new String[] { "true" }, query.getParams("spellcheck"));
+    }
+
+    @Test
+    public void parseSortReadsDirectionsAndReusesResults()
+    {
+        final List<SortClause> sorts = QueryTemplate.parseSort(" name asc, depth desc ,-leaf,id");
+        Assert.assertEquals(Arrays.asList(SortClause.asc("name"), SortClause.desc("depth"), SortClause.desc("leaf"),
+            SortClause.asc("id")), sorts);
+        Assert.assertSame(sorts, QueryTemplate.parseSort(" name asc, depth desc ,-leaf,id"));
+    }
+
+    @Test
+    public void parseSortOfBlankSpecificationIsEmpty()
+    {
+        Assert.assertTrue(QueryTemplate.parseSort(null).isEmpty());
+        Assert.assertTrue(QueryTemplate.parseSort(" ").isEmpty());
+        Assert.assertEquals(ORDER.asc, QueryTemplate.parseSort("name").get(0).getOrder());
+    }
+}
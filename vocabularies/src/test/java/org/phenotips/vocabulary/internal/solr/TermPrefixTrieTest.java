@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link TermPrefixTrie} class.
+ */
+public class TermPrefixTrieTest
+{
+    private TermPrefixTrie trie;
+
+    @Before
+    public void setUp()
+    {
+        this.trie = new TermPrefixTrie(Arrays.asList(
+            term("CP:4", "karyotype"),
+            term("CP:5", "microarray"),
+            term("CP:6", "Whole exome sequencing"),
+            term("CP:7", "Whole genome sequencing"),
+            term("CP:8", "Exome"),
+            term("CP:9", "Gène panel"),
+            term("CP:10", null)));
+    }
+
+    @Test
+    public void completeMatchesWordPrefixesIgnoringCaseAndAccents()
+    {
+        Assert.assertEquals(Collections.singletonList("CP:4"), ids(this.trie.complete("KARY", term -> true, 10)));
+        Assert.assertEquals(Collections.singletonList("CP:9"), ids(this.trie.complete("gene", term -> true, 10)));
+        Assert.assertEquals(Arrays.asList("CP:6", "CP:7"), ids(this.trie.complete("seq", term -> true, 10)));
+    }
+
+    @Test
+    public void completeRequiresEveryTypedWord()
+    {
+        Assert.assertEquals(Collections.singletonList("CP:7"), ids(this.trie.complete("who gen", term -> true, 10)));
+        Assert.assertTrue(this.trie.complete("whole array", term -> true, 10).isEmpty());
+    }
+
+    @Test
+    public void completeRanksExactAndLeadingMatchesFirst()
+    {
+        Assert.assertEquals(Arrays.asList("CP:8", "CP:6"), ids(this.trie.complete("exome", term -> true, 10)));
+        Assert.assertEquals(Arrays.asList("CP:6", "CP:7"), ids(this.trie.complete("whole", term -> true, 10)));
+    }
+
+    @Test
+    public void completeAppliesFilterAndLimit()
+    {
+        Assert.assertEquals(Collections.singletonList("CP:7"),
+            ids(this.trie.complete("sequencing", term -> "CP:7".equals(term.getId()), 10)));
+        Assert.assertEquals(Collections.singletonList("CP:6"), ids(this.trie.complete("seq", term -> true, 1)));
+    }
+
+    @Test
+    public void completeSortsByNameWhenRequested()
+    {
+        Assert.assertEquals(Arrays.asList("CP:8", "CP:6"),
+            ids(this.trie.complete("exome", term -> true, 10, "nameSort asc")));
+        Assert.assertEquals(Arrays.asList("CP:6", "CP:8"),
+            ids(this.trie.complete("exome", term -> true, 10, "nameSort desc")));
+        Assert.assertEquals(Collections.singletonList("CP:7"),
+            ids(this.trie.complete("seq", term -> true, 1, "name desc")));
+    }
+
+    @Test
+    public void completeReturnsEmptyForBlankOrUnknownInput()
+    {
+        Assert.assertTrue(this.trie.complete(null, term -> true, 10).isEmpty());
+        Assert.assertTrue(this.trie.complete(" - ", term -> true, 10).isEmpty());
+        Assert.assertTrue(this.trie.complete("xyz", term -> true, 10).isEmpty());
+        Assert.assertTrue(this.trie.complete("seq", term -> true, 0).isEmpty());
+    }
+
+    @Test
+    public void supportsSortOnlyAcceptsNameSorts()
+    {
+        Assert.assertTrue(TermPrefixTrie.supportsSort(null));
+        Assert.assertTrue(TermPrefixTrie.supportsSort("nameSort asc"));
+        Assert.assertTrue(TermPrefixTrie.supportsSort("name desc"));
+        Assert.assertFalse(TermPrefixTrie.supportsSort("score desc"));
+    }
+
+    @Test
+    public void emptyTrieHasNoTerms()
+    {
+        Assert.assertTrue(TermPrefixTrie.EMPTY.isEmpty());
+        Assert.assertFalse(this.trie.isEmpty());
+    }
+
+    private static VocabularyTerm term(final String id, final String name)
+    {
+        final VocabularyTerm term = Mockito.mock(VocabularyTerm.class);
+        when(term.getId()).thenReturn(id);
+        when(term.getName()).thenReturn(name);
+        return term;
+    }
+
+    private static List<String> ids(final List<VocabularyTerm> terms)
+    {
+        return terms.stream().map(VocabularyTerm::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link VocabularyDelta} class.
+ */
+public class VocabularyDeltaTest
+{
+    private SolrClient client;
+
+    private SolrDocumentList indexed;
+
+    @Before
+    public void setUp() throws SolrServerException, IOException
+    {
+        this.client = Mockito.mock(SolrClient.class);
+        this.indexed = new SolrDocumentList();
+        final QueryResponse response = Mockito.mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(this.indexed);
+        when(this.client.query(any(SolrQuery.class))).thenReturn(response);
+    }
+
+    @Test
+    public void stampIsDeterministicAndDependsOnContent()
+    {
+        final String digest = digest(doc("CP:1", "Test"));
+        Assert.assertEquals(digest, digest(doc("CP:1", "Test")));
+        Assert.assertNotEquals(digest, digest(doc("CP:1", "Tests")));
+        Assert.assertNotEquals(digest(doc("CP:1", "ab", "c")), digest(doc("CP:1", "a", "bc")));
+    }
+
+    @Test
+    public void updateSendsChangedAndNewDocumentsInBatchesAndDeletesRemovedOnes()
+        throws SolrServerException, IOException
+    {
+        final List<SolrInputDocument> docs =
+            Arrays.asList(doc("CP:1", "Test"), doc("CP:2", "Care"), doc("CP:3", "New"));
+        docs.forEach(VocabularyDelta::stamp);
+        this.indexed.add(indexed("CP:1", digest(doc("CP:1", "Test"))));
+        this.indexed.add(indexed("CP:2", digest(doc("CP:2", "Old care"))));
+        this.indexed.add(indexed("CP:4", "removed"));
+
+        final VocabularyDelta delta = VocabularyDelta.update(this.client, 1, parser(docs));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("CP:2", "CP:3")), delta.getUpdates());
+        Assert.assertEquals(Collections.singletonList("CP:4"), delta.getDeletes());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("CP:2", "CP:3", "CP:4")), delta.getAffectedIds());
+
+        final InOrder order = Mockito.inOrder(this.client);
+        order.verify(this.client).add(Collections.singletonList(docs.get(1)));
+        order.verify(this.client).add(Collections.singletonList(docs.get(2)));
+        order.verify(this.client).deleteById(Collections.singletonList("CP:4"));
+        order.verify(this.client).commit();
+        verify(this.client, never()).rollback();
+    }
+
+    @Test
+    public void updateDoesNothingWhenNothingChanged() throws SolrServerException, IOException
+    {
+        final List<SolrInputDocument> docs = Collections.singletonList(VocabularyDelta.stamp(doc("CP:1", "Test")));
+        this.indexed.add(indexed("CP:1", digest(doc("CP:1", "Test"))));
+
+        Assert.assertTrue(VocabularyDelta.update(this.client, 10, parser(docs)).getAffectedIds().isEmpty());
+        verify(this.client, never()).add(Matchers.anyCollectionOf(SolrInputDocument.class));
+        verify(this.client, never()).commit();
+    }
+
+    @Test
+    public void updateRollsBackSentBatchesWhenParsingFails() throws SolrServerException, IOException
+    {
+        final SolrInputDocument sent = VocabularyDelta.stamp(doc("CP:1", "Test"));
+        try {
+            VocabularyDelta.update(this.client, 1, consumer -> {
+                consumer.accept(sent);
+                throw new IllegalArgumentException("Term Broken is missing an id");
+            });
+            Assert.fail("The parsing failure should be propagated");
+        } catch (final IllegalArgumentException ex) {
+            Assert.assertEquals("Term Broken is missing an id", ex.getMessage());
+        }
+        verify(this.client).add(Collections.singletonList(sent));
+        verify(this.client).rollback();
+        verify(this.client, never()).commit();
+    }
+
+    @Test
+    public void rebuildReplacesEverythingWithoutReadingTheIndex() throws SolrServerException, IOException
+    {
+        final List<SolrInputDocument> docs =
+            Arrays.asList(doc("CP:1", "Test"), doc("CP:2", "Care"), doc("CP:3", "New"));
+        docs.forEach(VocabularyDelta::stamp);
+
+        final VocabularyDelta delta = VocabularyDelta.rebuild(this.client, 2, parser(docs));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("CP:1", "CP:2", "CP:3")), delta.getUpdates());
+        Assert.assertTrue(delta.getDeletes().isEmpty());
+
+        final InOrder order = Mockito.inOrder(this.client);
+        order.verify(this.client).deleteByQuery("*:*");
+        order.verify(this.client).add(docs.subList(0, 2));
+        order.verify(this.client).add(docs.subList(2, 3));
+        order.verify(this.client).commit();
+        verify(this.client, never()).query(any(SolrQuery.class));
+    }
+
+    @Test
+    public void rebuildRollsBackTheClearedIndexWhenParsingFails() throws SolrServerException, IOException
+    {
+        try {
+            VocabularyDelta.rebuild(this.client, 1, consumer -> {
+                throw new IllegalArgumentException("Term Broken is missing an id");
+            });
+            Assert.fail("The parsing failure should be propagated");
+        } catch (final IllegalArgumentException ex) {
+            Assert.assertEquals("Term Broken is missing an id", ex.getMessage());
+        }
+        verify(this.client).deleteByQuery("*:*");
+        verify(this.client).rollback();
+        verify(this.client, never()).commit();
+    }
+
+    private static SolrInputDocument doc(final String id, final String name, final String... parents)
+    {
+        final SolrInputDocument doc = new SolrInputDocument();
+        doc.addField("id", id);
+        doc.addField("name", name);
+        if (parents.length > 0) {
+            doc.addField("is_a", Arrays.asList(parents));
+        }
+        return doc;
+    }
+
+    private static String digest(final SolrInputDocument doc)
+    {
+        return (String) VocabularyDelta.stamp(doc).getFieldValue("digest");
+    }
+
+    private static VocabularyDelta.Parser parser(final List<SolrInputDocument> docs)
+    {
+        return consumer -> {
+            for (final SolrInputDocument doc : docs) {
+                consumer.accept(doc);
+            }
+        };
+    }
+
+    private static SolrDocument indexed(final String id, final String digest)
+    {
+        final SolrDocument doc = new SolrDocument();
+        doc.setField("id", id);
+        doc.setField("digest", digest);
+        return doc;
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.SolrVocabularyResourceManager;
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.EntryEvictionConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.DisMaxParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.SpellingParams;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.slf4j.Logger;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit tests for the {@link VocabularySearchEngine} class.
+ */
+public class VocabularySearchEngineTest
+{
+    private static final SearchProfile FULL =
+        new SearchProfile(SearchProfile.FULL, "name^20", "name^10 text^1", Integer.MAX_VALUE, true);
+
+    private static final SearchProfile TYPEAHEAD =
+        new SearchProfile(SearchProfile.TYPEAHEAD, null, "name^10", 5, false);
+
+    private static final VocabularySearchEngine.Settings SETTINGS = new VocabularySearchEngine.Settings(
+        Arrays.asList("test", "care"), Pattern.compile("^CP:[0-9]+$", Pattern.CASE_INSENSITIVE), "1", FULL, TYPEAHEAD,
+        new SearchProfile(SearchProfile.ID, null, null, Integer.MAX_VALUE, false));
+
+    private static final String TYPEAHEAD_ROWS = "phenotips.vocabularies.care-pathways.searchProfiles.typeahead.rows";
+
+    private static final String SEARCH_CACHE = "phenotips.vocabularies.care-pathways.searchCache";
+
+    private Vocabulary vocabulary;
+
+    private Logger logger;
+
+    private ConfigurationSource configuration;
+
+    private CacheManager cacheManager;
+
+    private List<SolrParams> queries;
+
+    private List<SolrDocumentList> responses;
+
+    private VocabularySearchEngine engine;
+
+    @Before
+    public void setUp() throws CacheException
+    {
+        this.vocabulary = mock(Vocabulary.class);
+        when(this.vocabulary.getIdentifier()).thenReturn("care-pathways");
+        this.logger = mock(Logger.class);
+        this.configuration = mock(ConfigurationSource.class);
+        this.cacheManager = mock(CacheManager.class);
+        when(this.cacheManager.createNewLocalCache(any(CacheConfiguration.class))).thenReturn(newMapCache());
+        this.queries = new ArrayList<>();
+        this.responses = new ArrayList<>();
+        this.engine = newEngine();
+    }
+
+    /**
+     * Creates a cache keeping its entries in a map, to be returned by a mocked {@link CacheManager}.
+     *
+     * @param <T> the type of the cached values
+     * @return a new, empty cache
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Cache<T> newMapCache()
+    {
+        final Map<String, T> entries = new HashMap<>();
+        final Cache<T> cache = mock(Cache.class);
+        when(cache.get(anyString())).thenAnswer(invocation -> entries.get(invocation.getArguments()[0]));
+        doAnswer(invocation -> entries.put((String) invocation.getArguments()[0], (T) invocation.getArguments()[1]))
+            .when(cache).set(anyString(), any());
+        doAnswer(invocation -> {
+            entries.clear();
+            return null;
+        }).when(cache).removeAll();
+        return cache;
+    }
+
+    @Test
+    public void acceptsOnlyNonBlankInputInSupportedCategories()
+    {
+        Assert.assertTrue(this.engine.accepts("kary", "care"));
+        Assert.assertFalse(this.engine.accepts(" ", "care"));
+        Assert.assertFalse(this.engine.accepts("kary", "other"));
+        verify(this.logger).warn("The provided category [{}] is not supported by the {} vocabulary.", "other",
+            "care-pathways");
+    }
+
+    @Test
+    public void identifiersFollowTheConfiguredPattern()
+    {
+        Assert.assertTrue(this.engine.isId("cp:12"));
+        Assert.assertFalse(this.engine.isId("CPQ:12"));
+        Assert.assertEquals(Arrays.asList("CP:1", "CP:2"), this.engine.parseIds("cp:1, CP:2"));
+        Assert.assertEquals(Collections.emptyList(), this.engine.parseIds("CP:1 karyotype"));
+    }
+
+    @Test
+    public void textQueriesUseTheConfiguredBoosts()
+    {
+        final SolrQuery query =
+            this.engine.newQuery(" genetic test ", 10, "name asc", "term_category:CP\\:1", false, FULL);
+        Assert.assertEquals("name^20", query.get(DisMaxParams.PF));
+        Assert.assertEquals("name^10 text^1", query.get(DisMaxParams.QF));
+        Assert.assertEquals("genetic test", query.get(SpellingParams.SPELLCHECK_Q));
+        Assert.assertArrayEquals(new String[] { "term_category:CP\\:1" }, query.getFilterQueries());
+        Assert.assertEquals(Integer.valueOf(10), query.getRows());
+        Assert.assertEquals(Collections.singletonList(SolrQuery.SortClause.asc("name")), query.getSorts());
+    }
+
+    @Test
+    public void idQueriesFilterOnTheIdentifierWithoutBoosts()
+    {
+        final SolrQuery query = this.engine.newQuery("CP:12", 1, null, null, true, this.engine.getProfile("id"));
+        Assert.assertNull(query.get(DisMaxParams.QF));
+        Assert.assertArrayEquals(new String[] { "id:CP\\:12" }, query.getFilterQueries());
+    }
+
+    @Test
+    public void onlyQueriesFindingNothingAreSpellchecked()
+    {
+        final SolrDocumentList found = new SolrDocumentList();
+        found.add(new SolrDocument());
+        this.responses.add(found);
+        Assert.assertSame(found,
+            this.engine.searchWithSpellcheck(this.engine.newQuery("kary", 10, null, null, false, FULL), FULL));
+        Assert.assertEquals(1, this.queries.size());
+
+        this.engine.searchWithSpellcheck(this.engine.newQuery("karyotipe", 10, null, null, false, FULL), FULL);
+        Assert.assertEquals(3, this.queries.size());
+        Assert.assertEquals("false", this.queries.get(1).get("spellcheck"));
+        Assert.assertEquals("true", this.queries.get(2).get("spellcheck"));
+
+        final Map<String, Long> statistics = this.engine.getStatistics();
+        Assert.assertEquals(3L, (long) statistics.get("queries"));
+        Assert.assertEquals(1L, (long) statistics.get("spellcheckQueries"));
+    }
+
+    @Test
+    public void identicalSearchesAreCached()
+    {
+        this.engine.search("1", "kary", "care", 10, null, null, FULL, Collections::emptyList);
+        this.engine.search("1", "kary", "care", 10, null, null, FULL, Collections::emptyList);
+        Assert.assertEquals(1L, (long) this.engine.getStatistics().get("hits"));
+        this.engine.search("1", "kary", "care", 10, null, null, TYPEAHEAD, Collections::emptyList);
+        Assert.assertEquals(2L, (long) this.engine.getStatistics().get("misses"));
+        this.engine.search("1", "  kary ", "care", 10, null, null, TYPEAHEAD, Collections::emptyList);
+        Assert.assertEquals(2L, (long) this.engine.getStatistics().get("hits"));
+    }
+
+    @Test
+    public void searchesOnAnotherVersionAreNotShared()
+    {
+        this.engine.search("1", "kary", "care", 10, null, null, FULL, Collections::emptyList);
+        this.engine.search("2", "kary", "care", 10, null, null, FULL, Collections::emptyList);
+        Assert.assertEquals(0L, (long) this.engine.getStatistics().get("hits"));
+        Assert.assertEquals(2L, (long) this.engine.getStatistics().get("misses"));
+    }
+
+    @Test
+    public void cachedResultsCannotBeModified()
+    {
+        final List<VocabularyTerm> results = Collections.singletonList(mock(VocabularyTerm.class));
+        final List<VocabularyTerm> modifiable = new ArrayList<>(results);
+        final List<VocabularyTerm> cached =
+            this.engine.search("1", "kary", "care", 10, null, null, FULL, () -> modifiable);
+        modifiable.clear();
+        Assert.assertEquals(results, cached);
+        Assert.assertEquals(results,
+            this.engine.search("1", "kary", "care", 10, null, null, FULL, Collections::emptyList));
+        try {
+            cached.clear();
+            Assert.fail("Cached results should be unmodifiable");
+        } catch (final UnsupportedOperationException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void searchCacheIsConfiguredFromTheConfiguration() throws CacheException
+    {
+        when(this.configuration.getProperty(SEARCH_CACHE + ".size", Integer.class)).thenReturn(50);
+        when(this.configuration.getProperty(SEARCH_CACHE + ".ttl", Integer.class)).thenReturn(30);
+        newEngine();
+        final ArgumentCaptor<CacheConfiguration> captor = ArgumentCaptor.forClass(CacheConfiguration.class);
+        verify(this.cacheManager, times(2)).createNewLocalCache(captor.capture());
+        Assert.assertEquals(SEARCH_CACHE, captor.getValue().getConfigurationId());
+        final LRUEvictionConfiguration eviction =
+            (LRUEvictionConfiguration) captor.getValue().get(EntryEvictionConfiguration.CONFIGURATIONID);
+        Assert.assertEquals(50, eviction.getMaxEntries());
+        Assert.assertEquals(30, eviction.getTimeToLive());
+    }
+
+    @Test
+    public void zeroSizeDisablesTheSearchCache() throws CacheException
+    {
+        when(this.configuration.getProperty(SEARCH_CACHE + ".size", Integer.class)).thenReturn(0);
+        this.cacheManager = mock(CacheManager.class);
+        final VocabularySearchEngine uncached = newEngine();
+        uncached.search("1", "kary", "care", 10, null, null, FULL, Collections::emptyList);
+        uncached.search("1", "kary", "care", 10, null, null, FULL, Collections::emptyList);
+        Assert.assertEquals(2L, (long) uncached.getStatistics().get("misses"));
+        verify(this.cacheManager, never()).createNewLocalCache(any(CacheConfiguration.class));
+    }
+
+    @Test
+    public void searchesAreNotCachedWhenTheCacheCannotBeCreated() throws CacheException
+    {
+        when(this.cacheManager.createNewLocalCache(any(CacheConfiguration.class)))
+            .thenThrow(new CacheException("No cache"));
+        final VocabularySearchEngine uncached = newEngine();
+        uncached.search("1", "kary", "care", 10, null, null, FULL, Collections::emptyList);
+        uncached.search("1", "kary", "care", 10, null, null, FULL, Collections::emptyList);
+        Assert.assertEquals(2L, (long) uncached.getStatistics().get("misses"));
+        verify(this.logger).warn("Failed to create the {} search cache, searches will not be cached: {}",
+            "care-pathways", "No cache");
+    }
+
+    @Test
+    public void failedSearchesAreNotCached()
+    {
+        this.responses.add(null);
+        Assert.assertEquals(Collections.emptyList(), this.engine.search("1", "kary", "care", 10, null, null,
+            TYPEAHEAD, () -> this.engine.search("kary", 10, null, null, false, TYPEAHEAD)));
+        Assert.assertEquals(1, this.queries.size());
+        this.engine.search("1", "kary", "care", 10, null, null, TYPEAHEAD,
+            () -> this.engine.search("kary", 10, null, null, false, TYPEAHEAD));
+        Assert.assertEquals(2, this.queries.size());
+        this.engine.search("1", "kary", "care", 10, null, null, TYPEAHEAD,
+            () -> this.engine.search("kary", 10, null, null, false, TYPEAHEAD));
+        Assert.assertEquals(2, this.queries.size());
+        Assert.assertEquals(1L, (long) this.engine.getStatistics().get("hits"));
+    }
+
+    @Test
+    public void typeaheadProfileSearchesNamesWithoutSpellchecking()
+    {
+        final SolrQuery query = this.engine.newQuery("karyotipe", 5, null, null, false, TYPEAHEAD);
+        Assert.assertNull(query.get(DisMaxParams.PF));
+        Assert.assertEquals("name^10", query.get(DisMaxParams.QF));
+        this.engine.searchWithSpellcheck(query, TYPEAHEAD);
+        Assert.assertEquals(1, this.queries.size());
+        Assert.assertEquals(5, TYPEAHEAD.limit(10));
+    }
+
+    @Test
+    public void profilesAreReadFromTheConfigurationOnEveryCall()
+    {
+        Assert.assertEquals(TYPEAHEAD, this.engine.getProfile(SearchProfile.TYPEAHEAD));
+        when(this.configuration.getProperty(TYPEAHEAD_ROWS, Integer.class)).thenReturn(8);
+        Assert.assertEquals(TYPEAHEAD.withMaxRows(8), this.engine.getProfile(SearchProfile.TYPEAHEAD));
+    }
+
+    @Test
+    public void configuredProfilesAreOnlyRebuiltWhenTheConfigurationChanges()
+    {
+        when(this.configuration.getProperty(TYPEAHEAD_ROWS, Integer.class)).thenReturn(8);
+        final SearchProfile configured = this.engine.getProfile(SearchProfile.TYPEAHEAD);
+        Assert.assertSame(configured, this.engine.getProfile(SearchProfile.TYPEAHEAD));
+        when(this.configuration.getProperty(TYPEAHEAD_ROWS, Integer.class)).thenReturn(3);
+        Assert.assertEquals(TYPEAHEAD.withMaxRows(3), this.engine.getProfile(SearchProfile.TYPEAHEAD));
+    }
+
+    @Test
+    public void profilesSetAtRuntimeTakePrecedence()
+    {
+        when(this.configuration.getProperty(TYPEAHEAD_ROWS, Integer.class)).thenReturn(8);
+        final SearchProfile tuned = TYPEAHEAD.withQueryFields("name^10 nameStub^5").withMaxRows(3);
+        this.engine.setProfile(tuned);
+        Assert.assertEquals(tuned, this.engine.getProfile(SearchProfile.TYPEAHEAD));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyKnownProfilesCanBeSet()
+    {
+        this.engine.setProfile(new SearchProfile("fast", null, "name", 1, false));
+    }
+
+    @Test
+    public void unknownProfilesFallBackToTheFullProfile()
+    {
+        Assert.assertEquals(FULL, this.engine.getProfile(null));
+        Assert.assertEquals(FULL, this.engine.getProfile("fast"));
+        verify(this.logger).warn("The search profile [{}] is not defined for the {} vocabulary, using the full profile",
+            "fast", "care-pathways");
+    }
+
+    @Test
+    public void docsPerBatchIsConfigurable()
+    {
+        Assert.assertEquals(500000, this.engine.getDocsPerBatch());
+        when(this.configuration.getProperty("phenotips.vocabularies.care-pathways.solrDocsPerBatch", Integer.class))
+            .thenReturn(1000);
+        Assert.assertEquals(1000, this.engine.getDocsPerBatch());
+        when(this.configuration.getProperty("phenotips.vocabularies.care-pathways.solrDocsPerBatch", Integer.class))
+            .thenReturn(0);
+        Assert.assertEquals(500000, this.engine.getDocsPerBatch());
+    }
+
+    private VocabularySearchEngine newEngine()
+    {
+        return new VocabularySearchEngine(this.vocabulary, SETTINGS, mock(SolrVocabularyResourceManager.class),
+            this.configuration, this.cacheManager, this.logger, params -> {
+                this.queries.add(params);
+                return this.responses.isEmpty() ? new SolrDocumentList() : this.responses.remove(0);
+            });
+    }
+}